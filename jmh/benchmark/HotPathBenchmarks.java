@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import daa.reader.DAA_Header;
+import daa.reader.DAA_Hit;
+import daa.writer.DAA_Writer;
+import hits.Hit;
+import io.FastAQ_Reader;
+import maf.MAF_Converter;
+import maf.MAF_Hit;
+import maf.MAF_StreamConverter;
+import util.DAACompressAlignment;
+import util.Hit_Filter;
+import util.Hit_Filter_parallel;
+
+// JMH micro benchmarks of the hot paths of conversion and merging, all inputs are derived from DataGenerator
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmarks {
+
+	private static final double LAMBDA = 0.267, K = 0.041;
+	private static final int READS = 1000, HITS_PER_READ = 10;
+
+	// parameters shared by all states, run with e.g. '-p cores=4 -p seed=7'
+	@State(Scope.Benchmark)
+	public static class Input {
+
+		@Param({ "42" })
+		public long seed;
+
+		// 0 uses all available processors
+		@Param({ "0" })
+		public int cores;
+
+		protected File tmpFolder;
+		private PrintStream stdout;
+
+		// silencing the progress output of the benchmarked components
+		@Setup(Level.Trial)
+		public void setupInput() throws Exception {
+			if (cores == 0)
+				cores = Runtime.getRuntime().availableProcessors();
+			tmpFolder = Files.createTempDirectory("daa_benchmark").toFile();
+			stdout = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDownInput() {
+			System.setOut(stdout);
+			File[] files = tmpFolder.listFiles();
+			if (files != null) {
+				for (File f : files)
+					f.delete();
+			}
+			tmpFolder.delete();
+		}
+
+		protected DataGenerator createGenerator(int numOfReads, int hitsPerRead) {
+			return new DataGenerator(seed, numOfReads, hitsPerRead, 100, 20, 80, false);
+		}
+
+	}
+
+	private static String[] getLineTriple(String alignment) {
+		String[] lines = alignment.split("\n");
+		String[] lineTriple = { lines[0], lines[1], lines[2] };
+		return lineTriple;
+	}
+
+	// returns the MAF hits of all generated alignments, grouped by read
+	private static ArrayList<MAF_Hit> generateHits(DataGenerator generator, int hitsPerRead, ArrayList<Object[]> subjectInfo) {
+		ArrayList<MAF_Hit> hits = new ArrayList<MAF_Hit>();
+		for (int r = 0; r < generator.getNumOfReads(); r++) {
+			String read = generator.getRead(r);
+			Object[] readInfo = generator.getReadInfo(r);
+			for (int h = 0; h < hitsPerRead; h++) {
+				MAF_Hit hit = new MAF_Hit(getLineTriple(generator.getAlignment(r, h, read)), readInfo, subjectInfo);
+				hit.setReadInfo(readInfo);
+				hits.add(hit);
+			}
+		}
+		return hits;
+	}
+
+	private static File writeDAA(File daaFile, ArrayList<MAF_Hit> mafHits, ArrayList<Object[]> subjectInfo, int cores) {
+		ArrayList<Hit> hits = new ArrayList<Hit>(mafHits.size());
+		for (MAF_Hit h : mafHits)
+			hits.add(new Hit(h));
+		DAA_Writer writer = new DAA_Writer(daaFile);
+		writer.writeHeader((long) subjectInfo.size(), BigInteger.valueOf(1000000), 11, 2, K, LAMBDA);
+		writer.writeHits(hits, cores);
+		writer.writeEnd(subjectInfo);
+		return daaFile;
+	}
+
+	public static class LoadPropertiesState extends Input {
+
+		private String[][] lineTriples;
+		private Object[][] readInfos;
+		private ArrayList<Object[]> subjectInfo;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			DataGenerator generator = createGenerator(READS, 1);
+			subjectInfo = generator.getSubjectInfo();
+			lineTriples = new String[READS][];
+			readInfos = new Object[READS][];
+			for (int r = 0; r < READS; r++) {
+				lineTriples[r] = getLineTriple(generator.getAlignment(r, 0, generator.getRead(r)));
+				readInfos[r] = generator.getReadInfo(r);
+			}
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS)
+	public void loadProperties(LoadPropertiesState s, Blackhole bh) {
+		MAF_Hit hit = new MAF_Hit(s.lineTriples[0], s.readInfos[0], s.subjectInfo);
+		for (int i = 0; i < READS; i++) {
+			hit.loadProperties(s.lineTriples[i], s.readInfos[i], s.subjectInfo);
+			bh.consume(hit.editOperations);
+		}
+	}
+
+	public static class CompressAlignmentState extends Input {
+
+		private String[][] alis;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			DataGenerator generator = createGenerator(READS, 1);
+			ArrayList<Object[]> subjectInfo = generator.getSubjectInfo();
+			alis = new String[READS][];
+			for (int r = 0; r < READS; r++) {
+				MAF_Hit hit = new MAF_Hit(getLineTriple(generator.getAlignment(r, 0, generator.getRead(r))), generator.getReadInfo(r), subjectInfo);
+				alis[r] = hit.getAli();
+			}
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS)
+	public void compressAlignment(CompressAlignmentState s, Blackhole bh) {
+		for (int i = 0; i < READS; i++)
+			bh.consume(DAACompressAlignment.run(s.alis[i]));
+	}
+
+	// one operation filters all hits of a single read
+	public static class FilterState extends Input {
+
+		@Param({ "100", "1000", "10000" })
+		public int hits;
+
+		private ArrayList<MAF_Hit> mafHits;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			DataGenerator generator = createGenerator(1, hits);
+			mafHits = generateHits(generator, hits, generator.getSubjectInfo());
+		}
+
+	}
+
+	@Benchmark
+	public Object filter(FilterState s) {
+		return Hit_Filter.run(s.mafHits, LAMBDA, K);
+	}
+
+	@Benchmark
+	public Object filterParallel(FilterState s) {
+		return Hit_Filter_parallel.run(s.mafHits, LAMBDA, K, s.cores);
+	}
+
+	public static class WriteHitsState extends Input {
+
+		private ArrayList<Hit> hits;
+		private ArrayList<Object[]> subjectInfo;
+		private File daaFile;
+		private DAA_Writer writer;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			DataGenerator generator = createGenerator(READS, HITS_PER_READ);
+			subjectInfo = generator.getSubjectInfo();
+			hits = new ArrayList<Hit>();
+			for (MAF_Hit h : generateHits(generator, HITS_PER_READ, subjectInfo))
+				hits.add(new Hit(h));
+			daaFile = new File(tmpFolder, "bench_writeHits.daa");
+		}
+
+		// each iteration appends to a fresh file
+		@Setup(Level.Iteration)
+		public void setupIteration() {
+			writer = new DAA_Writer(daaFile);
+			writer.writeHeader((long) subjectInfo.size(), BigInteger.valueOf(1000000), 11, 2, K, LAMBDA);
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDownIteration() {
+			writer.writeEnd(subjectInfo);
+			daaFile.delete();
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS * HITS_PER_READ)
+	public Object writeHits(WriteHitsState s) {
+		s.writer.writeHits(s.hits, s.cores);
+		return s.writer;
+	}
+
+	public static class ParseHitPropertiesState extends Input {
+
+		private DAA_Header header;
+		private byte[] alignmentBlock;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			DataGenerator generator = createGenerator(READS, HITS_PER_READ);
+			ArrayList<Object[]> subjectInfo = generator.getSubjectInfo();
+			File daaFile = writeDAA(new File(tmpFolder, "bench_parseHits.daa"), generateHits(generator, HITS_PER_READ, subjectInfo), subjectInfo, cores);
+			header = new DAA_Header(daaFile);
+			header.loadAllReferences();
+			RandomAccessFile raf = new RandomAccessFile(daaFile, "r");
+			try {
+				long start = header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex());
+				alignmentBlock = new byte[(int) (header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex() + 1) - start)];
+				raf.seek(start);
+				raf.readFully(alignmentBlock);
+			} finally {
+				raf.close();
+			}
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS * HITS_PER_READ)
+	public void parseHitProperties(ParseHitPropertiesState s, Blackhole bh) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(s.alignmentBlock).order(ByteOrder.LITTLE_ENDIAN);
+		for (long i = 0; i < s.header.getNumberOfQueryRecords(); i++) {
+			int alloc = buffer.getInt();
+			ByteBuffer record = ByteBuffer.wrap(s.alignmentBlock, buffer.position(), alloc).slice().order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(buffer.position() + alloc);
+			DAA_Hit hit = new DAA_Hit();
+			hit.parseQueryProperties(0, record, false, false);
+			while (record.position() < record.capacity()) {
+				hit.parseHitProperties(s.header, record, false);
+				bh.consume(hit.getQueryLength());
+			}
+		}
+	}
+
+	public static class PackSequenceState extends Input {
+
+		private String[] reads;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			DataGenerator generator = createGenerator(READS, 1);
+			reads = new String[READS];
+			for (int r = 0; r < READS; r++)
+				reads[r] = generator.getRead(r);
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS)
+	public void packSequence(PackSequenceState s, Blackhole bh) {
+		for (int i = 0; i < READS; i++)
+			bh.consume(FastAQ_Reader.packSequence(s.reads[i]));
+	}
+
+	// merges batch DAA files, each holding a share of the alignments of all reads, as done by MainMerger
+	public static class StreamMergeState extends Input {
+
+		private static final int MERGE_READS = 2000, BATCHES = 3;
+
+		private File readFile, daaFile;
+		private ArrayList<File> batchFiles = new ArrayList<File>();
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			DataGenerator generator = createGenerator(MERGE_READS, HITS_PER_READ);
+			readFile = new File(tmpFolder, "bench_merge.fastq");
+			generator.writeReads(readFile);
+			File[] mafFiles = new File[BATCHES];
+			for (int i = 0; i < BATCHES; i++)
+				mafFiles[i] = new File(tmpFolder, "bench_merge_" + i + ".maf");
+			generator.writeMaf(mafFiles);
+			for (int i = 0; i < BATCHES; i++) {
+				File batchFile = new File(tmpFolder, "bench_merge_" + i + ".daa");
+				MAF_Converter converter = new MAF_Converter();
+				converter.run(batchFile, mafFiles[i], readFile, cores, false, null, false);
+				if (converter.hasFailed())
+					throw new IllegalStateException("cannot write batch file " + batchFile.getAbsolutePath());
+				batchFiles.add(batchFile);
+				mafFiles[i].delete();
+			}
+			daaFile = new File(tmpFolder, "bench_merge.daa");
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(StreamMergeState.MERGE_READS * HITS_PER_READ)
+	public boolean streamMerge(StreamMergeState s) {
+		return new MAF_StreamConverter().runOnDAAFiles(s.daaFile, s.batchFiles, s.readFile, s.cores, false, false);
+	}
+
+}
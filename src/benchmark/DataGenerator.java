@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+import io.FastAQ_Reader;
+import util.CodonTranslator;
+import util.SparseString;
+
+// generates LAST-like MAF files together with the matching FASTQ file, every read and alignment is derived from its own seed
+public class DataGenerator {
+
+	private static final String AMINO_ACIDS = "ARNDCQEGHILKMFPSTWYV";
+	private static final char[] NUCLEOTIDES = { 'A', 'C', 'G', 'T' };
+	private static final double LAMBDA = 0.267, K = 0.041;
+
+	private long seed;
+	private int numOfReads, hitsPerRead, numOfReferences, minAliLength, maxAliLength;
+	private boolean shuffle;
+	private double gapRate = 0.02, mismatchRate = 0.2;
+
+	public DataGenerator(long seed, int numOfReads, int hitsPerRead, int numOfReferences, int minAliLength, int maxAliLength, boolean shuffle) {
+		this.seed = seed;
+		this.numOfReads = numOfReads;
+		this.hitsPerRead = hitsPerRead;
+		this.numOfReferences = numOfReferences;
+		this.minAliLength = minAliLength;
+		this.maxAliLength = Math.max(minAliLength, maxAliLength);
+		this.shuffle = shuffle;
+	}
+
+	public void write(File mafFile, File readFile) throws IOException {
+		writeReads(readFile);
+		writeMaf(mafFile);
+	}
+
+	public void writeReads(File readFile) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(readFile), StandardCharsets.ISO_8859_1), 1024 * 1024);
+		try {
+			StringBuilder buf = new StringBuilder();
+			for (int r = 0; r < numOfReads; r++) {
+				String seq = getRead(r);
+				buf.setLength(0);
+				buf.append('@').append(getReadName(r)).append('\n').append(seq).append("\n+\n");
+				for (int i = 0; i < seq.length(); i++)
+					buf.append('I');
+				buf.append('\n');
+				out.write(buf.toString());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// alignment a is written into mafFiles[a % mafFiles.length], each file receiving the full header
+	public void writeMaf(File... mafFiles) throws IOException {
+		Writer[] outs = new Writer[mafFiles.length];
+		for (int i = 0; i < mafFiles.length; i++)
+			outs[i] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mafFiles[i]), StandardCharsets.ISO_8859_1), 1024 * 1024);
+		try {
+			for (Writer out : outs)
+				out.write(getHeader());
+			long numOfAlignments = (long) numOfReads * hitsPerRead;
+			long[] order = null;
+			if (shuffle) {
+				order = new long[(int) numOfAlignments];
+				for (int i = 0; i < order.length; i++)
+					order[i] = i;
+				Random rand = new Random(seed);
+				for (int i = order.length - 1; i > 0; i--) {
+					int j = rand.nextInt(i + 1);
+					long tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+				}
+			}
+			String lastRead = null;
+			int lastIndex = -1;
+			for (long a = 0; a < numOfAlignments; a++) {
+				long id = order != null ? order[(int) a] : a;
+				int r = (int) (id / hitsPerRead);
+				if (r != lastIndex) {
+					lastRead = getRead(r);
+					lastIndex = r;
+				}
+				outs[(int) (a % outs.length)].write(getAlignment(r, (int) (id % hitsPerRead), lastRead));
+			}
+		} finally {
+			for (Writer out : outs)
+				out.close();
+		}
+	}
+
+	public String getHeader() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("# LAST version 900\n#\n");
+		buf.append("# a=11 b=2 c=100 F=15 e=100 d=50 x=99 y=25 z=99 D=1e+06 E=21.3\n");
+		buf.append("# R=01 u=0 s=2 S=0 M=0 T=0 m=10 l=1 n=10 k=1 w=1000 t=-1 j=3 Q=0\n");
+		buf.append("# db\n");
+		buf.append("# Reference sequences=" + numOfReferences + " normalized letters=" + getDbLetters() + "\n");
+		buf.append("# lambda=" + LAMBDA + " K=" + K + "\n#\n");
+		buf.append("# batch 0\n");
+		return buf.toString();
+	}
+
+	// returns the read info {id, packed sequence, length, hasN} as produced by FastAQ_Reader
+	public Object[] getReadInfo(int r) {
+		String seq = getRead(r);
+		Object[] readInfo = { new SparseString(getReadName(r)), FastAQ_Reader.packSequence(seq), seq.length(), false };
+		return readInfo;
+	}
+
+	// returns the subject info {name, length} of all references sorted by name
+	public ArrayList<Object[]> getSubjectInfo() {
+		ArrayList<Object[]> subjectInfo = new ArrayList<Object[]>(numOfReferences);
+		for (int s = 0; s < numOfReferences; s++) {
+			Object[] subject = { new SparseString(getReferenceName(s)), getReferenceLength(s) };
+			subjectInfo.add(subject);
+		}
+		Collections.sort(subjectInfo, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				return o1[0].toString().compareTo(o2[0].toString());
+			}
+		});
+		return subjectInfo;
+	}
+
+	public int getNumOfReads() {
+		return numOfReads;
+	}
+
+	public long getNumOfAlignments() {
+		return (long) numOfReads * hitsPerRead;
+	}
+
+	public String getReadName(int r) {
+		return "read" + r;
+	}
+
+	public String getRead(int r) {
+		Random rand = new Random(mix(seed, r, -1));
+		int length = 3 * maxAliLength + 30 + rand.nextInt(60);
+		char[] seq = new char[length];
+		for (int i = 0; i < length; i++)
+			seq[i] = NUCLEOTIDES[rand.nextInt(4)];
+		return new String(seq);
+	}
+
+	public String getReferenceName(int s) {
+		return "ref" + s;
+	}
+
+	public int getReferenceLength(int s) {
+		return maxAliLength + 50 + new Random(mix(seed, -1, s)).nextInt(4 * maxAliLength);
+	}
+
+	private long getDbLetters() {
+		long letters = 0;
+		for (int s = 0; s < numOfReferences; s++)
+			letters += getReferenceLength(s);
+		return letters;
+	}
+
+	// returns the MAF block of alignment h of read r
+	public String getAlignment(int r, int h, String read) {
+
+		Random rand = new Random(mix(seed, r, h));
+		boolean negative = rand.nextBoolean();
+		String strand = negative ? reverseComplement(read) : read;
+
+		int numOfCodons = minAliLength + rand.nextInt(maxAliLength - minAliLength + 1);
+		int queryStart = rand.nextInt(strand.length() - 3 * numOfCodons + 1);
+		String protein = new CodonTranslator().translate(strand.substring(queryStart, queryStart + 3 * numOfCodons));
+
+		// mutating the translated query into the reference row
+		StringBuilder queryRow = new StringBuilder(), refRow = new StringBuilder();
+		int score = 0, refLetters = 0;
+		for (int i = 0; i < protein.length(); i++) {
+			char q = protein.charAt(i);
+			double p = rand.nextDouble();
+			if (p < gapRate / 2 && i > 0) {
+				queryRow.append('-');
+				refRow.append(AMINO_ACIDS.charAt(rand.nextInt(AMINO_ACIDS.length())));
+				refLetters++;
+				score -= 11;
+			} else if (p < gapRate && i > 0) {
+				queryRow.append(q);
+				refRow.append('-');
+				score -= 11;
+				continue;
+			}
+			queryRow.append(q);
+			if (rand.nextDouble() < mismatchRate) {
+				refRow.append(AMINO_ACIDS.charAt(rand.nextInt(AMINO_ACIDS.length())));
+				score -= 1;
+			} else {
+				refRow.append(q);
+				score += 5;
+			}
+			refLetters++;
+		}
+		score = Math.max(score, 20);
+
+		int subject = rand.nextInt(numOfReferences);
+		int refLength = getReferenceLength(subject);
+		int refStart = rand.nextInt(refLength - refLetters + 1);
+		double eValue = K * getDbLetters() * numOfCodons * Math.exp(-LAMBDA * score);
+
+		StringBuilder buf = new StringBuilder();
+		buf.append("a score=").append(score).append(" EG2=").append(String.format(Locale.US, "%.2g", eValue)).append(" E=")
+				.append(String.format(Locale.US, "%.2g", eValue)).append('\n');
+		buf.append("s ").append(getReferenceName(subject)).append(' ').append(refStart).append(' ').append(refLetters).append(" + ")
+				.append(refLength).append(' ').append(refRow).append('\n');
+		buf.append("s ").append(getReadName(r)).append(' ').append(queryStart).append(' ').append(3 * numOfCodons)
+				.append(negative ? " - " : " + ").append(read.length()).append(' ').append(queryRow).append("\n\n");
+		return buf.toString();
+
+	}
+
+	private static String reverseComplement(String dna) {
+		char[] rev = new char[dna.length()];
+		for (int i = 0; i < dna.length(); i++) {
+			char c = dna.charAt(dna.length() - 1 - i);
+			rev[i] = c == 'A' ? 'T' : c == 'C' ? 'G' : c == 'G' ? 'C' : 'A';
+		}
+		return new String(rev);
+	}
+
+	private static long mix(long seed, long a, long b) {
+		long x = seed * 0x9E3779B97F4A7C15L + a * 0xBF58476D1CE4E5B9L + b * 0x94D049BB133111EBL;
+		x ^= x >>> 31;
+		x *= 0xBF58476D1CE4E5B9L;
+		return x ^ (x >>> 29);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// runs the main method of another class and, when the JVM shuts down, writes wall time, peak RSS and GC statistics into a file
+public class ProcessProbe {
+
+	public static void main(String[] args) throws Exception {
+
+		final File resultFile = new File(args[0]);
+		final long time = System.nanoTime();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				writeResult(resultFile, System.nanoTime() - time);
+			}
+		});
+
+		Class.forName(args[1]).getMethod("main", String[].class).invoke(null, (Object) Arrays.copyOfRange(args, 2, args.length));
+
+	}
+
+	private static void writeResult(File resultFile, long nanos) {
+		long gcTime = 0, gcCount = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcTime += Math.max(0, gc.getCollectionTime());
+			gcCount += Math.max(0, gc.getCollectionCount());
+		}
+		try {
+			FileWriter writer = new FileWriter(resultFile);
+			try {
+				writer.write(nanos + " " + getPeakRSS() + " " + gcTime + " " + gcCount + "\n");
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// returns the peak resident set size in bytes as reported by the kernel, or the committed heap if not available
+	private static long getPeakRSS() {
+		File status = new File("/proc/self/status");
+		if (status.exists()) {
+			try {
+				BufferedReader buf = new BufferedReader(new FileReader(status));
+				try {
+					String l;
+					while ((l = buf.readLine()) != null) {
+						if (l.startsWith("VmHWM:"))
+							return Long.parseLong(l.split("\\s+")[1]) * 1024;
+					}
+				} finally {
+					buf.close();
+				}
+			} catch (IOException | NumberFormatException e) {
+				// falling back to heap statistics
+			}
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+	}
+
+	// returns {wall time ns, peak RSS bytes, gc time ms, gc count} or null if the probed process did not terminate normally
+	public static long[] readResult(File resultFile) throws IOException {
+		if (!resultFile.exists())
+			return null;
+		BufferedReader buf = new BufferedReader(new FileReader(resultFile));
+		try {
+			String l = buf.readLine();
+			if (l == null)
+				return null;
+			String[] split = l.trim().split(" ");
+			long[] result = new long[split.length];
+			for (int i = 0; i < split.length; i++)
+				result[i] = Long.parseLong(split[i]);
+			return result;
+		} finally {
+			buf.close();
+		}
+	}
+
+}
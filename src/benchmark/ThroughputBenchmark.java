@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+// end-to-end throughput of MainConverter (file and stdin mode) and MainMerger on generated input, each run in its own JVM
+public class ThroughputBenchmark {
+
+	public static final String[] MODES = { "file", "stdin", "merge" };
+
+	private DataGenerator generator;
+	private File workFolder;
+	private int cores, numOfBatches;
+	private boolean shuffle;
+	private ArrayList<String> jvmArgs, converterArgs;
+
+	private File readFile, mafFile, mergeFolder;
+
+	public ThroughputBenchmark(DataGenerator generator, boolean shuffle, File workFolder, int cores, int numOfBatches, ArrayList<String> jvmArgs,
+			ArrayList<String> converterArgs) {
+		this.generator = generator;
+		this.shuffle = shuffle;
+		this.workFolder = workFolder;
+		this.cores = cores;
+		this.numOfBatches = numOfBatches;
+		this.jvmArgs = jvmArgs;
+		this.converterArgs = converterArgs;
+	}
+
+	public void generateInput(boolean withBatches) throws IOException, InterruptedException {
+
+		readFile = new File(workFolder, "reads.fastq");
+		mafFile = new File(workFolder, "alignments.maf");
+		System.out.println("Generating " + generator.getNumOfReads() + " reads and " + generator.getNumOfAlignments() + " alignments in "
+				+ workFolder.getAbsolutePath() + "...");
+		generator.write(mafFile, readFile);
+
+		if (!withBatches)
+			return;
+
+		// converting each share of the alignments into a batch DAA file for merging
+		System.out.println("Generating " + numOfBatches + " batch DAA files...");
+		mergeFolder = new File(workFolder, "batches");
+		mergeFolder.mkdirs();
+		File[] batchMafFiles = new File[numOfBatches];
+		for (int i = 0; i < numOfBatches; i++)
+			batchMafFiles[i] = new File(workFolder, "batch_" + i + ".maf");
+		generator.writeMaf(batchMafFiles);
+		for (int i = 0; i < numOfBatches; i++) {
+			ArrayList<String> args = new ArrayList<String>(Arrays.asList("-i", batchMafFiles[i].getAbsolutePath(), "-r", readFile.getAbsolutePath(),
+					"-o", new File(mergeFolder, "batch_" + i + ".daa").getAbsolutePath(), "-p", String.valueOf(cores), "-t",
+					workFolder.getAbsolutePath()));
+			if (shuffle)
+				args.add("-es");
+			if (runProcess("startUp.MainConverter", args, null, "batch_" + i) == null)
+				throw new IOException("conversion of batch " + i + " failed, see " + new File(workFolder, "batch_" + i + ".log"));
+			batchMafFiles[i].delete();
+		}
+
+	}
+
+	// returns the measured statistics as JSON object
+	public String run(String mode, int repetition) throws IOException, InterruptedException {
+
+		String name = mode + "_" + repetition;
+		File daaFile = new File(workFolder, name + ".daa");
+		String mainClass = "startUp.MainConverter";
+		File stdin = null;
+		long inputBytes;
+		ArrayList<String> args = new ArrayList<String>();
+		switch (mode) {
+		case "file":
+		case "stdin":
+			if (mode.equals("file"))
+				args.addAll(Arrays.asList("-i", mafFile.getAbsolutePath()));
+			else
+				stdin = mafFile;
+			args.addAll(Arrays.asList("-r", readFile.getAbsolutePath(), "-o", daaFile.getAbsolutePath(), "-p", String.valueOf(cores), "-t",
+					workFolder.getAbsolutePath()));
+			if (shuffle)
+				args.add("-es");
+			args.addAll(converterArgs);
+			inputBytes = mafFile.length();
+			break;
+		case "merge":
+			mainClass = "startUp.MainMerger";
+			args.addAll(Arrays.asList("-f", mergeFolder.getAbsolutePath(), "-q", readFile.getAbsolutePath(), "-d", daaFile.getAbsolutePath(), "-p",
+					String.valueOf(cores)));
+			inputBytes = 0;
+			for (File f : mergeFolder.listFiles())
+				inputBytes += f.length();
+			break;
+		default:
+			throw new IllegalArgumentException("unknown mode " + mode);
+		}
+
+		System.out.println("Running " + mode + " mode (repetition " + repetition + ")...");
+		long[] probe = runProcess(mainClass, args, stdin, name);
+		StringBuilder json = new StringBuilder();
+		json.append(String.format(Locale.US, "{\"mode\": \"%s\", \"repetition\": %d, ", mode, repetition));
+		if (probe == null) {
+			json.append("\"error\": \"process failed, see " + name + ".log\"}");
+			return json.toString();
+		}
+		double seconds = probe[0] / 1e9;
+		json.append(String.format(Locale.US, "\"wallSeconds\": %.3f, \"readsPerSecond\": %.1f, \"alignmentsPerSecond\": %.1f, ", seconds,
+				generator.getNumOfReads() / seconds, generator.getNumOfAlignments() / seconds));
+		json.append(String.format(Locale.US, "\"inputBytes\": %d, \"mbPerSecond\": %.2f, \"outputBytes\": %d, ", inputBytes,
+				inputBytes / (1024. * 1024.) / seconds, daaFile.length()));
+		json.append(String.format(Locale.US, "\"peakRssMB\": %.1f, \"gcTimeMs\": %d, \"gcCount\": %d}", probe[1] / (1024. * 1024.), probe[2], probe[3]));
+		System.out.println(String.format(Locale.US, "%.2fs, %.0f reads/s, %.0f alignments/s, %.1f MB/s, peak RSS %.0f MB, GC %d ms", seconds,
+				generator.getNumOfReads() / seconds, generator.getNumOfAlignments() / seconds, inputBytes / (1024. * 1024.) / seconds,
+				probe[1] / (1024. * 1024.), probe[2]));
+
+		daaFile.delete();
+		return json.toString();
+
+	}
+
+	// runs the main class in a probed JVM, returns the probe statistics or null if the process failed
+	private long[] runProcess(String mainClass, ArrayList<String> args, File stdin, String name) throws IOException, InterruptedException {
+
+		File resultFile = new File(workFolder, name + ".probe");
+		File logFile = new File(workFolder, name + ".log");
+		resultFile.delete();
+
+		ArrayList<String> cmd = new ArrayList<String>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+		cmd.addAll(jvmArgs);
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(ProcessProbe.class.getName());
+		cmd.add(resultFile.getAbsolutePath());
+		cmd.add(mainClass);
+		cmd.addAll(args);
+
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(logFile);
+		if (stdin != null)
+			pb.redirectInput(stdin);
+		int exitCode = pb.start().waitFor();
+
+		long[] probe = ProcessProbe.readResult(resultFile);
+		resultFile.delete();
+		return exitCode == 0 ? probe : null;
+
+	}
+
+	public void deleteFiles(boolean withLogs) {
+		if (mergeFolder != null) {
+			for (File f : mergeFolder.listFiles())
+				f.delete();
+			mergeFolder.delete();
+		}
+		readFile.delete();
+		mafFile.delete();
+		if (withLogs) {
+			for (File f : workFolder.listFiles()) {
+				if (f.getName().endsWith(".log"))
+					f.delete();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package daa.reader;
+
+import java.util.Arrays;
+
+import util.AA_Alphabet;
+import util.CodonTranslator;
+
+// rebuilds the two alignment rows of a hit into reusable buffers, one renderer per thread
+public class AlignmentRenderer {
+
+	private static final char[] aaChars = AA_Alphabet.getAaString().toCharArray();
+	private static final ThreadLocal<AlignmentRenderer> renderers = new ThreadLocal<AlignmentRenderer>() {
+		@Override
+		protected AlignmentRenderer initialValue() {
+			return new AlignmentRenderer();
+		}
+	};
+
+	private char[] query = new char[256], ref = new char[256];
+	private int length;
+
+	public static AlignmentRenderer get() {
+		return renderers.get();
+	}
+
+	// querySequence holds the unpacked base codes of the whole read, queryStart refers to the forward strand
+	public void render(byte[] querySequence, int queryStart, boolean reverse, byte[] editOperations, int numOfEditOperations) {
+
+		length = 0;
+		int q = 0;
+		for (int k = 0; k < numOfEditOperations; k++) {
+			int editOp = editOperations[k] & 0xFF;
+			switch (editOp >>> 6) {
+			case (0): // handling match
+				for (int i = 0; i < (editOp & 63); i++) {
+					char aa = translate(querySequence, queryStart, reverse, q);
+					append(aa, aa);
+					q += 3;
+				}
+				break;
+			case (1): // handling insertion
+				for (int i = 0; i < (editOp & 63); i++) {
+					append(translate(querySequence, queryStart, reverse, q), '-');
+					q += 3;
+				}
+				break;
+			case (2): // handling deletion
+				append('-', aaChars[editOp & 63]);
+				break;
+			case (3): // handling substitution
+				char c = aaChars[editOp & 63];
+				if (c == '/') {
+					append('/', '-');
+					q -= 1;
+				} else if (c == '\\') {
+					append('\\', '-');
+					q += 1;
+				} else {
+					append(translate(querySequence, queryStart, reverse, q), c);
+					q += 3;
+				}
+				break;
+			}
+		}
+
+	}
+
+	private char translate(byte[] querySequence, int queryStart, boolean reverse, int q) {
+		if (!reverse) {
+			int p = queryStart + q;
+			if (p < 0 || p + 3 > querySequence.length)
+				return 'X';
+			return CodonTranslator.translateCodon(querySequence[p], querySequence[p + 1], querySequence[p + 2]);
+		}
+		// walking down the forward strand while complementing yields the reverse complement
+		int p = queryStart - q;
+		if (p - 2 < 0 || p >= querySequence.length)
+			return 'X';
+		return CodonTranslator.translateCodon(complement(querySequence[p]), complement(querySequence[p - 1]), complement(querySequence[p - 2]));
+	}
+
+	private static int complement(byte code) {
+		return code < 4 ? 3 - code : code;
+	}
+
+	private void append(char q, char r) {
+		if (length == query.length) {
+			query = Arrays.copyOf(query, 2 * length);
+			ref = Arrays.copyOf(ref, 2 * length);
+		}
+		query[length] = q;
+		ref[length] = r;
+		length++;
+	}
+
+	public char[] getQuery() {
+		return query;
+	}
+
+	public char[] getRef() {
+		return ref;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+}
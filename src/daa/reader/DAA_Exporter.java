@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package daa.reader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DAA_Exporter {
+
+	public enum Format {
+		MAF, TAB
+	}
+
+	private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+	private DAA_Header header;
+	private Format format;
+
+	private long maxProgress;
+	private int lastProgress = 0;
+
+	public DAA_Exporter(File daaFile, Format format) {
+		this.header = new DAA_Header(daaFile);
+		this.header.loadAllReferences();
+		this.format = format;
+	}
+
+	// returns the number of exported alignments, or -1 if the export failed
+	public long run(File daaFile, File outFile, int cores) {
+
+		long time = System.currentTimeMillis();
+		System.out.println("\nExporting " + daaFile.getName() + " to " + outFile.getName() + "...");
+
+		long records = header.getNumberOfQueryRecords();
+		maxProgress = records;
+		long hitCounter = 0;
+		boolean failed = false;
+		ExecutorService executor = Executors.newFixedThreadPool(cores);
+		try {
+
+			if (header.getLocationOfBlockInFile(header.getRefLengthsBlockIndex() + 1) != daaFile.length())
+				throw new IOException("incomplete DAA file " + daaFile.getAbsolutePath());
+
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(daaFile), CHUNK_SIZE));
+			FileOutputStream os = new FileOutputStream(outFile);
+			FileChannel out = os.getChannel();
+
+			try {
+
+				if (format == Format.MAF)
+					writeFully(out, getMafHeader().getBytes(StandardCharsets.ISO_8859_1));
+
+				// reading records into chunks which are rendered in parallel and written in order
+				long toSkip = header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex());
+				while (toSkip > 0)
+					toSkip -= is.skip(toSkip);
+				ArrayDeque<Future<Object[]>> pending = new ArrayDeque<Future<Object[]>>();
+				byte[] allocBytes = new byte[4];
+				ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+				long parsedRecords = 0;
+				for (long i = 0; i < records; i++) {
+
+					is.readFully(allocBytes);
+					int alloc = ByteBuffer.wrap(allocBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+					if (chunk.position() > 0 && chunk.remaining() < alloc + 4) {
+						pending.add(executor.submit(new ChunkRenderer(chunk)));
+						chunk = ByteBuffer.allocate(Math.max(CHUNK_SIZE, alloc + 4));
+					} else if (chunk.remaining() < alloc + 4)
+						chunk = ByteBuffer.allocate(alloc + 4);
+					chunk.put(allocBytes);
+					is.readFully(chunk.array(), chunk.position(), alloc);
+					chunk.position(chunk.position() + alloc);
+
+					while (pending.size() > 2 * cores || (!pending.isEmpty() && pending.peek().isDone())) {
+						Object[] result = pending.poll().get();
+						writeFully(out, (byte[]) result[0]);
+						hitCounter += (long) result[1];
+						parsedRecords += (int) result[2];
+						reportProgress(parsedRecords);
+					}
+
+				}
+				if (chunk.position() > 0)
+					pending.add(executor.submit(new ChunkRenderer(chunk)));
+				while (!pending.isEmpty()) {
+					Object[] result = pending.poll().get();
+					writeFully(out, (byte[]) result[0]);
+					hitCounter += (long) result[1];
+					parsedRecords += (int) result[2];
+					reportProgress(parsedRecords);
+				}
+
+			} finally {
+				is.close();
+				out.close();
+				os.close();
+			}
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			failed = true;
+		}
+		executor.shutdown();
+		reportFinish();
+
+		long runtime = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("Runtime: " + (runtime / 60) + "min " + (runtime % 60) + "s");
+
+		return failed ? -1 : hitCounter;
+
+	}
+
+	private String getMafHeader() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("# converted from DAA\n");
+		buf.append("# a=" + header.getGapOpen() + " b=" + header.getGapExtend() + "\n");
+		buf.append("# Reference sequences=" + header.getDbSeqs() + " normalized letters=" + header.getDbLetters() + "\n");
+		buf.append("# lambda=" + header.getLambda() + " K=" + header.getK() + "\n");
+		buf.append("#\n");
+		return buf.toString();
+	}
+
+	private void writeFully(FileChannel out, byte[] b) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(b);
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	private synchronized void reportProgress(long parsedRecords) {
+		int p = ((int) ((((double) parsedRecords / (double) maxProgress)) * 100) / 10) * 10;
+		if (p > lastProgress && p < 100) {
+			lastProgress = p;
+			System.out.print(p + "% ");
+		}
+	}
+
+	private void reportFinish() {
+		lastProgress = 0;
+		System.out.print(100 + "%\n");
+	}
+
+	public class ChunkRenderer implements Callable<Object[]> {
+
+		private ByteBuffer chunk;
+
+		public ChunkRenderer(ByteBuffer chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public Object[] call() throws IOException {
+
+			StringBuilder buf = new StringBuilder(chunk.position() * 2);
+			AlignmentRenderer renderer = AlignmentRenderer.get();
+			long hits = 0;
+			int records = 0;
+
+			ByteBuffer buffer = ByteBuffer.wrap(chunk.array(), 0, chunk.position()).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining()) {
+
+				int alloc = buffer.getInt();
+				int end = buffer.position() + alloc;
+				ByteBuffer record = ByteBuffer.wrap(chunk.array(), buffer.position(), alloc).slice().order(ByteOrder.LITTLE_ENDIAN);
+				buffer.position(end);
+				records++;
+
+				DAA_Hit hit = new DAA_Hit();
+				hit.parseQueryProperties(0, record, true, false);
+				while (record.position() < record.capacity()) {
+					hit.parseHitProperties(header, record, false);
+					hit.renderAlignment(renderer);
+					if (format == Format.MAF)
+						appendMaf(buf, hit, renderer);
+					else
+						appendTab(buf, hit, renderer);
+					hits++;
+				}
+
+			}
+
+			Object[] result = { buf.toString().getBytes(StandardCharsets.ISO_8859_1), hits, records };
+			return result;
+
+		}
+
+		private void appendMaf(StringBuilder buf, DAA_Hit hit, AlignmentRenderer renderer) {
+			boolean reverse = hit.getFrame() < 0;
+			int queryStart = reverse ? hit.getTotalQueryLength() - hit.getQueryStart() - 1 : hit.getQueryStart();
+			buf.append("a score=").append(hit.getRawScore()).append(" E=").append(formatEValue(hit)).append('\n');
+			buf.append("s ").append(hit.getReferenceName()).append(' ').append(hit.getRefStart()).append(' ').append(hit.getRefLength())
+					.append(" + ").append(hit.getTotalRefLength()).append(' ').append(renderer.getRef(), 0, renderer.getLength()).append('\n');
+			buf.append("s ").append(hit.getQueryName()).append(' ').append(queryStart).append(' ').append(hit.getQueryLength())
+					.append(reverse ? " - " : " + ").append(hit.getTotalQueryLength()).append(' ')
+					.append(renderer.getQuery(), 0, renderer.getLength()).append("\n\n");
+		}
+
+		private void appendTab(StringBuilder buf, DAA_Hit hit, AlignmentRenderer renderer) {
+
+			// counting identities, mismatches and gap openings over the rendered rows
+			char[] q = renderer.getQuery(), r = renderer.getRef();
+			int length = 0, identities = 0, mismatches = 0, gapOpens = 0;
+			boolean inGap = false;
+			for (int i = 0; i < renderer.getLength(); i++) {
+				if (q[i] == '/' || q[i] == '\\')
+					continue;
+				length++;
+				if (q[i] == '-' || r[i] == '-') {
+					if (!inGap)
+						gapOpens++;
+					inGap = true;
+					continue;
+				}
+				inGap = false;
+				if (q[i] == r[i])
+					identities++;
+				else
+					mismatches++;
+			}
+
+			int queryStart = hit.getQueryStart() + 1;
+			int queryEnd = hit.getFrame() > 0 ? hit.getQueryStart() + hit.getQueryLength() : hit.getQueryStart() - hit.getQueryLength() + 2;
+			double pident = length == 0 ? 0 : 100. * identities / length;
+			buf.append(hit.getQueryName()).append('\t').append(hit.getReferenceName()).append('\t')
+					.append(String.format(Locale.US, "%.1f", pident)).append('\t').append(length).append('\t').append(mismatches).append('\t')
+					.append(gapOpens).append('\t').append(queryStart).append('\t').append(queryEnd).append('\t').append(hit.getRefStart() + 1)
+					.append('\t').append(hit.getRefStart() + hit.getRefLength()).append('\t').append(formatEValue(hit)).append('\t')
+					.append(String.format(Locale.US, "%.1f", computeBitScore(hit.getRawScore()))).append('\n');
+
+		}
+
+		private String formatEValue(DAA_Hit hit) {
+			double dbLetters = header.getDbLetters().doubleValue();
+			double eValue = header.getK() * dbLetters * (hit.getTotalQueryLength() / 3.) * Math.exp(-header.getLambda() * hit.getRawScore());
+			return String.format(Locale.US, "%.2g", eValue);
+		}
+
+		private double computeBitScore(int rawScore) {
+			return (header.getLambda() * rawScore - Math.log(header.getK())) / Math.log(2.);
+		}
+
+	}
+
+}
@@ -28,7 +28,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 
-import maf.MAF_StreamConverter.SubjectEntry;
 import util.SparseString;
 
 public class DAA_Header {
@@ -165,7 +164,7 @@ public class DAA_Header {
 						referenceLocations[i >>> referenceLocationChunkBits] = raf.getFilePointer();
 					}
 					int c = raf.read();
-					while (c != 0)
+					while (c > 0)
 						c = raf.read();
 				}
 
@@ -222,6 +221,14 @@ public class DAA_Header {
 		return alignmentsBlockIndex;
 	}
 
+	public int getRefNamesBlockIndex() {
+		return refNamesBlockIndex;
+	}
+
+	public int getRefLengthsBlockIndex() {
+		return refLengthsBlockIndex;
+	}
+
 	public long getLocationOfBlockInFile(int blockIndex) {
 		long location = headerSize;
 		for (int i = 0; i < blockIndex; i++)
@@ -253,6 +260,10 @@ public class DAA_Header {
 		return headerSize;
 	}
 
+	public long getDbSeqs() {
+		return dbSeqs;
+	}
+
 	public long getDbSeqsUsed() {
 		return dbSeqsUsed;
 	}
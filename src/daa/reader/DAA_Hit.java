@@ -21,10 +21,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Vector;
+import java.util.Arrays;
 
 import util.AA_Alphabet;
-import util.CodonTranslator;
 
 public class DAA_Hit {
 
@@ -37,6 +36,7 @@ public class DAA_Hit {
 	private int queryLength;
 
 	private byte[] packedQuerySequence;
+	private boolean queryHasN;
 	private byte[] totalQuerySequence;
 
 	// reference properties
@@ -51,9 +51,13 @@ public class DAA_Hit {
 	private int rawScore, bitScore;
 	private int frame;
 	private ArrayList<Byte> editByteOperations;
-	private Integer[] editOperations;
+	private byte[] editOperations = new byte[32];
+	private int numOfEditOperations;
 	private String[] alignment;
 
+	private static final char[] aaChars = AA_Alphabet.getAaString().toCharArray();
+	private static final char[] sigma = { 'A', 'C', 'G', 'T', 'N' };
+
 	public void parseQueryProperties(long filePointer, ByteBuffer buffer, boolean parseAlignment, boolean storePackedDNASequence) {
 
 		this.filePointer = filePointer;
@@ -69,6 +73,7 @@ public class DAA_Hit {
 		int flags = buffer.get() & 0xFF;
 		boolean hasN = ((flags & 1) == 1);
 		int bits = hasN ? 3 : 2;
+		queryHasN = hasN;
 
 		buffer.order(ByteOrder.LITTLE_ENDIAN);
 		byte[] packed = new byte[(totalQueryLength * bits + 7) / 8];
@@ -99,9 +104,8 @@ public class DAA_Hit {
 
 		queryLength = 0;
 		refLength = 0;
-		Vector<Integer> v = new Vector<Integer>();
-		ArrayList<Byte> vByte = new ArrayList<Byte>();
-		String aaString = AA_Alphabet.getAaString();
+		numOfEditOperations = 0;
+		editByteOperations = null;
 		byte opByte = buffer.get();
 		int op = opByte & 0xFF;
 		while (op != 0) {
@@ -117,7 +121,7 @@ public class DAA_Hit {
 				refLength += 1;
 				break;
 			case (3): // handling substitution
-				char c = aaString.charAt(op & 63);
+				char c = aaChars[op & 63];
 				if (c == '/') {
 					queryLength -= 1;
 				} else if (c == '\\') {
@@ -129,13 +133,12 @@ public class DAA_Hit {
 				break;
 
 			}
-			v.add(op);
-			vByte.add(opByte);
+			if (numOfEditOperations == editOperations.length)
+				editOperations = Arrays.copyOf(editOperations, 2 * numOfEditOperations);
+			editOperations[numOfEditOperations++] = opByte;
 			opByte = buffer.get();
 			op = opByte & 0xFF;
 		}
-		editOperations = v.toArray(new Integer[v.size()]);
-		editByteOperations = vByte;
 
 		if (parseAlignment)
 			alignment = computeAlignment();
@@ -143,61 +146,15 @@ public class DAA_Hit {
 	}
 
 	public String[] computeAlignment() {
-
-		StringBuilder[] bufs = { new StringBuilder(), new StringBuilder() };
-
-		// String aaString = "ARNDCQEGHILKMFPSTWYVBJZX*";
-		String aaString = AA_Alphabet.getAaString();
-		String queryDNA = getQueryDNA();
-		CodonTranslator aaTranslator = new CodonTranslator();
-
-		int q = 0;
-		for (int editOp : editOperations) {
-			switch (editOp >>> 6) {
-			case (0): // handling match
-				for (int i = 0; i < (editOp & 63); i++) {
-					char aa = aaTranslator.translateCodon(queryDNA.substring(q, q + 3));
-					bufs[0].append(aa);
-					bufs[1].append(aa);
-					q += 3;
-				}
-				break;
-			case (1): // handling insertion
-				for (int i = 0; i < (editOp & 63); i++) {
-					char aa = aaTranslator.translateCodon(queryDNA.substring(q, q + 3));
-					bufs[0].append(aa);
-					bufs[1].append('-');
-					q += 3;
-				}
-				break;
-			case (2): // handling deletion
-				char c = aaString.charAt(editOp & 63);
-				bufs[0].append('-');
-				bufs[1].append(c);
-				break;
-			case (3): // handling substitution
-				c = aaString.charAt(editOp & 63);
-				if (c == '/') {
-					bufs[0].append("/");
-					bufs[1].append("-");
-					q -= 1;
-				} else if (c == '\\') {
-					bufs[0].append("\\");
-					bufs[1].append("-");
-					q += 1;
-				} else {
-					char aa = aaTranslator.translateCodon(queryDNA.substring(q, q + 3));
-					bufs[0].append(aa);
-					bufs[1].append(c);
-					q += 3;
-				}
-				break;
-			}
-		}
-
-		String[] alignment = { bufs[0].toString(), bufs[1].toString() };
+		AlignmentRenderer renderer = AlignmentRenderer.get();
+		renderAlignment(renderer);
+		String[] alignment = { new String(renderer.getQuery(), 0, renderer.getLength()), new String(renderer.getRef(), 0, renderer.getLength()) };
 		return alignment;
+	}
 
+	// renders the alignment rows into the buffers of the given renderer without creating any strings
+	public void renderAlignment(AlignmentRenderer renderer) {
+		renderer.render(totalQuerySequence, queryStart, frame < 0, editOperations, numOfEditOperations);
 	}
 
 	public int readPacked(int kind, ByteBuffer buffer) {
@@ -213,30 +170,32 @@ public class DAA_Hit {
 		}
 	}
 
-	private String reverseComplementString(String s) {
-		String rev = new StringBuilder(s).reverse().toString();
-		String revComp = rev.replace("A", "t").replace("T", "a").replace("C", "g").replace("G", "c").toUpperCase();
-		return revComp;
-	}
-
 	public String getQueryDNA() {
-		String querySeq = getTotalQueryDNA();
-		querySeq = frame > 0 ? querySeq : reverseComplementString(querySeq);
-		int start = frame > 0 ? queryStart : totalQueryLength - queryStart - 1;
-		String queryDNA = (String) querySeq.subSequence(start, start + queryLength);
-		return queryDNA;
+		char[] dna = new char[queryLength];
+		for (int i = 0; i < queryLength; i++) {
+			if (frame > 0)
+				dna[i] = sigma[totalQuerySequence[queryStart + i]];
+			else {
+				byte code = totalQuerySequence[queryStart - i];
+				dna[i] = sigma[code < 4 ? 3 - code : code];
+			}
+		}
+		return new String(dna);
 	}
 
 	public byte[] getPackedQuerySequence() {
 		return packedQuerySequence;
 	}
 
+	public boolean queryHasN() {
+		return queryHasN;
+	}
+
 	public String getTotalQueryDNA() {
-		char[] sigma = { 'A', 'C', 'G', 'T' };
-		StringBuilder buf = new StringBuilder();
-		for (byte a : totalQuerySequence)
-			buf.append(sigma[a]);
-		return buf.toString();
+		char[] dna = new char[totalQuerySequence.length];
+		for (int i = 0; i < dna.length; i++)
+			dna[i] = sigma[totalQuerySequence[i]];
+		return new String(dna);
 	}
 
 	public static String toStringUnpacked(byte[] unpacked) {
@@ -319,9 +278,18 @@ public class DAA_Hit {
 	}
 
 	public ArrayList<Byte> getEditByteOperations() {
+		if (editByteOperations == null) {
+			editByteOperations = new ArrayList<Byte>(numOfEditOperations);
+			for (int i = 0; i < numOfEditOperations; i++)
+				editByteOperations.add(editOperations[i]);
+		}
 		return editByteOperations;
 	}
 
+	public byte[] getEditOperations() {
+		return Arrays.copyOf(editOperations, numOfEditOperations);
+	}
+
 	public int getTotalQueryLength() {
 		return totalQueryLength;
 	}
@@ -337,6 +305,7 @@ public class DAA_Hit {
 		queryStart = hit.getQueryStart();
 		queryLength = hit.getQueryLength();
 		packedQuerySequence = hit.getPackedQuerySequence();
+		queryHasN = hit.queryHasN();
 	}
 
 }
@@ -17,13 +17,18 @@
 
 package daa.reader;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
@@ -31,7 +36,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
-import hits.Hit;
 import hits.ReadHits;
 import util.SparseString;
 
@@ -40,7 +44,10 @@ public class DAA_Reader {
 	private File daaFile;
 	private boolean verbose = false;
 
+	private static final int INDEX_STRIDE = 1024;
+
 	private DAA_Header header;
+	private RecordIndex recordIndex;
 	private CountDownLatch latch;
 	private ConcurrentHashMap<String, ReadHits> readMap;
 
@@ -72,13 +79,13 @@ public class DAA_Reader {
 		allParsedRecords = new AtomicLong(0);
 		numOfRecords = header.getNumberOfQueryRecords();
 
-		int chunk = (int) Math.ceil((double) header.getNumberOfQueryRecords() / (double) cores);
+		// splitting the alignment block into byte ranges of roughly equal size
 		Vector<Thread> allParser = new Vector<Thread>();
-		for (int l = 0; l < header.getNumberOfQueryRecords(); l += chunk) {
-			int r = (l + chunk) < header.getNumberOfQueryRecords() ? l + chunk : (int) header.getNumberOfQueryRecords();
-			int[] bounds = { l, r };
-			DAA_Parser parser = new DAA_Parser(bounds);
-			allParser.add(parser);
+		try {
+			for (long[] range : partitionRecords(cores))
+				allParser.add(new DAA_Parser(range));
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
 		latch = new CountDownLatch(allParser.size());
@@ -102,6 +109,71 @@ public class DAA_Reader {
 
 	}
 
+	// returns ranges {first record, end record, file pointer of first record} covering roughly equal numbers of bytes
+	private ArrayList<long[]> partitionRecords(int parts) throws IOException {
+		RecordIndex index = getIndex();
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		if (index.size == 0)
+			return ranges;
+		long blockStart = index.offsets[0];
+		long target = Math.max(1, (index.blockEnd - blockStart) / Math.max(1, parts));
+		int from = 0;
+		for (int k = 1; k <= parts && from < index.size; k++) {
+			int to = from + 1;
+			while (to < index.size && (k == parts || index.offsets[to] - blockStart < target * k))
+				to++;
+			long[] range = { (long) from * INDEX_STRIDE, Math.min((long) to * INDEX_STRIDE, index.numOfRecords), index.offsets[from] };
+			ranges.add(range);
+			from = to;
+		}
+		return ranges;
+	}
+
+	// the index lives as long as this reader and is rebuilt once the file has been rewritten in any way
+	private synchronized RecordIndex getIndex() throws IOException {
+		RecordIndex index = recordIndex;
+		if (index == null || index.lastModified != daaFile.lastModified() || index.length != daaFile.length()
+				|| index.numOfRecords != header.getNumberOfQueryRecords()) {
+			index = new RecordIndex();
+			recordIndex = index;
+		}
+		return index;
+	}
+
+	// file pointers of every INDEX_STRIDE-th query record, collected in one pass over the record sizes
+	private class RecordIndex {
+
+		private long lastModified, length, numOfRecords, blockEnd;
+		private long[] offsets;
+		private int size = 0;
+
+		public RecordIndex() throws IOException {
+			lastModified = daaFile.lastModified();
+			length = daaFile.length();
+			numOfRecords = header.getNumberOfQueryRecords();
+			offsets = new long[(int) ((numOfRecords + INDEX_STRIDE - 1) / INDEX_STRIDE)];
+			long filePointer = header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex());
+			FileInputStream fis = new FileInputStream(daaFile);
+			try {
+				fis.getChannel().position(filePointer);
+				DataInputStream is = new DataInputStream(new BufferedInputStream(fis, 1024 * 1024));
+				for (long i = 0; i < numOfRecords; i++) {
+					if (i % INDEX_STRIDE == 0)
+						offsets[size++] = filePointer;
+					int alloc = Integer.reverseBytes(is.readInt());
+					long toSkip = alloc;
+					while (toSkip > 0)
+						toSkip -= is.skip(toSkip);
+					filePointer += 4 + alloc;
+				}
+			} finally {
+				fis.close();
+			}
+			blockEnd = filePointer;
+		}
+
+	}
+
 	private synchronized void reportProgress(int p) {
 		p = ((int) Math.floor((double) p / 10.)) * 10;
 		if (p != 100 && p != last_p && p % 1 == 0) {
@@ -110,17 +182,13 @@ public class DAA_Reader {
 		}
 	}
 
-	private synchronized void addHits(HashMap<String, ReadHits> localReadMap) {
-		for (String read_id : localReadMap.keySet()) {
-			if (!readMap.containsKey(read_id))
-				readMap.put(read_id, new ReadHits());
-			ReadHits hits = localReadMap.get(read_id);
-			for (SparseString gi : hits.getHitMap().keySet()) {
-				for (int frame : hits.getHitMap().get(gi).keySet()) {
-					for (Hit h : hits.getHitMap().get(gi).get(frame))
-						readMap.get(read_id).add(h, gi, frame);
-				}
-			}
+	// merges the hits of one parser, reads new to the shared map are taken over without copying
+	private void addHits(HashMap<String, ReadHits> localReadMap) {
+		for (Map.Entry<String, ReadHits> e : localReadMap.entrySet()) {
+			ReadHits hits = readMap.putIfAbsent(e.getKey(), e.getValue());
+			if (hits == null)
+				continue;
+			hits.addAll(e.getValue());
 		}
 	}
 
@@ -182,93 +250,87 @@ public class DAA_Reader {
 
 	public class DAA_Parser extends Thread {
 
-		private int[] bounds;
+		private long[] range;
 
-		public DAA_Parser(int[] queryRecordsBounds) {
-			this.bounds = queryRecordsBounds;
+		public DAA_Parser(long[] range) {
+			this.range = range;
 		}
 
 		public void run() {
 
 			HashMap<String, ReadHits> localReadMap = new HashMap<String, ReadHits>();
+			SparseString[] gis = new SparseString[(int) header.getDbSeqsUsed()];
 
 			try {
 
-				RandomAccessFile raf = new RandomAccessFile(daaFile, "r");
+				FileInputStream fis = new FileInputStream(daaFile);
 
 				try {
 
-					raf.seek(header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex()));
-					for (int i = 0; i < header.getNumberOfQueryRecords(); i++) {
+					// reading the records of the range sequentially into a reused buffer
+					long filePointer = range[2];
+					fis.getChannel().position(filePointer);
+					DataInputStream is = new DataInputStream(new BufferedInputStream(fis, 1024 * 1024));
+					byte[] record = new byte[1024];
+					int parsedRecords = 0;
+					for (long i = range[0]; i < range[1]; i++) {
 
 						DAA_Hit hit = new DAA_Hit();
 
-						long filePointer = raf.getFilePointer();
-						ByteBuffer buffer = ByteBuffer.allocate(4);
-						buffer.order(ByteOrder.LITTLE_ENDIAN);
-						raf.read(buffer.array());
-						int alloc = buffer.getInt();
-
-						ByteBuffer hitBuffer = ByteBuffer.allocate(alloc);
+						int alloc = Integer.reverseBytes(is.readInt());
+						if (alloc > record.length)
+							record = new byte[Math.max(alloc, 2 * record.length)];
+						is.readFully(record, 0, alloc);
+						ByteBuffer hitBuffer = ByteBuffer.wrap(record, 0, alloc);
 						hitBuffer.order(ByteOrder.LITTLE_ENDIAN);
-						raf.read(hitBuffer.array());
-
-						if (i >= bounds[0] && i < bounds[1]) {
-
-							// parsing query properties
-							hit.parseQueryProperties(filePointer, hitBuffer, false, false);
-
-							while (hitBuffer.position() < hitBuffer.capacity()) {
-
-								int accessPoint = hitBuffer.position();
-
-								// parsing match properties
-								hit.parseHitProperties(header, hitBuffer, false);
 
-								int ref_start = hit.getRefStart() + 1;
-								int ref_end = ref_start - 1 + hit.getRefLength();
-								int bitScore = hit.getBitScore();
-								int rawScore = hit.getRawScore();
-								long pointer = hit.getFilePointer();
-								int query_start = hit.getQueryStart() + 1;
-								int ref_length = hit.getTotalRefLength();
-								int query_length = hit.getQueryLength() / 3;
-
-								int frame = hit.getFrame();
-								SparseString gi = new SparseString(hit.getReferenceName().split(" ")[0]);
-								int subjectID = hit.getSubjectID();
-
-								// parsing query name
-								String queryName = hit.getQueryName();
-								String[] id_split = mySplit(queryName, ':');
-								String read_id = id_split[0];
-
-								// initializing hit
-								Hit h = new Hit(ref_start, ref_end, bitScore, rawScore, pointer, accessPoint, query_start, ref_length, query_length,
-										subjectID);
-								h.setFrame(frame);
-
-								// storing hit
-								if (!localReadMap.containsKey(read_id))
-									localReadMap.put(read_id, new ReadHits());
-								localReadMap.get(read_id).add(h, gi, frame);
-
-							}
-
-							if (i != 0 && i % 1000 == 0) {
-								int p = (int) Math.round(((double) allParsedRecords.addAndGet(1000) / (double) numOfRecords) * 100.);
-								reportProgress(p);
+						// parsing query properties
+						hit.parseQueryProperties(filePointer, hitBuffer, false, false);
+						filePointer += 4 + alloc;
+
+						// parsing query name
+						String queryName = hit.getQueryName();
+						String[] id_split = mySplit(queryName, ':');
+						String read_id = id_split[0];
+						ReadHits readHits = null;
+
+						while (hitBuffer.hasRemaining()) {
+
+							// parsing match properties
+							hit.parseHitProperties(header, hitBuffer, false);
+
+							int ref_start = hit.getRefStart() + 1;
+							int rawScore = hit.getRawScore();
+							int query_start = hit.getQueryStart() + 1;
+
+							int frame = hit.getFrame();
+							int subjectID = hit.getSubjectID();
+							if (gis[subjectID] == null)
+								gis[subjectID] = new SparseString(hit.getReferenceName().split(" ")[0]);
+							SparseString gi = gis[subjectID];
+
+							// storing hit
+							if (readHits == null) {
+								readHits = localReadMap.get(read_id);
+								if (readHits == null) {
+									readHits = new ReadHits();
+									localReadMap.put(read_id, readHits);
+								}
 							}
+							readHits.add(ref_start, query_start, rawScore, subjectID, gi, frame);
 
 						}
 
-						if (i >= bounds[1])
-							break;
+						if (++parsedRecords % 1000 == 0) {
+							int p = (int) Math.round(((double) allParsedRecords.addAndGet(1000) / (double) numOfRecords) * 100.);
+							reportProgress(p);
+						}
 
 					}
+					allParsedRecords.addAndGet(parsedRecords % 1000);
 
 				} finally {
-					raf.close();
+					fis.close();
 				}
 
 			} catch (Exception e) {
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package daa.writer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import daa.reader.DAA_Header;
+import util.SparseString;
+
+// appends the query records of a DAA file to another one, only the appended records and the reference blocks are written
+public class DAA_Appender {
+
+	private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+	// existing references keep their IDs, references new to daaFile are appended to its reference table
+	public static long append(File daaFile, File newDaaFile, boolean verbose) throws IOException {
+
+		long time = System.currentTimeMillis();
+		System.out.println("\nAppending " + newDaaFile.getName() + " to " + daaFile.getName() + "...");
+
+		DAA_Header header = new DAA_Header(daaFile);
+		DAA_Header newHeader = new DAA_Header(newDaaFile);
+		if (!isComplete(header, daaFile))
+			throw new IOException("incomplete DAA file " + daaFile.getAbsolutePath());
+		if (!isComplete(newHeader, newDaaFile))
+			throw new IOException("conversion into " + newDaaFile.getName() + " did not complete");
+		header.loadAllReferences();
+		newHeader.loadAllReferences();
+		if (header.getGapOpen() != newHeader.getGapOpen() || header.getGapExtend() != newHeader.getGapExtend() || header.getK() != newHeader.getK()
+				|| header.getLambda() != newHeader.getLambda())
+			System.err.println("WARNING: scoring parameters of " + newDaaFile.getName() + " differ from " + daaFile.getName());
+
+		// merging reference tables
+		ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>();
+		HashMap<SparseString, Integer> subjectIDs = new HashMap<SparseString, Integer>();
+		for (int i = 0; i < header.getDbSeqsUsed(); i++) {
+			Object[] subject = { new SparseString(new String(header.getReferenceName(i))), header.getRefLength(i) };
+			subjectIDs.put((SparseString) subject[0], i);
+			subjectInfos.add(subject);
+		}
+		int[] remap = new int[(int) newHeader.getDbSeqsUsed()];
+		for (int i = 0; i < remap.length; i++) {
+			SparseString name = new SparseString(new String(newHeader.getReferenceName(i)));
+			Integer id = subjectIDs.get(name);
+			if (id == null) {
+				id = subjectInfos.size();
+				Object[] subject = { name, newHeader.getRefLength(i) };
+				subjectIDs.put(name, id);
+				subjectInfos.add(subject);
+			}
+			remap[i] = id;
+		}
+		if (verbose)
+			System.out.println((subjectInfos.size() - header.getDbSeqsUsed()) + " of " + remap.length + " references are new");
+
+		// saving the header and the blocks behind the alignments which are restored if the append fails
+		long tailStart = header.getLocationOfBlockInFile(1) - 4;
+		byte[] headerBytes = readBytes(daaFile, 0, (int) header.getHeaderSize());
+		byte[] tailBytes = readBytes(daaFile, tailStart, (int) (daaFile.length() - tailStart));
+
+		long records = newHeader.getNumberOfQueryRecords();
+		long hitCounter = 0;
+		try {
+			hitCounter = copyRecords(daaFile, newDaaFile, newHeader, remap, subjectInfos);
+		} catch (Exception e) {
+			restore(daaFile, headerBytes, tailStart, tailBytes);
+			throw new IOException(daaFile.getName() + " restored after failed append: " + e.getMessage(), e);
+		}
+
+		if (verbose)
+			System.out.println(records + " query records with " + hitCounter + " alignments appended");
+		long runtime = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("Runtime: " + (runtime / 60) + "min " + (runtime % 60) + "s");
+
+		return hitCounter;
+
+	}
+
+	// copies records in chunks while remapping their subject IDs, fails on any error while writing
+	private static long copyRecords(File daaFile, File newDaaFile, DAA_Header newHeader, int[] remap, ArrayList<Object[]> subjectInfos)
+			throws Exception {
+		DAA_Writer writer = DAA_Writer.openForAppend(daaFile);
+		long records = newHeader.getNumberOfQueryRecords();
+		long hitCounter = 0;
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(newDaaFile), CHUNK_SIZE));
+		try {
+			long toSkip = newHeader.getLocationOfBlockInFile(newHeader.getAlignmentsBlockIndex());
+			while (toSkip > 0)
+				toSkip -= is.skip(toSkip);
+			ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			int chunkRecords = 0;
+			byte[] allocBytes = new byte[4];
+			for (long r = 0; r < records; r++) {
+				is.readFully(allocBytes);
+				int alloc = ByteBuffer.wrap(allocBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+				if (chunk.position() > 0 && chunk.remaining() < alloc + 4) {
+					writer.writeRecords(chunk.array(), chunk.position(), chunkRecords);
+					chunk.clear();
+					chunkRecords = 0;
+				}
+				if (chunk.capacity() < alloc + 4)
+					chunk = ByteBuffer.allocate(alloc + 4).order(ByteOrder.LITTLE_ENDIAN);
+				chunk.put(allocBytes);
+				int begin = chunk.position();
+				is.readFully(chunk.array(), begin, alloc);
+				hitCounter += RecordCopier.remapRecord(chunk, begin, alloc, remap);
+				chunk.position(begin + alloc);
+				chunkRecords++;
+				if (writer.getWriteError() != null)
+					throw writer.getWriteError();
+			}
+			if (chunk.position() > 0)
+				writer.writeRecords(chunk.array(), chunk.position(), chunkRecords);
+		} finally {
+			is.close();
+		}
+		if (writer.getWriteError() == null)
+			writer.writeEnd(subjectInfos);
+		if (writer.getWriteError() != null)
+			throw writer.getWriteError();
+		return hitCounter;
+	}
+
+	// the blocks listed in the header have to end exactly at the end of the file
+	private static boolean isComplete(DAA_Header header, File file) {
+		if (header.getAlignmentsBlockIndex() != 0 || header.getRefNamesBlockIndex() != 1 || header.getRefLengthsBlockIndex() != 2)
+			return false;
+		return header.getLocationOfBlockInFile(3) == file.length();
+	}
+
+	// cuts off everything appended and writes back the saved blocks and header
+	private static void restore(File daaFile, byte[] headerBytes, long tailStart, byte[] tailBytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(daaFile, "rw");
+		try {
+			raf.setLength(tailStart);
+			raf.seek(tailStart);
+			raf.write(tailBytes);
+			raf.seek(0);
+			raf.write(headerBytes);
+			raf.getFD().sync();
+		} catch (IOException e) {
+			throw new IOException("cannot restore " + daaFile.getAbsolutePath() + " after failed append (" + e.getMessage() + ")", e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] readBytes(File file, long pos, int len) throws IOException {
+		byte[] b = new byte[len];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(pos);
+			raf.readFully(b);
+		} finally {
+			raf.close();
+		}
+		return b;
+	}
+
+}
@@ -19,40 +19,95 @@ package daa.writer;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import daa.reader.DAA_Header;
 import hits.Hit;
 import hits.Hit.FrameDirection;
+import util.Metrics;
 import util.SparseString;
 
 public class DAA_Writer {
 
-	private static final HashMap<Character, Integer> nucToIndex;
-	static {
-		nucToIndex = new HashMap<Character, Integer>();
-		nucToIndex.put('A', 0);
-		nucToIndex.put('C', 1);
-		nucToIndex.put('G', 2);
-		nucToIndex.put('T', 3);
-	}
+	private static final int MIN_HITS_PER_SEGMENT = 1000;
+	private static final int RECORD_FLUSH_SIZE = 8 * 1024 * 1024;
+	private static final int HEADER_SIZE = 2448;
+
+	private static final LongAdder recordCounter = Metrics.counter("daa_writer.records");
+	private static final LongAdder alignmentCounter = Metrics.counter("daa_writer.alignments");
+	private static final Metrics.Timer encodeTimer = Metrics.timer("daa_writer.encode");
+	private static final Metrics.Timer writeTimer = Metrics.timer("daa_writer.write");
+
 	private AtomicLong queryRecords = new AtomicLong(0), aliBlockSize = new AtomicLong(0), refNamesBlockSize = new AtomicLong(0),
 			refLengthsBlockSize = new AtomicLong(0);
 
 	private File out;
+	private ExecutorService executor;
+	private MappedOutput mappedOutput;
+	private volatile Exception writeError;
 
 	public DAA_Writer(File out) {
 		this.out = out;
 	}
 
+	// reserves the DAA file for an alignment block of about the given size, which is then written through a memory-mapped window
+	public void preallocate(long expectedAliBlockSize) {
+		if (!MappedOutput.isSupported()) {
+			System.err.println("WARNING: preallocation is not supported on this platform, writing DAA-File without it");
+			return;
+		}
+		try {
+			mappedOutput = new MappedOutput(out, HEADER_SIZE + expectedAliBlockSize);
+		} catch (IOException e) {
+			writeError = e;
+			e.printStackTrace();
+		}
+	}
+
+	// returns the first error that occurred while writing, output written afterwards is incomplete
+	public Exception getWriteError() {
+		return writeError;
+	}
+
+	// continues an existing DAA file, its alignment block is kept while the trailing reference blocks are dropped and rewritten by writeEnd
+	public static DAA_Writer openForAppend(File out) throws IOException {
+		DAA_Header header = new DAA_Header(out);
+		if (header.getAlignmentsBlockIndex() != 0 || header.getRefNamesBlockIndex() != 1 || header.getRefLengthsBlockIndex() != 2)
+			throw new IOException("unsupported block layout of DAA file " + out.getAbsolutePath());
+		long aliBlockEnd = header.getLocationOfBlockInFile(1);
+		if (aliBlockEnd > out.length())
+			throw new IOException("truncated DAA file " + out.getAbsolutePath());
+		DAA_Writer writer = new DAA_Writer(out);
+		writer.queryRecords.set(header.getNumberOfQueryRecords());
+
+		// dropping the terminating zero of the alignment block which is written again by writeEnd
+		writer.aliBlockSize.set(aliBlockEnd - header.getHeaderSize() - 4);
+		RandomAccessFile raf = new RandomAccessFile(out, "rw");
+		try {
+			raf.setLength(aliBlockEnd - 4);
+		} finally {
+			raf.close();
+		}
+		return writer;
+	}
+
 	public void writeHeader(Long dbSeqs, BigInteger dbLetters, Integer gapOpen, Integer gapExtend, Double k, Double lambda) {
 
 		// filling long-section
@@ -120,100 +175,318 @@ public class DAA_Writer {
 	}
 
 	public void writeHits(ArrayList<Hit> hits) {
+		writeHits(hits, 1);
+	}
 
-		ArrayList<Byte> byteBuffer = new ArrayList<Byte>();
-		HashMap<String, byte[]> readIDToPackedSeq = new HashMap<String, byte[]>();
+	// encodes the query records of the given hits on up to the given number of threads and appends them in order
+	public void writeHits(ArrayList<Hit> hits, int cores) {
 
-		Vector<int[]> allocPairs = new Vector<int[]>();
-		String lastReadName = null;
-		int begin = -1, alloc = -1;
+		// collecting query record boundaries
+		ArrayList<Integer> recordStarts = new ArrayList<Integer>();
+		for (int i = 0; i < hits.size(); i++) {
+			if (i == 0 || !hits.get(i).getReadName().equals(hits.get(i - 1).getReadName()))
+				recordStarts.add(i);
+		}
+		if (recordStarts.isEmpty())
+			return;
+		long start = encodeTimer.start();
+
+		// splitting records into segments of roughly equal numbers of hits
+		int numOfSegments = Math.max(1, Math.min(cores, hits.size() / MIN_HITS_PER_SEGMENT));
+		ArrayList<SegmentEncoder> encoders = new ArrayList<SegmentEncoder>();
+		int from = 0;
+		for (int k = 1; k <= numOfSegments; k++) {
+			long target = (long) hits.size() * k / numOfSegments;
+			int to = from;
+			while (to < recordStarts.size() && (k == numOfSegments || recordStarts.get(to) < target))
+				to++;
+			if (to > from) {
+				int hitEnd = to < recordStarts.size() ? recordStarts.get(to) : hits.size();
+				encoders.add(new SegmentEncoder(hits, recordStarts.get(from), hitEnd));
+				from = to;
+			}
+		}
 
-		for (Hit h : hits) {
+		// nothing of the hits is written if any segment could not be encoded
+		if (!runInParallel(encoders, cores))
+			return;
+		encodeTimer.stop(start);
+
+		// writing segments in order
+		start = writeTimer.start();
+		ArrayList<byte[]> segments = new ArrayList<byte[]>();
+		long segmentsSize = 0;
+		for (SegmentEncoder encoder : encoders) {
+			segments.add(encoder.getSegment());
+			segmentsSize += encoder.getSegment().length;
+			queryRecords.getAndAdd(encoder.getNumOfRecords());
+			recordCounter.add(encoder.getNumOfRecords());
+		}
+		aliBlockSize.getAndAdd(segmentsSize);
+		writeInFile(segments);
+		writeTimer.stop(start);
+		writeTimer.addBytes(segmentsSize);
+		encodeTimer.addBytes(segmentsSize);
+		alignmentCounter.add(hits.size());
 
-			String readName = h.getReadName();
+	}
 
-			if (lastReadName == null || !h.getReadName().equals(lastReadName)) {
+	// appends already encoded query records, e.g. copied from another DAA file
+	public void writeRecords(byte[] records, int len, long numOfRecords) {
+		writeInFile(records, len, true);
+		aliBlockSize.getAndAdd(len);
+		queryRecords.getAndAdd(numOfRecords);
+		recordCounter.add(numOfRecords);
+	}
 
-				if (alloc != -1) {
-					alloc = byteBuffer.size() - 4 - begin;
-					int[] allocPair = { begin, alloc };
-					allocPairs.add(allocPair);
-				}
+	// appends encoded query records straight from the channel of another DAA file
+	public synchronized void transferRecords(FileChannel in, long position, long len, long numOfRecords) {
+		transferInFile(in, position, len);
+		aliBlockSize.getAndAdd(len);
+		queryRecords.getAndAdd(numOfRecords);
+		recordCounter.add(numOfRecords);
+	}
+
+	// appends a file of query records encoded by another DAA_Writer, these records were already counted there
+	public synchronized void appendSegment(File segmentFile, long numOfRecords) {
+		if (numOfRecords == 0)
+			return;
+		try {
+			FileInputStream fis = new FileInputStream(segmentFile);
+			try {
+				FileChannel in = fis.getChannel();
+				long len = in.size();
+				transferInFile(in, 0, len);
+				aliBlockSize.getAndAdd(len);
+				queryRecords.getAndAdd(numOfRecords);
+			} finally {
+				fis.close();
+			}
+		} catch (Exception e) {
+			writeError = e;
+			e.printStackTrace();
+		}
+	}
 
-				begin = byteBuffer.size();
+	public long getNumOfQueryRecords() {
+		return queryRecords.get();
+	}
 
-				alloc = 0;
-				write(byteBuffer, readLittleEndian(alloc));
+	// writes a single query record whose hits are supplied one by one, the alloc size is patched in afterwards
+	public synchronized long writeRecord(Iterator<Hit> hits) {
+		if (!hits.hasNext())
+			return 0;
+		long start = writeTimer.start();
+		long begin = mappedOutput != null ? mappedOutput.getPosition() : out.length(), recordSize = 0, hitCounter = 0;
+		RecordBuffer buf = new RecordBuffer(RECORD_FLUSH_SIZE + 1024);
+		Hit h = hits.next();
+		putQueryHeader(buf, h);
+		while (h != null) {
+			putHit(buf, h);
+			hitCounter++;
+			if (buf.size() > RECORD_FLUSH_SIZE) {
+				writeInFile(buf.toByteArray(), buf.size(), true);
+				recordSize += buf.size();
+				buf.clear();
+			}
+			h = hits.hasNext() ? hits.next() : null;
+		}
+		writeInFile(buf.toByteArray(), buf.size(), true);
+		recordSize += buf.size();
+		writeByteInFile(readLittleEndian((int) (recordSize - 4)), begin);
+		aliBlockSize.getAndAdd(recordSize);
+		queryRecords.getAndAdd(1);
+		writeTimer.stop(start);
+		writeTimer.addBytes(recordSize);
+		recordCounter.increment();
+		alignmentCounter.add(hitCounter);
+		return hitCounter;
+	}
 
-				int totalQueryLength = h.getTotalQueryLenth();
-				write(byteBuffer, readLittleEndian(totalQueryLength));
+	private static void putQueryHeader(RecordBuffer buf, Hit h) {
 
-				String queryName = readName;
-				write(byteBuffer, readLittleEndian(queryName));
-				write(byteBuffer, (byte) 0);
+		buf.putInt(0);
+		buf.putInt(h.getTotalQueryLenth());
+		buf.putString(h.getReadName());
+		buf.put((byte) 0);
 
-				byte nFlag = 0;
-				write(byteBuffer, nFlag);
+		// sequences containing ambiguous bases are packed with 3 bits per base
+		byte nFlag = (byte) (h.queryHasN() ? 1 : 0);
+		buf.put(nFlag);
+		buf.put(h.getPackedQuerySequence());
 
-				if (!readIDToPackedSeq.containsKey(queryName)) {
-					byte[] packedSequence = h.getPackedQuerySequence();
-					readIDToPackedSeq.put(queryName, packedSequence);
-				}
-				byte[] packedSequence = readIDToPackedSeq.get(readName);
-				write(byteBuffer, packedSequence);
+	}
 
-			}
+	// number of bytes putQueryHeader writes for the record of the given hit
+	public static int getEncodedHeaderSize(Hit h) {
+		return 10 + h.getReadName().length() + h.getPackedQuerySequence().length;
+	}
 
-			int subjectID = h.getSubjectID();
-			write(byteBuffer, readLittleEndian(subjectID));
+	// number of bytes putHit writes for the given hit
+	public static int getEncodedHitSize(Hit h) {
+		return 18 + h.getEditOperations().size();
+	}
+
+	private static void putHit(RecordBuffer buf, Hit h) {
 
-			byte typeFlags = 1 << 1;
-			typeFlags |= 1 << 3;
-			typeFlags |= 1 << 5;
-			typeFlags |= h.getFrame() == FrameDirection.POSITIVE ? 0 : 1 << 6;
-			write(byteBuffer, typeFlags);
+		buf.putInt(h.getSubjectID());
 
-			int rawScore = h.getRawScore();
-			write(byteBuffer, readLittleEndian(rawScore));
+		byte typeFlags = 1 << 1;
+		typeFlags |= 1 << 3;
+		typeFlags |= 1 << 5;
+		typeFlags |= h.getFrame() == FrameDirection.POSITIVE ? 0 : 1 << 6;
+		buf.put(typeFlags);
 
-			int queryStart = h.getQuery_start();
-			write(byteBuffer, readLittleEndian(queryStart));
+		buf.putInt(h.getRawScore());
+		buf.putInt(h.getQuery_start());
+		buf.putInt(h.getRef_start());
 
-			int refStart = h.getRef_start();
-			write(byteBuffer, readLittleEndian(refStart));
+		ArrayList<Byte> editOperations = h.getEditOperations();
+		for (int j = 0; j < editOperations.size(); j++)
+			buf.put(editOperations.get(j));
+		buf.put((byte) 0);
 
-			ArrayList<Byte> editOperations = h.getEditOperations();
-			for (byte op : editOperations)
-				write(byteBuffer, op);
-			write(byteBuffer, (byte) 0);
+	}
 
-			lastReadName = h.getReadName();
+	// returns false if an encoder failed, a single encoder runs in the calling thread
+	private boolean runInParallel(ArrayList<SegmentEncoder> encoders, int cores) {
+		try {
+			if (encoders.size() == 1) {
+				encoders.get(0).run();
+				return true;
+			}
 
+			// daemon threads as writers left behind on an error path are never finished by writeEnd
+			if (executor == null)
+				executor = Executors.newFixedThreadPool(cores, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "daa-encoder");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for (SegmentEncoder encoder : encoders)
+				futures.add(executor.submit(encoder));
+			for (Future<?> f : futures)
+				f.get();
+			return true;
+		} catch (Exception e) {
+			writeError = e;
+			e.printStackTrace();
+			return false;
 		}
+	}
 
-		if (alloc != -1) {
+	// encodes a self-contained run of query records with their alloc sizes already filled in
+	public static class SegmentEncoder implements Runnable {
 
-			alloc = byteBuffer.size() - 4 - begin;
-			int[] allocPair = { begin, alloc };
-			allocPairs.add(allocPair);
+		private ArrayList<Hit> hits;
+		private int from, to;
+		private byte[] segment;
+		private int numOfRecords = 0;
 
-			byte[] stream = new byte[byteBuffer.size()];
-			for (int i = 0; i < byteBuffer.size(); i++)
-				stream[i] = byteBuffer.get(i);
+		public SegmentEncoder(ArrayList<Hit> hits, int from, int to) {
+			this.hits = hits;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void run() {
+
+			RecordBuffer buf = new RecordBuffer(64 * (to - from) + 1024);
+			int begin = -1;
+			String lastReadName = null;
+			for (int i = from; i < to; i++) {
+
+				Hit h = hits.get(i);
+				String readName = h.getReadName();
 
-			for (int[] p : allocPairs) {
-				int counter = 0;
-				for (byte b : readLittleEndian(p[1])) {
-					int pos = p[0] + (counter++);
-					stream[pos] = b;
+				if (lastReadName == null || !readName.equals(lastReadName)) {
+					if (begin != -1)
+						buf.setInt(begin, buf.size() - 4 - begin);
+					begin = buf.size();
+					numOfRecords++;
+					putQueryHeader(buf, h);
 				}
+				putHit(buf, h);
+
+				lastReadName = readName;
+
 			}
+			if (begin != -1)
+				buf.setInt(begin, buf.size() - 4 - begin);
 
-			writeInFile(stream, stream.length, true);
+			segment = buf.toByteArray();
+
+		}
+
+		public byte[] getSegment() {
+			return segment;
+		}
+
+		public int getNumOfRecords() {
+			return numOfRecords;
+		}
+
+	}
+
+	public static class RecordBuffer {
 
-			aliBlockSize.getAndAdd(stream.length);
-			queryRecords.getAndAdd(allocPairs.size());
+		private byte[] data;
+		private int size = 0;
 
+		public RecordBuffer(int capacity) {
+			data = new byte[Math.max(16, capacity)];
+		}
+
+		private void ensureCapacity(int n) {
+			if (size + n > data.length)
+				data = Arrays.copyOf(data, Math.max(2 * data.length, size + n));
+		}
+
+		public void put(byte b) {
+			ensureCapacity(1);
+			data[size++] = b;
+		}
+
+		public void put(byte[] b) {
+			ensureCapacity(b.length);
+			System.arraycopy(b, 0, data, size, b.length);
+			size += b.length;
+		}
+
+		public void putInt(int v) {
+			ensureCapacity(4);
+			setInt(size, v);
+			size += 4;
+		}
+
+		public void putString(String s) {
+			ensureCapacity(s.length());
+			for (int i = 0; i < s.length(); i++)
+				data[size++] = (byte) s.charAt(i);
+		}
+
+		public void setInt(int pos, int v) {
+			data[pos] = (byte) v;
+			data[pos + 1] = (byte) (v >>> 8);
+			data[pos + 2] = (byte) (v >>> 16);
+			data[pos + 3] = (byte) (v >>> 24);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(data, size);
 		}
 
 	}
@@ -227,14 +500,6 @@ public class DAA_Writer {
 			byteBuffer.add(b);
 	}
 
-	private byte[] readLittleEndian(String s) {
-		ByteBuffer buffer = ByteBuffer.allocate(s.length());
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-		for (int i = 0; i < s.length(); i++)
-			buffer.put((byte) s.charAt(i));
-		return buffer.array();
-	}
-
 	private byte[] readLittleEndian(byte o) {
 		ByteBuffer buffer = ByteBuffer.allocate(1);
 		buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -270,50 +535,75 @@ public class DAA_Writer {
 			writeInFile(readLittleEndian((int) 0), 4, true);
 			aliBlockSize.getAndAdd(4);
 
+			if (executor != null)
+				executor.shutdown();
+
 			// inserting reference names
-			ArrayList<Byte> byteBuffer = new ArrayList<Byte>();
+			RecordBuffer byteBuffer = new RecordBuffer(32 * subjectInfo.size());
 			for (Object[] o : subjectInfo) {
-				String refName = ((SparseString) o[0]).toString();
-				write(byteBuffer, readLittleEndian(refName));
-				write(byteBuffer, (byte) 0);
+				byteBuffer.put(((SparseString) o[0]).getData());
+				byteBuffer.put((byte) 0);
 			}
 			refNamesBlockSize.getAndSet(byteBuffer.size());
 
 			// inserting reference length
-			for (Object[] o : subjectInfo) {
-				int refLength = ((int) o[1]);
-				write(byteBuffer, readLittleEndian(refLength));
-			}
+			for (Object[] o : subjectInfo)
+				byteBuffer.putInt((int) o[1]);
 			refLengthsBlockSize.getAndSet(byteBuffer.size() - refNamesBlockSize.get());
 
 			// writing-out buffer
-			byte[] stream = new byte[byteBuffer.size()];
-			for (int i = 0; i < byteBuffer.size(); i++)
-				stream[i] = byteBuffer.get(i);
+			byte[] stream = byteBuffer.toByteArray();
 			writeInFile(stream, stream.length, true);
 
-			// updating #dbSeqsUsed
-			writeByteInFile(readLittleEndian((long) subjectInfo.size()), 32);
-
-			// updating #queryRecords
-			writeByteInFile(readLittleEndian((long) queryRecords.longValue()), 56);
-
-			// updating alignment block size
-			writeByteInFile(readLittleEndian(aliBlockSize.get()), 144);
+			// updating #dbSeqsUsed, #queryRecords and the sizes of the alignment, refNames and refLengths block at once,
+			// the header is left untouched if any part of the file could not be written
+			if (writeError == null) {
+				long[] positions = { 32, 56, 144, 152, 160 };
+				long[] values = { subjectInfo.size(), queryRecords.longValue(), aliBlockSize.get(), refNamesBlockSize.get(),
+						refLengthsBlockSize.get() };
+				patchHeader(positions, values);
+			}
 
-			// updating refNames block size
-			writeByteInFile(readLittleEndian(refNamesBlockSize.get()), 152);
+			// cutting off the unused reserve of a preallocated file
+			if (mappedOutput != null) {
+				mappedOutput.close();
+				mappedOutput = null;
+			}
 
-			// updating refLengths block size
-			writeByteInFile(readLittleEndian(refLengthsBlockSize.get()), 160);
+		} catch (Exception e) {
+			writeError = e;
+			e.printStackTrace();
+		}
+	}
 
+	private synchronized void patchHeader(long[] positions, long[] values) {
+		try {
+			if (mappedOutput != null) {
+				for (int i = 0; i < positions.length; i++)
+					mappedOutput.patch(readLittleEndian(values[i]), positions[i]);
+				return;
+			}
+			RandomAccessFile raf = new RandomAccessFile(out, "rw");
+			try {
+				for (int i = 0; i < positions.length; i++) {
+					raf.seek(positions[i]);
+					raf.write(readLittleEndian(values[i]));
+				}
+			} finally {
+				raf.close();
+			}
 		} catch (Exception e) {
+			writeError = e;
 			e.printStackTrace();
 		}
 	}
 
 	private synchronized void writeByteInFile(byte[] b, long pos) {
 		try {
+			if (mappedOutput != null) {
+				mappedOutput.patch(b, pos);
+				return;
+			}
 			RandomAccessFile raf = new RandomAccessFile(out, "rw");
 			try {
 				raf.seek(pos);
@@ -322,12 +612,62 @@ public class DAA_Writer {
 				raf.close();
 			}
 		} catch (Exception e) {
+			writeError = e;
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized void transferInFile(FileChannel in, long position, long len) {
+		try {
+			if (mappedOutput != null) {
+				mappedOutput.transferFrom(in, position, len);
+				return;
+			}
+			FileOutputStream fos = new FileOutputStream(out, true);
+			try {
+				FileChannel channel = fos.getChannel();
+				long transferred = 0;
+				while (transferred < len)
+					transferred += in.transferTo(position + transferred, len - transferred, channel);
+			} finally {
+				fos.close();
+			}
+		} catch (Exception e) {
+			writeError = e;
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized void writeInFile(ArrayList<byte[]> segments) {
+		try {
+			if (mappedOutput != null) {
+				for (byte[] b : segments)
+					mappedOutput.write(b, 0, b.length);
+				return;
+			}
+			OutputStream output = null;
+			try {
+				output = new BufferedOutputStream(new FileOutputStream(out, true), 1024 * 1024);
+				for (byte[] b : segments)
+					output.write(b);
+			} finally {
+				if (output != null)
+					output.close();
+			}
+		} catch (Exception e) {
+			writeError = e;
 			e.printStackTrace();
 		}
 	}
 
 	private synchronized void writeInFile(byte[] b, int len, boolean append) {
 		try {
+			if (mappedOutput != null) {
+				if (!append)
+					mappedOutput.setPosition(0);
+				mappedOutput.write(b, 0, len);
+				return;
+			}
 			OutputStream output = null;
 			try {
 				output = new BufferedOutputStream(new FileOutputStream(out, append));
@@ -337,6 +677,7 @@ public class DAA_Writer {
 					output.close();
 			}
 		} catch (Exception e) {
+			writeError = e;
 			e.printStackTrace();
 		}
 	}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package daa.writer;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import hits.Hit;
+import util.Metrics;
+
+// decides when buffered hits are handed to DAA_Writer, driven by their encoded size and the time since the last flush
+public class FlushPolicy {
+
+	private static long defaultMaxBytes = 4000000L, defaultMaxLatency = 1000L;
+
+	private static final LongAdder flushCounter = Metrics.counter("flush_policy.flushes");
+	private static final LongAdder latencyFlushCounter = Metrics.counter("flush_policy.latency_flushes");
+	private static final LongAdder flushedBytesCounter = Metrics.counter("flush_policy.flushed_bytes");
+
+	private long maxBytes, maxLatencyNanos;
+	private long bufferedBytes = 0, lastFlush = System.nanoTime();
+	private int measuredHits = 0;
+	private String lastReadName;
+
+	// null keeps the current default, a negative latency disables time-driven flushes
+	public static void setDefaults(Long maxBytes, Long maxLatencyMillis) {
+		if (maxBytes != null)
+			defaultMaxBytes = maxBytes;
+		if (maxLatencyMillis != null)
+			defaultMaxLatency = maxLatencyMillis;
+	}
+
+	public FlushPolicy() {
+		this(defaultMaxBytes, defaultMaxLatency);
+	}
+
+	public FlushPolicy(long maxBytes, long maxLatencyMillis) {
+		this.maxBytes = maxBytes;
+		this.maxLatencyNanos = maxLatencyMillis < 0 ? -1 : maxLatencyMillis * 1000000L;
+	}
+
+	// measures the hits added to the buffer since the last call, they have to be grouped by read
+	public boolean shouldFlush(ArrayList<Hit> hits) {
+		for (int i = measuredHits; i < hits.size(); i++) {
+			Hit h = hits.get(i);
+			if (lastReadName == null || !lastReadName.equals(h.getReadName())) {
+				bufferedBytes += DAA_Writer.getEncodedHeaderSize(h);
+				lastReadName = h.getReadName();
+			}
+			bufferedBytes += DAA_Writer.getEncodedHitSize(h);
+		}
+		measuredHits = hits.size();
+		if (bufferedBytes == 0)
+			return false;
+		if (bufferedBytes >= maxBytes)
+			return true;
+		if (maxLatencyNanos >= 0 && System.nanoTime() - lastFlush >= maxLatencyNanos) {
+			latencyFlushCounter.increment();
+			return true;
+		}
+		return false;
+	}
+
+	// to be called after the buffered hits have been written and cleared
+	public void flushed() {
+		flushCounter.increment();
+		flushedBytesCounter.add(bufferedBytes);
+		bufferedBytes = 0;
+		measuredHits = 0;
+		lastReadName = null;
+		lastFlush = System.nanoTime();
+	}
+
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+}
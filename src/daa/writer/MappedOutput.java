@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package daa.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// output file written sequentially through a memory-mapped window, the blocks of each window are reserved by writing zeros through the
+// channel before it is mapped, so a full disk fails the reserving write instead of a later access to the mapping, the reserve is cut off on close
+public class MappedOutput {
+
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final int MIN_GROWTH = 1024 * 1024;
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(MIN_GROWTH);
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer window;
+	private long windowStart = 0, windowEnd = 0, position = 0, length, reserved = 0;
+
+	public MappedOutput(File file, long expectedSize) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		length = Math.max(expectedSize, MIN_GROWTH);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureWindow();
+			int n = (int) Math.min(len, windowEnd - position);
+			window.position((int) (position - windowStart));
+			window.put(b, off, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// reads len bytes of the given channel starting at pos directly into the window
+	public void transferFrom(FileChannel in, long pos, long len) throws IOException {
+		while (len > 0) {
+			ensureWindow();
+			int n = (int) Math.min(len, windowEnd - position);
+			ByteBuffer target = window.duplicate();
+			target.position((int) (position - windowStart));
+			target.limit(target.position() + n);
+			while (target.hasRemaining()) {
+				int read = in.read(target, pos);
+				if (read < 0)
+					throw new IOException("unexpected end of file");
+				pos += read;
+			}
+			position += n;
+			len -= n;
+		}
+	}
+
+	// overwrites already written bytes at pos
+	public void patch(byte[] b, long pos) throws IOException {
+		if (window != null && pos >= windowStart && pos + b.length <= windowEnd) {
+			ByteBuffer target = window.duplicate();
+			target.position((int) (pos - windowStart));
+			target.put(b);
+		} else {
+			ByteBuffer buffer = ByteBuffer.wrap(b);
+			while (buffer.hasRemaining())
+				channel.write(buffer, pos + buffer.position());
+		}
+	}
+
+	// moves the end of the written data, e.g. to rewrite the file from its beginning
+	public void setPosition(long position) {
+		this.position = position;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	// flushes the window, closes the file and cuts off the unused reserve through a fresh handle so no mapping is touched by the truncation
+	public void close() throws IOException {
+		try {
+			if (window != null)
+				window.force();
+		} finally {
+			window = null;
+			channel.close();
+			raf.close();
+		}
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(position);
+		} finally {
+			out.close();
+		}
+	}
+
+	// dropped windows stay mapped until they are garbage collected, Windows refuses to truncate files with mapped sections
+	public static boolean isSupported() {
+		return !System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+	}
+
+	private void ensureWindow() throws IOException {
+		if (window != null && position >= windowStart && position < windowEnd)
+			return;
+
+		// growing the estimated size by at least one eighth once it is exceeded, windows never reach beyond it
+		if (position >= length)
+			length = Math.max(position + MIN_GROWTH, length + length / 8);
+		windowStart = position;
+		windowEnd = Math.min(length, windowStart + WINDOW_SIZE);
+		reserve(windowEnd);
+		window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowEnd - windowStart);
+	}
+
+	// allocates the blocks up to end, setLength would only leave a sparse file whose blocks are allocated by page faults of the mapping
+	private void reserve(long end) throws IOException {
+		while (reserved < end) {
+			ByteBuffer zeros = ZEROS.duplicate();
+			zeros.limit((int) Math.min(zeros.capacity(), end - reserved));
+			reserved += channel.write(zeros, reserved);
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package daa.writer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import daa.reader.DAA_Header;
+
+// copies encoded query records of a DAA file into a DAA_Writer, rewriting only the subject IDs of their hits
+public class RecordCopier {
+
+	private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+	private DAA_Writer writer;
+	private FileInputStream fis;
+	private FileChannel in;
+	private int[] remap;
+	private boolean identity = true;
+	private ByteBuffer chunk;
+
+	public RecordCopier(DAA_Writer writer, File daaFile, int[] remap) throws IOException {
+		this.writer = writer;
+		this.remap = remap;
+		for (int i = 0; i < remap.length; i++)
+			identity &= remap[i] == i;
+		fis = new FileInputStream(daaFile);
+		in = fis.getChannel();
+	}
+
+	// copies the given number of whole records stored at [position, position + length) of the source file
+	public void copy(long position, long length, long numOfRecords) throws IOException {
+
+		// records without subject IDs to be rewritten are transferred by the channel
+		if (identity) {
+			writer.transferRecords(in, position, length, numOfRecords);
+			return;
+		}
+
+		if (chunk == null)
+			chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		long readPos = position, end = position + length;
+		int filled = 0;
+		while (true) {
+
+			// filling the chunk behind records carried over
+			while (filled < chunk.capacity() && readPos < end) {
+				int n = in.read(ByteBuffer.wrap(chunk.array(), filled, (int) Math.min(chunk.capacity() - filled, end - readPos)), readPos);
+				if (n < 0)
+					throw new EOFException("unexpected end of DAA file");
+				filled += n;
+				readPos += n;
+			}
+
+			// remapping all complete records
+			int q = 0, records = 0;
+			while (q + 4 <= filled) {
+				int alloc = chunk.getInt(q);
+				if (q + 4 + alloc > filled)
+					break;
+				remapRecord(chunk, q + 4, alloc, remap);
+				q += 4 + alloc;
+				records++;
+			}
+			if (records > 0)
+				writer.writeRecords(chunk.array(), q, records);
+
+			System.arraycopy(chunk.array(), q, chunk.array(), 0, filled - q);
+			filled -= q;
+			if (filled == 0 && readPos >= end)
+				break;
+			if (records == 0) {
+				if (readPos >= end || filled < 4)
+					throw new IOException("truncated query record");
+				int alloc = chunk.getInt(0);
+				ByteBuffer larger = ByteBuffer.allocate(alloc + 4).order(ByteOrder.LITTLE_ENDIAN);
+				System.arraycopy(chunk.array(), 0, larger.array(), 0, filled);
+				chunk = larger;
+			}
+
+		}
+
+	}
+
+	public void close() throws IOException {
+		in.close();
+		fis.close();
+	}
+
+	// rewrites the subject IDs of all hits within the record in place, returns the number of hits
+	public static int remapRecord(ByteBuffer chunk, int begin, int alloc, int[] remap) throws IOException {
+		ByteBuffer record = ByteBuffer.wrap(chunk.array(), begin, alloc).slice().order(ByteOrder.LITTLE_ENDIAN);
+		skipQueryProperties(record);
+		int hits = 0;
+		while (record.hasRemaining()) {
+			int subjectID = record.getInt(record.position());
+			if (subjectID < 0 || subjectID >= remap.length)
+				throw new IOException("subject ID " + subjectID + " out of range");
+			record.putInt(record.position(), remap[subjectID]);
+			skipHitProperties(record);
+			hits++;
+		}
+		return hits;
+	}
+
+	// returns for each record of the DAA file {read name, file pointer, alloc, number of hits, possibly containing duplicate hits}
+	public static ArrayList<Object[]> scanRecords(File daaFile) throws IOException {
+		DAA_Header header = new DAA_Header(daaFile);
+		ArrayList<Object[]> records = new ArrayList<Object[]>();
+		long filePointer = header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex());
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(daaFile), 1024 * 1024));
+		try {
+			long toSkip = filePointer;
+			while (toSkip > 0)
+				toSkip -= is.skip(toSkip);
+			byte[] data = new byte[1024];
+			HashSet<Long> hitKeys = new HashSet<Long>();
+			for (long r = 0; r < header.getNumberOfQueryRecords(); r++) {
+				int alloc = Integer.reverseBytes(is.readInt());
+				if (alloc > data.length)
+					data = new byte[Math.max(alloc, 2 * data.length)];
+				is.readFully(data, 0, alloc);
+				ByteBuffer record = ByteBuffer.wrap(data, 0, alloc).order(ByteOrder.LITTLE_ENDIAN);
+
+				// parsing read name
+				record.position(4);
+				int nameStart = record.position();
+				while (record.get() != 0)
+					;
+				String name = new String(data, nameStart, record.position() - nameStart - 1);
+				record.position(0);
+				skipQueryProperties(record);
+
+				// hashing hits, equal hashes are treated as duplicates
+				hitKeys.clear();
+				int hits = 0;
+				boolean duplicates = false;
+				while (record.hasRemaining()) {
+					int hitStart = record.position();
+					skipHitProperties(record);
+					long key = 1;
+					for (int i = hitStart; i < record.position(); i++) {
+						if (i != hitStart + 4)
+							key = 31 * key + data[i];
+					}
+					duplicates |= !hitKeys.add(key);
+					hits++;
+				}
+
+				Object[] info = { name, filePointer, alloc, hits, duplicates };
+				records.add(info);
+				filePointer += 4 + alloc;
+			}
+		} finally {
+			is.close();
+		}
+		return records;
+	}
+
+	private static void skipQueryProperties(ByteBuffer record) {
+		int totalQueryLength = record.getInt();
+		while (record.get() != 0)
+			;
+		int bits = (record.get() & 1) == 1 ? 3 : 2;
+		record.position(record.position() + (totalQueryLength * bits + 7) / 8);
+	}
+
+	private static void skipHitProperties(ByteBuffer record) {
+		record.position(record.position() + 4);
+		int flag = record.get() & 0xFF;
+		for (int shift = 0; shift < 6; shift += 2)
+			record.position(record.position() + getPackedSize((flag >>> shift) & 3));
+		while (record.get() != 0)
+			;
+	}
+
+	private static int getPackedSize(int kind) {
+		switch (kind) {
+		case 0:
+			return 1;
+		case 1:
+			return 2;
+		case 2:
+			return 4;
+		default:
+			throw new RuntimeException("unknown kind: " + kind);
+		}
+	}
+
+}
@@ -30,8 +30,9 @@ public class Hit {
 	private String readName;
 	private int totalQueryLenth;
 	private byte[] packedQuerySequence;
+	private boolean queryHasN;
 	private FrameDirection frame;
-	private int rawScore, ref_start, query_start;
+	private int rawScore, ref_start, query_start, query_length;
 
 	private int subjectID = -1;
 
@@ -67,10 +68,12 @@ public class Hit {
 		this.rawScore = mafHit.getRawScore();
 		this.ref_start = mafHit.getRefStart();
 		this.query_start = mafHit.getQueryStart();
+		this.query_length = mafHit.getQueryLength();
 		this.subjectID = mafHit.getSubjectID();
 		this.editOperations = mafHit.getEditOperations();
 		this.readName = mafHit.getReadName();
 		this.packedQuerySequence = mafHit.getPackedQuerySequence();
+		this.queryHasN = mafHit.queryHasN();
 		this.totalQueryLenth = mafHit.getTotalQueryLength();
 	}
 
@@ -86,6 +89,10 @@ public class Hit {
 		return query_start;
 	}
 
+	public int getQueryLength() {
+		return query_length;
+	}
+
 	public void setQuery_start(int qStart) {
 		this.query_start = qStart;
 	}
@@ -122,6 +129,10 @@ public class Hit {
 		return packedQuerySequence;
 	}
 
+	public boolean queryHasN() {
+		return queryHasN;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof Hit) {
@@ -17,65 +17,254 @@
 
 package hits;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 
 import util.SparseString;
 
+// hits of one read kept in primitive arrays, sorted by (gi, frame) on demand so that each group is a contiguous range
 public class ReadHits {
 
-	private ConcurrentHashMap<SparseString, ConcurrentHashMap<Integer, Vector<Hit>>> hitMap = new ConcurrentHashMap<SparseString, ConcurrentHashMap<Integer, Vector<Hit>>>();
+	private static final int FIELDS = 4;
+
+	// per hit: ref_start, query_start, rawScore, subjectID
+	private int[] values = new int[FIELDS * 4];
+	private byte[] frames = new byte[4];
+	private SparseString[] gis = new SparseString[4];
+	private int size = 0;
+
+	// group boundaries, valid while sorted is set
+	private boolean sorted = true;
+	private int[] groupStarts = new int[1];
+	private int numOfGroups = 0;
 
 	public void add(Hit h, SparseString gi, int frame) {
+		add(h.getRef_start(), h.getQuery_start(), h.getRawScore(), h.getSubjectID(), gi, frame);
+	}
+
+	public synchronized void add(int refStart, int queryStart, int rawScore, int subjectID, SparseString gi, int frame) {
+		if (size == frames.length) {
+			values = Arrays.copyOf(values, 2 * FIELDS * size);
+			frames = Arrays.copyOf(frames, 2 * size);
+			gis = Arrays.copyOf(gis, 2 * size);
+		}
+		int p = FIELDS * size;
+		values[p] = refStart;
+		values[p + 1] = queryStart;
+		values[p + 2] = rawScore;
+		values[p + 3] = subjectID;
+		frames[size] = (byte) frame;
+		gis[size] = gi;
+		size++;
+		sorted = false;
+	}
+
+	public synchronized void addAll(ReadHits readHits) {
+		synchronized (readHits) {
+			for (int i = 0; i < readHits.size; i++) {
+				int p = FIELDS * i;
+				add(readHits.values[p], readHits.values[p + 1], readHits.values[p + 2], readHits.values[p + 3], readHits.gis[i],
+						readHits.frames[i]);
+			}
+		}
+	}
+
+	// sorts hits by (gi, frame) keeping the insertion order within each group
+	private void sort() {
+		if (sorted)
+			return;
 
-		if (!hitMap.containsKey(gi))
-			hitMap.put(gi, new ConcurrentHashMap<Integer, Vector<Hit>>());
-		ConcurrentHashMap<Integer, Vector<Hit>> frameMap = hitMap.get(gi);
+		// ranking distinct gis
+		HashMap<SparseString, Integer> ranks = new HashMap<SparseString, Integer>();
+		for (int i = 0; i < size; i++)
+			ranks.put(gis[i], 0);
+		SparseString[] distinctGis = ranks.keySet().toArray(new SparseString[ranks.size()]);
+		Arrays.sort(distinctGis);
+		for (int r = 0; r < distinctGis.length; r++)
+			ranks.put(distinctGis[r], r);
 
-		if (!frameMap.containsKey(frame))
-			frameMap.put(frame, new Vector<Hit>());
-		Vector<Hit> hits = frameMap.get(frame);
+		// sorting positions by packed keys
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) (ranks.get(gis[i]) * 8 + frames[i] + 3) << 32) | i;
+		Arrays.sort(keys);
 
-		hits.add(h);
+		int[] sortedValues = new int[values.length];
+		byte[] sortedFrames = new byte[frames.length];
+		SparseString[] sortedGis = new SparseString[gis.length];
+		groupStarts = new int[size + 1];
+		numOfGroups = 0;
+		for (int j = 0; j < size; j++) {
+			int i = (int) keys[j];
+			System.arraycopy(values, FIELDS * i, sortedValues, FIELDS * j, FIELDS);
+			sortedFrames[j] = frames[i];
+			sortedGis[j] = gis[i];
+			if (j == 0 || (keys[j] >>> 32) != (keys[j - 1] >>> 32))
+				groupStarts[numOfGroups++] = j;
+		}
+		groupStarts[numOfGroups] = size;
+		values = sortedValues;
+		frames = sortedFrames;
+		gis = sortedGis;
+		sorted = true;
+	}
+
+	// returns the index of the group of the given gi and frame, or -1
+	private int findGroup(SparseString gi, int frame) {
+		sort();
+		int low = 0, high = numOfGroups - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int start = groupStarts[mid];
+			int c = gis[start].compareTo(gi);
+			if (c == 0)
+				c = Integer.compare(frames[start], frame);
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
 
+	public synchronized int size() {
+		return size;
 	}
 
-	public ConcurrentHashMap<SparseString, ConcurrentHashMap<Integer, Vector<Hit>>> getHitMap() {
-		return hitMap;
+	public synchronized int getNumOfGroups() {
+		sort();
+		return numOfGroups;
 	}
 
-	public Vector<Hit> getAllHits() {
-		Vector<Hit> allHits = new Vector<Hit>();
-		for (SparseString gi : hitMap.keySet()) {
-			for (int frame : hitMap.get(gi).keySet()) {
-				for (Hit h : hitMap.get(gi).get(frame)) {
-					allHits.add(h);
-				}
-			}
+	// hits of group g are the positions getGroupStart(g) to getGroupEnd(g) - 1
+	public synchronized int getGroupStart(int g) {
+		sort();
+		return groupStarts[g];
+	}
+
+	public synchronized int getGroupEnd(int g) {
+		sort();
+		return groupStarts[g + 1];
+	}
+
+	public synchronized SparseString getGi(int i) {
+		sort();
+		return gis[i];
+	}
+
+	public synchronized int getFrame(int i) {
+		sort();
+		return frames[i];
+	}
+
+	public synchronized int getRefStart(int i) {
+		sort();
+		return values[FIELDS * i];
+	}
+
+	public synchronized int getQueryStart(int i) {
+		sort();
+		return values[FIELDS * i + 1];
+	}
+
+	public synchronized int getRawScore(int i) {
+		sort();
+		return values[FIELDS * i + 2];
+	}
+
+	public synchronized int getSubjectID(int i) {
+		sort();
+		return values[FIELDS * i + 3];
+	}
+
+	public synchronized Hit getHit(int i) {
+		sort();
+		int p = FIELDS * i;
+		Hit h = new Hit(values[p], 0, 0, values[p + 2], 0, null, values[p + 1], 0, 0, values[p + 3]);
+		h.setFrame(frames[i]);
+		return h;
+	}
+
+	public synchronized ArrayList<SparseString> getGis() {
+		sort();
+		ArrayList<SparseString> distinctGis = new ArrayList<SparseString>();
+		for (int g = 0; g < numOfGroups; g++) {
+			SparseString gi = gis[groupStarts[g]];
+			if (distinctGis.isEmpty() || !distinctGis.get(distinctGis.size() - 1).equals(gi))
+				distinctGis.add(gi);
+		}
+		return distinctGis;
+	}
+
+	public synchronized Vector<Hit> getHits(SparseString gi, int frame) {
+		Vector<Hit> hits = new Vector<Hit>();
+		int g = findGroup(gi, frame);
+		if (g != -1) {
+			for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++)
+				hits.add(getHit(i));
 		}
+		return hits;
+	}
+
+	public synchronized Vector<Hit> getAllHits() {
+		sort();
+		Vector<Hit> allHits = new Vector<Hit>(size);
+		for (int i = 0; i < size; i++)
+			allHits.add(getHit(i));
 		return allHits;
 	}
 
-	public void print() {
-		for (SparseString gi : hitMap.keySet()) {
-			System.out.println(">GI: " + gi);
-			for (int frame : hitMap.get(gi).keySet()) {
-				System.out.println("\t>>Frame: " + frame);
-				for (Hit h : hitMap.get(gi).get(frame)) {
-					h.print("\t");
-				}
-			}
+	public synchronized void print() {
+		sort();
+		for (int g = 0; g < numOfGroups; g++) {
+			int start = groupStarts[g];
+			if (g == 0 || !gis[start].equals(gis[groupStarts[g - 1]]))
+				System.out.println(">GI: " + gis[start]);
+			System.out.println("\t>>Frame: " + frames[start]);
+			for (int i = start; i < groupStarts[g + 1]; i++)
+				getHit(i).print("\t");
 		}
 	}
 
-	public void freeFrameHits(SparseString gi, int frame) {
-		hitMap.get(gi).remove(frame);
+	public synchronized void freeFrameHits(SparseString gi, int frame) {
+		int g = findGroup(gi, frame);
+		if (g != -1)
+			removeGroups(g, g + 1);
 	}
 
-	public void freeGiHits(SparseString gi) {
-		for (int frame : hitMap.get(gi).keySet())
-			freeFrameHits(gi, frame);
-		hitMap.remove(gi);
+	public synchronized void freeGiHits(SparseString gi) {
+		sort();
+		int from = 0;
+		while (from < numOfGroups && gis[groupStarts[from]].compareTo(gi) < 0)
+			from++;
+		int to = from;
+		while (to < numOfGroups && gis[groupStarts[to]].equals(gi))
+			to++;
+		if (to > from)
+			removeGroups(from, to);
+	}
+
+	// removes the hits of groups from to to - 1, shrinking the arrays once they are mostly empty
+	private void removeGroups(int from, int to) {
+		int start = groupStarts[from], end = groupStarts[to], removed = end - start;
+		System.arraycopy(values, FIELDS * end, values, FIELDS * start, FIELDS * (size - end));
+		System.arraycopy(frames, end, frames, start, size - end);
+		System.arraycopy(gis, end, gis, start, size - end);
+		size -= removed;
+		Arrays.fill(gis, size, size + removed, null);
+		for (int g = to; g <= numOfGroups; g++)
+			groupStarts[g - (to - from)] = groupStarts[g] - removed;
+		numOfGroups -= to - from;
+		if (size < frames.length / 4) {
+			int capacity = Math.max(4, 2 * size);
+			values = Arrays.copyOf(values, FIELDS * capacity);
+			frames = Arrays.copyOf(frames, capacity);
+			gis = Arrays.copyOf(gis, capacity);
+		}
 	}
 
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class BGZF_Input extends SeekableInput {
+
+	public static final int HEADER_SIZE = 18;
+	private static final ConcurrentHashMap<String, BlockIndex> indexCache = new ConcurrentHashMap<String, BlockIndex>();
+
+	private RandomAccessFile raf;
+	private BlockIndex index;
+
+	private int blockIndex = -1;
+	private byte[] block = new byte[0];
+	private int blockPos = 0;
+
+	public BGZF_Input(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		index = getIndex(file);
+		seek(0);
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		int i = Arrays.binarySearch(index.uOffsets, 0, index.size, pos);
+		i = i < 0 ? -i - 2 : i;
+		if (i < 0 || i >= index.size) {
+			blockIndex = index.size;
+			block = new byte[0];
+			blockPos = 0;
+			return;
+		}
+		loadBlock(i);
+		blockPos = (int) (pos - index.uOffsets[i]);
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		int off = 0;
+		while (off < b.length) {
+			if (blockPos == block.length) {
+				if (blockIndex + 1 >= index.size)
+					break;
+				loadBlock(blockIndex + 1);
+			}
+			int len = Math.min(b.length - off, block.length - blockPos);
+			System.arraycopy(block, blockPos, b, off, len);
+			blockPos += len;
+			off += len;
+		}
+		return off == 0 && b.length > 0 ? -1 : off;
+	}
+
+	@Override
+	public long getFilePointer() {
+		if (blockIndex >= index.size)
+			return index.length;
+		return index.uOffsets[blockIndex] + blockPos;
+	}
+
+	@Override
+	public long length() {
+		return index.length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private void loadBlock(int i) throws IOException {
+		if (i == blockIndex) {
+			blockPos = 0;
+			return;
+		}
+		raf.seek(index.cOffsets[i]);
+		byte[] header = new byte[HEADER_SIZE];
+		raf.readFully(header);
+		int blockSize = getBlockSize(header);
+		if (blockSize < 0)
+			throw new IOException("Not a BGZF block at offset " + index.cOffsets[i]);
+		byte[] data = new byte[blockSize];
+		System.arraycopy(header, 0, data, 0, HEADER_SIZE);
+		raf.readFully(data, HEADER_SIZE, blockSize - HEADER_SIZE);
+		block = inflateBlock(data, blockSize);
+		blockIndex = i;
+		blockPos = 0;
+	}
+
+	// returns the total size of the block described by the given header, or -1 if it is not a BGZF header
+	public static int getBlockSize(byte[] header) {
+		if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || header[2] != 8 || (header[3] & 4) == 0)
+			return -1;
+		int xlen = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+		if (xlen != 6 || header[12] != 'B' || header[13] != 'C' || header[14] != 2 || header[15] != 0)
+			return -1;
+		return ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+	}
+
+	public static byte[] inflateBlock(byte[] data, int blockSize) throws IOException {
+		ByteBuffer trailer = ByteBuffer.wrap(data, blockSize - 4, 4).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] result = new byte[trailer.getInt()];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data, HEADER_SIZE, blockSize - HEADER_SIZE - 8);
+			int n = 0;
+			while (n < result.length && !inflater.finished()) {
+				int k = inflater.inflate(result, n, result.length - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += k;
+			}
+			if (n != result.length)
+				throw new IOException("Corrupt BGZF block (" + n + " of " + result.length + " bytes inflated)");
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		return result;
+	}
+
+	public static boolean isBGZF(File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if (raf.length() < HEADER_SIZE)
+					return false;
+				byte[] header = new byte[HEADER_SIZE];
+				raf.readFully(header);
+				return getBlockSize(header) > 0;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static BlockIndex getIndex(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		BlockIndex index = indexCache.get(key);
+		if (index == null || index.lastModified != file.lastModified()) {
+			index = new BlockIndex(file);
+			indexCache.put(key, index);
+		}
+		return index;
+	}
+
+	// maps the compressed offset of each non-empty block onto the uncompressed offset of its first byte
+	private static class BlockIndex {
+
+		private long lastModified;
+		private long[] cOffsets = new long[1024], uOffsets = new long[1024];
+		private int size = 0;
+		private long length = 0;
+
+		public BlockIndex(File file) throws IOException {
+			lastModified = file.lastModified();
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+			try {
+				byte[] header = new byte[HEADER_SIZE];
+				byte[] trailer = new byte[4];
+				long cOffset = 0;
+				while (is.read(header, 0, 1) == 1) {
+					is.readFully(header, 1, HEADER_SIZE - 1);
+					int blockSize = getBlockSize(header);
+					if (blockSize < 0)
+						throw new IOException("Not a BGZF block at offset " + cOffset + " in " + file.getAbsolutePath());
+					long toSkip = blockSize - HEADER_SIZE - 4;
+					while (toSkip > 0)
+						toSkip -= is.skip(toSkip);
+					is.readFully(trailer);
+					int isize = ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).getInt();
+					if (isize > 0)
+						add(cOffset, length);
+					length += isize;
+					cOffset += blockSize;
+				}
+			} finally {
+				is.close();
+			}
+		}
+
+		private void add(long cOffset, long uOffset) {
+			if (size == cOffsets.length) {
+				cOffsets = Arrays.copyOf(cOffsets, size * 2);
+				uOffsets = Arrays.copyOf(uOffsets, size * 2);
+			}
+			cOffsets[size] = cOffset;
+			uOffsets[size] = uOffset;
+			size++;
+		}
+
+	}
+
+}
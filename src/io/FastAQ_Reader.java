@@ -17,55 +17,40 @@
 
 package io;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipException;
 
-import javax.xml.stream.events.Characters;
-
-import util.LineCounter;
+import util.SequencePacker;
+import util.SequencePacker.PositionList;
 import util.SparseString;
 
 public class FastAQ_Reader {
 
-	private static int maxProgress, lastProgress = 0;
-	private static AtomicInteger progress = new AtomicInteger();
-
-	private static final HashMap<Character, Integer> nucToIndex;
-	static {
-		nucToIndex = new HashMap<Character, Integer>();
-		nucToIndex.put('A', 0);
-		nucToIndex.put('C', 1);
-		nucToIndex.put('G', 2);
-		nucToIndex.put('T', 3);
-		nucToIndex.put('a', 0);
-		nucToIndex.put('c', 1);
-		nucToIndex.put('g', 2);
-		nucToIndex.put('t', 3);
-	}
+	private static long maxProgress;
+	private static int lastProgress = 0;
+	private static AtomicLong progress = new AtomicLong();
 
 	public static ArrayList<Object[]> read(File fastAQFile) {
 
 		ArrayList<Object[]> readInfo = new ArrayList<Object[]>();
 		try {
 
-			maxProgress = (int) LineCounter.run(fastAQFile);
-
-			BufferedReader buf;
-			try {
-				buf = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fastAQFile))));
-			} catch (ZipException e) {
-				buf = new BufferedReader(new FileReader(fastAQFile));
-			}
+			// reporting progress on the raw bytes consumed avoids inflating the file twice
+			maxProgress = fastAQFile.length();
+			CountingInputStream counter = new CountingInputStream(new FileInputStream(fastAQFile));
+			InputStream is = new BufferedInputStream(counter, 1024 * 1024);
+			if (SeekableInput.isGzip(fastAQFile))
+				is = new GZIPInputStream(is, 1024 * 1024);
+			BufferedReader buf = new BufferedReader(new InputStreamReader(is), 1024 * 1024);
 
+			PositionList nPositions = new PositionList();
 			String line, id = "";
 			boolean readSequence = false;
 			StringBuilder seq = new StringBuilder("");
@@ -73,12 +58,12 @@ public class FastAQ_Reader {
 			while ((line = buf.readLine()) != null) {
 
 				lineCounter++;
-				if (lineCounter % 100 == 0)
-					reportProgress(100);
+				if (lineCounter % 10000 == 0)
+					reportProgress(counter.getCount() - progress.get());
 
 				if (line.startsWith("@") || line.startsWith(">")) {
 					if (seq.length() != 0 && !id.isEmpty()) {
-						Object[] o = { new SparseString(id), packSequence(seq.toString()), seq.length() };
+						Object[] o = { new SparseString(id), SequencePacker.packRead(seq, nPositions), seq.length(), !nPositions.isEmpty() };
 						readInfo.add(o);
 					}
 					seq = new StringBuilder("");
@@ -92,7 +77,7 @@ public class FastAQ_Reader {
 
 			}
 			if (seq.length() != 0 && !id.isEmpty()) {
-				Object[] o = { new SparseString(id), packSequence(seq.toString()), seq.length() };
+				Object[] o = { new SparseString(id), SequencePacker.packRead(seq, nPositions), seq.length(), !nPositions.isEmpty() };
 				readInfo.add(o);
 			}
 			buf.close();
@@ -113,7 +98,7 @@ public class FastAQ_Reader {
 		System.out.print(100 + "%\n");
 	}
 
-	private static void reportProgress(int delta) {
+	private static void reportProgress(long delta) {
 		progress.getAndAdd(delta);
 		int p = ((int) ((((double) progress.get() / (double) maxProgress)) * 100) / 10) * 10;
 		if (p > lastProgress && p < 100) {
@@ -123,27 +108,7 @@ public class FastAQ_Reader {
 	}
 
 	public static byte[] packSequence(String dna) {
-
-		Vector<Byte> packed = new Vector<Byte>();
-		byte p = 0;
-		for (int i = 0; i < dna.length(); i++) {
-			char c = dna.charAt(i);
-			byte b = 0;
-			int dnaIndex = nucToIndex.containsKey(c) ? nucToIndex.get(c) : 0;
-			b |= dnaIndex << (i * 2) % 8;
-			p |= b;
-			if (i == dna.length() - 1 || (((i + 1) * 2) % 8 == 0 && i != 0)) {
-				packed.add(p);
-				p = 0;
-			}
-		}
-
-		byte[] a = new byte[packed.size()];
-		for (int i = 0; i < packed.size(); i++)
-			a[i] = packed.get(i);
-
-		return a;
-
+		return SequencePacker.pack(dna, null);
 	}
 
 }
@@ -17,102 +17,440 @@
 
 package io;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
 
-import util.FileParallelLineStreamer;
+import util.Metrics;
+import util.SequencePacker;
+import util.SequencePacker.PositionList;
 import util.SparseString;
 
-public class FastAQ_Reader_Parallel extends FileParallelLineStreamer {
+public class FastAQ_Reader_Parallel {
+
+	private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+	private static final int BLOCK_SIZE = 8 * 1024 * 1024;
+
+	private static final LongAdder readCounter = Metrics.counter("reads");
+	private static final Metrics.Timer readTimer = Metrics.timer("reads.parse");
+
+	private long maxProgress;
+	private int lastProgress = 0;
+	private AtomicLong progress = new AtomicLong();
+
+	private CountDownLatch latch;
+
+	public static ArrayList<Object[]> read(File fastAQFile, int cores) {
+
+		long start = readTimer.start();
+		ArrayList<Object[]> readInfo;
+		if (cores < 2)
+			readInfo = FastAQ_Reader.read(fastAQFile);
+		else if (!SeekableInput.isSeekable(fastAQFile)) {
+			// gzip files can only be inflated sequentially, so parsing is pipelined behind a single inflater
+			readInfo = new FastAQ_Reader_Parallel().runPipelined(fastAQFile, cores);
+		} else
+			readInfo = new FastAQ_Reader_Parallel().run(fastAQFile, cores);
+		readTimer.stop(start);
+		readTimer.addBytes(fastAQFile.length());
+		readCounter.add(readInfo.size());
+
+		return readInfo;
 
-	private static final HashMap<Character, Integer> nucToIndex;
-	static {
-		nucToIndex = new HashMap<Character, Integer>();
-		nucToIndex.put('A', 0);
-		nucToIndex.put('C', 1);
-		nucToIndex.put('G', 2);
-		nucToIndex.put('T', 3);
 	}
 
-	private HashMap<Integer, ArrayList<Object[]>> idToReadInfo;
-	private String id = "";
-	private boolean readSequence = false;
-	private StringBuffer seq = new StringBuffer("");
+	private ArrayList<Object[]> run(File fastAQFile, int cores) {
+
+		ArrayList<Object[]> readInfo = new ArrayList<Object[]>();
+		try {
+
+			// splitting file into chunks starting at record boundaries
+			long[] bounds = computeChunkBounds(fastAQFile, cores);
+			maxProgress = bounds[bounds.length - 1];
+
+			ArrayList<ChunkParser> parsers = new ArrayList<ChunkParser>();
+			for (int i = 0; i < bounds.length - 1; i++) {
+				if (bounds[i] < bounds[i + 1])
+					parsers.add(new ChunkParser(fastAQFile, bounds[i], bounds[i + 1]));
+			}
+
+			// parsing and packing chunks in parallel
+			latch = new CountDownLatch(parsers.size());
+			ExecutorService executor = Executors.newFixedThreadPool(cores);
+			for (ChunkParser parser : parsers)
+				executor.execute(parser);
+			try {
+				latch.await();
+			} finally {
+				executor.shutdown();
+			}
 
-	public ArrayList<Object[]> read(File fastAQFile, int cores, boolean reportProgress) {
+			// concatenating results in file order
+			int size = 0;
+			for (ChunkParser parser : parsers) {
+				if (parser.getError() != null)
+					throw parser.getError();
+				size += parser.getReadInfo().size();
+			}
+			readInfo.ensureCapacity(size);
+			for (ChunkParser parser : parsers)
+				readInfo.addAll(parser.getReadInfo());
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		reportFinish();
 
-		// initializing parameters
-		idToReadInfo = new HashMap<Integer, ArrayList<Object[]>>();
-		id = "";
-		readSequence = false;
-		seq = new StringBuffer("");
+		return readInfo;
 
-		// parsing file in parallel
-		run(fastAQFile, cores, reportProgress);
+	}
 
-		// sorting threadIDs
-		ArrayList<Integer> threadIDs_sorted = new ArrayList<Integer>();
-		threadIDs_sorted.addAll(idToReadInfo.keySet());
-		Collections.sort(threadIDs_sorted);
+	private ArrayList<Object[]> runPipelined(File fastAQFile, int cores) {
 
-		// collecting read information
 		ArrayList<Object[]> readInfo = new ArrayList<Object[]>();
-		for (int id : threadIDs_sorted)
-			readInfo.addAll(idToReadInfo.get(id));
+		ExecutorService executor = Executors.newFixedThreadPool(cores);
+		try {
+
+			maxProgress = fastAQFile.length();
+			CountingInputStream counter = new CountingInputStream(new FileInputStream(fastAQFile));
+			InputStream is = new GZIPInputStream(new BufferedInputStream(counter, BLOCK_SIZE), BLOCK_SIZE);
+
+			try {
+
+				// inflating blocks on this thread and cutting them at the last complete record
+				Semaphore blocksInFlight = new Semaphore(2 * cores);
+				ArrayList<BlockParser> parsers = new ArrayList<BlockParser>();
+				ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+				byte[] block = new byte[BLOCK_SIZE];
+				int len = 0, readChars;
+				Boolean isFastQ = null;
+				while (true) {
+
+					if (len == block.length)
+						block = Arrays.copyOf(block, 2 * block.length);
+					readChars = is.read(block, len, block.length - len);
+					if (readChars != -1)
+						len += readChars;
+					if (isFastQ == null)
+						isFastQ = detectFastQ(block, len);
+
+					reportProgress(counter.getCount() - progress.get());
+
+					boolean endOfFile = readChars == -1;
+					if (!endOfFile && len < block.length)
+						continue;
+					int cut = endOfFile ? len : findLastRecordStart(block, len, isFastQ);
+					if (cut > 0) {
+						blocksInFlight.acquire();
+						BlockParser parser = new BlockParser(Arrays.copyOf(block, cut), blocksInFlight);
+						parsers.add(parser);
+						futures.add(executor.submit(parser));
+						System.arraycopy(block, cut, block, 0, len - cut);
+						len -= cut;
+					}
+					if (endOfFile)
+						break;
+
+				}
+
+				// concatenating results in file order
+				for (Future<?> f : futures)
+					f.get();
+				for (BlockParser parser : parsers) {
+					if (parser.getError() != null)
+						throw parser.getError();
+					readInfo.addAll(parser.getReadInfo());
+				}
+
+			} finally {
+				is.close();
+			}
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		executor.shutdown();
+		reportFinish();
 
 		return readInfo;
 
 	}
 
-	@Override
-	public void processLine(String line, int threadID, boolean lastLine) {
-		if (line.startsWith("@") || line.startsWith(">")) {
-			if (seq.length() != 0 && !id.isEmpty()) {
-				Object[] o = { new SparseString(id), packSequence(seq.toString()), seq.length() };
-				idToReadInfo.putIfAbsent(threadID, new ArrayList<Object[]>());
-				idToReadInfo.get(threadID).add(o);
+	private static boolean detectFastQ(byte[] block, int len) {
+		for (int i = 0; i < len; i++) {
+			if (block[i] != '\n' && block[i] != '\r')
+				return block[i] == '@';
+		}
+		return false;
+	}
+
+	// returns the start of the last record in block[0, len) whose header is safely identified, or -1
+	private static int findLastRecordStart(byte[] block, int len, boolean isFastQ) {
+		int[] starts = new int[4];
+		int numOfStarts = 0;
+		for (int i = len; i > 0; i--) {
+			if (block[i - 1] != '\n')
+				continue;
+			System.arraycopy(starts, 0, starts, 1, starts.length - 1);
+			starts[0] = i;
+			numOfStarts++;
+			if (i == len)
+				continue;
+			if (!isFastQ && block[i] == '>')
+				return i;
+			// starts[2] holds the start of the line two lines further down
+			if (isFastQ && numOfStarts >= 3 && block[i] == '@' && starts[2] < len && block[starts[2]] == '+')
+				return i;
+		}
+		return -1;
+	}
+
+	private long[] computeChunkBounds(File file, int cores) throws IOException {
+		SeekableInput in = SeekableInput.open(file);
+		try {
+			long length = in.length();
+			int chunks = (int) Math.max(1, Math.min(cores * 4, length / MIN_CHUNK_SIZE));
+			boolean isFastQ = detectFastQ(new LineInput(in, 0));
+			long[] bounds = new long[chunks + 1];
+			for (int i = 1; i < chunks; i++)
+				bounds[i] = Math.max(bounds[i - 1], findRecordStart(new LineInput(in, (length / chunks) * i), isFastQ, length));
+			bounds[chunks] = length;
+			return bounds;
+		} finally {
+			in.close();
+		}
+	}
+
+	private boolean detectFastQ(LineInput in) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (!line.isEmpty())
+				return line.charAt(0) == '@';
+		}
+		return false;
+	}
+
+	// returns the position of the first record header at or after the current position
+	private long findRecordStart(LineInput in, boolean isFastQ, long length) throws IOException {
+
+		// skipping the line we might have landed in
+		if (in.getPosition() > 0)
+			in.readLine();
+
+		long[] pos = new long[3];
+		String[] lines = new String[3];
+		for (int i = 0; i < 3; i++) {
+			pos[i] = in.getPosition();
+			lines[i] = in.readLine();
+		}
+
+		while (lines[0] != null) {
+			if (!isFastQ && lines[0].startsWith(">"))
+				return pos[0];
+			// a quality line might start with '@', but it is never followed by a '+' line two lines later
+			if (isFastQ && lines[0].startsWith("@") && lines[2] != null && lines[2].startsWith("+"))
+				return pos[0];
+			pos[0] = pos[1];
+			pos[1] = pos[2];
+			lines[0] = lines[1];
+			lines[1] = lines[2];
+			pos[2] = in.getPosition();
+			lines[2] = in.readLine();
+		}
+
+		return length;
+	}
+
+	private void reportProgress(long delta) {
+		progress.getAndAdd(delta);
+		int p = ((int) ((((double) progress.get() / (double) maxProgress)) * 100) / 10) * 10;
+		synchronized (this) {
+			if (p > lastProgress && p < 100) {
+				lastProgress = p;
+				System.out.print(p + "% ");
+			}
+		}
+	}
+
+	private void reportFinish() {
+		progress.set(0);
+		lastProgress = 0;
+		System.out.print(100 + "%\n");
+	}
+
+	public class ChunkParser extends Thread {
+
+		private File file;
+		private long start, end;
+		private ArrayList<Object[]> readInfo = new ArrayList<Object[]>();
+		private Exception error;
+
+		public ChunkParser(File file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				SeekableInput raf = SeekableInput.open(file);
+				try {
+					parseRecords(new LineInput(raf, start), end, readInfo);
+				} finally {
+					raf.close();
+				}
+			} catch (Exception e) {
+				error = e;
 			}
-			seq = new StringBuffer("");
-			id = line.substring(1).split(" ")[0];
-			readSequence = true;
-		} else if (line.startsWith("+")) {
-			readSequence = false;
-		} else if (readSequence) {
-			seq = seq.append(line);
-		}
-		if (lastLine) {
-			if (seq.length() != 0 && !id.isEmpty()) {
-				Object[] o = { new SparseString(id), packSequence(seq.toString()), seq.length() };
-				idToReadInfo.putIfAbsent(threadID, new ArrayList<Object[]>());
-				idToReadInfo.get(threadID).add(o);
+			reportProgress(end - start);
+
+			latch.countDown();
+
+		}
+
+		public ArrayList<Object[]> getReadInfo() {
+			return readInfo;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+
+	}
+
+	public class BlockParser extends Thread {
+
+		private byte[] block;
+		private Semaphore blocksInFlight;
+		private ArrayList<Object[]> readInfo = new ArrayList<Object[]>();
+		private Exception error;
+
+		public BlockParser(byte[] block, Semaphore blocksInFlight) {
+			this.block = block;
+			this.blocksInFlight = blocksInFlight;
+		}
+
+		@Override
+		public void run() {
+			try {
+				parseRecords(new LineInput(block), block.length, readInfo);
+			} catch (Exception e) {
+				error = e;
 			}
+			block = null;
+			blocksInFlight.release();
+		}
+
+		public ArrayList<Object[]> getReadInfo() {
+			return readInfo;
+		}
+
+		public Exception getError() {
+			return error;
 		}
+
 	}
 
-	private static byte[] packSequence(String dna) {
-
-		Vector<Byte> packed = new Vector<Byte>();
-		byte p = 0;
-		for (int i = 0; i < dna.length(); i++) {
-			char c = dna.charAt(i);
-			byte b = 0;
-			b |= nucToIndex.get(c) << (i * 2) % 8;
-			p |= b;
-			if (i == dna.length() - 1 || (((i + 1) * 2) % 8 == 0 && i != 0)) {
-				packed.add(p);
-				p = 0;
+	// parses all records starting before end, packing their sequences on the calling thread
+	private static void parseRecords(LineInput in, long end, ArrayList<Object[]> readInfo) throws IOException {
+
+		PositionList nPositions = new PositionList();
+		String line, id = "";
+		boolean readSequence = false;
+		StringBuilder seq = new StringBuilder();
+		while (in.getPosition() < end && (line = in.readLine()) != null) {
+			if (line.startsWith("@") || line.startsWith(">")) {
+				if (seq.length() != 0 && !id.isEmpty())
+					addRead(id, seq, nPositions, readInfo);
+				seq.setLength(0);
+				id = line.substring(1).split(" ")[0];
+				readSequence = true;
+			} else if (line.startsWith("+")) {
+				readSequence = false;
+			} else if (readSequence) {
+				seq.append(line);
 			}
 		}
+		if (seq.length() != 0 && !id.isEmpty())
+			addRead(id, seq, nPositions, readInfo);
+
+	}
+
+	private static void addRead(String id, StringBuilder seq, PositionList nPositions, ArrayList<Object[]> readInfo) {
+		Object[] o = { new SparseString(id), SequencePacker.packRead(seq, nPositions), seq.length(), !nPositions.isEmpty() };
+		readInfo.add(o);
+	}
+
+	// buffered line access that keeps track of the position of the next line
+	private static class LineInput {
+
+		private SeekableInput in;
+		private byte[] buffer;
+		private int readChars = 0, next = 0;
+		private long bufferStart;
+		private byte[] line = new byte[1024];
+
+		public LineInput(SeekableInput in, long pos) throws IOException {
+			this.in = in;
+			this.buffer = new byte[1024 * 1024];
+			in.seek(pos);
+			bufferStart = pos;
+		}
+
+		public LineInput(byte[] block) {
+			this.buffer = block;
+			this.readChars = block.length;
+			this.bufferStart = 0;
+		}
 
-		byte[] a = new byte[packed.size()];
-		for (int i = 0; i < packed.size(); i++)
-			a[i] = packed.get(i);
+		public long getPosition() {
+			return bufferStart + next;
+		}
 
-		return a;
+		public String readLine() throws IOException {
+			int len = 0;
+			boolean readAny = false;
+			while (true) {
+				if (next == readChars) {
+					if (in == null)
+						break;
+					bufferStart += readChars;
+					readChars = in.read(buffer);
+					next = 0;
+					if (readChars <= 0) {
+						readChars = 0;
+						break;
+					}
+				}
+				readAny = true;
+				byte b = buffer[next++];
+				if (b == '\n')
+					break;
+				if (len == line.length)
+					line = Arrays.copyOf(line, len * 2);
+				line[len++] = b;
+			}
+			if (!readAny)
+				return null;
+			if (len > 0 && line[len - 1] == '\r')
+				len--;
+			return new String(line, 0, len, StandardCharsets.ISO_8859_1);
+		}
 
 	}
 
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
+
+// inflates the members of a BGZF stream on several threads while handing out their content in order
+public class ParallelGZIPInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private InputStream in;
+	private ExecutorService executor;
+	private ArrayBlockingQueue<Future<byte[]>> blocks;
+	private Thread producer;
+
+	private byte[] block = new byte[0];
+	private int blockPos = 0;
+	private boolean endOfStream = false;
+
+	public ParallelGZIPInputStream(InputStream in, int cores) {
+		this.in = in;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, cores));
+		this.blocks = new ArrayBlockingQueue<Future<byte[]>>(4 * Math.max(1, cores));
+		this.producer = new Thread(new BlockSplitter());
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	public static InputStream open(File file, int cores) throws IOException {
+		return open(new FileInputStream(file), cores);
+	}
+
+	// plain input is passed through, BGZF is inflated in parallel and any other gzip stream sequentially
+	public static InputStream open(InputStream is, int cores) throws IOException {
+		BufferedInputStream bis = new BufferedInputStream(is, BUFFER_SIZE);
+		byte[] header = new byte[BGZF_Input.HEADER_SIZE];
+		bis.mark(header.length);
+		int n = 0, k;
+		while (n < header.length && (k = bis.read(header, n, header.length - n)) != -1)
+			n += k;
+		bis.reset();
+		if (n < 2 || (header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139)
+			return bis;
+		if (n == header.length && BGZF_Input.getBlockSize(header) > 0)
+			return new ParallelGZIPInputStream(bis, cores);
+		return new BufferedInputStream(new GZIPInputStream(bis, BUFFER_SIZE), BUFFER_SIZE);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return block[blockPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int n = Math.min(len, block.length - blockPos);
+		System.arraycopy(block, blockPos, b, off, n);
+		blockPos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return block.length - blockPos;
+	}
+
+	private boolean fill() throws IOException {
+		while (blockPos == block.length) {
+			if (endOfStream)
+				return false;
+			try {
+				byte[] next = blocks.take().get();
+				if (next == null)
+					endOfStream = true;
+				else {
+					block = next;
+					blockPos = 0;
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				endOfStream = true;
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		producer.interrupt();
+		executor.shutdownNow();
+		in.close();
+	}
+
+	private class BlockSplitter implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				byte[] header = new byte[BGZF_Input.HEADER_SIZE];
+				while (readFully(header, 0, header.length)) {
+					int blockSize = BGZF_Input.getBlockSize(header);
+					if (blockSize < 0)
+						throw new IOException("Not a BGZF block");
+					final byte[] data = new byte[blockSize];
+					System.arraycopy(header, 0, data, 0, header.length);
+					if (!readFully(data, header.length, blockSize - header.length))
+						throw new IOException("Truncated BGZF block");
+					blocks.put(executor.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return BGZF_Input.inflateBlock(data, data.length);
+						}
+					}));
+				}
+				blocks.put(done(null, null));
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				try {
+					blocks.put(done(null, e));
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+			executor.shutdown();
+		}
+
+		private boolean readFully(byte[] b, int off, int len) throws IOException {
+			int n = 0, k;
+			while (n < len && (k = in.read(b, off + n, len - n)) != -1)
+				n += k;
+			if (n > 0 && n < len)
+				throw new IOException("Truncated BGZF block");
+			return n == len;
+		}
+
+		private Future<byte[]> done(final byte[] result, final IOException error) {
+			FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					if (error != null)
+						throw error;
+					return result;
+				}
+			});
+			task.run();
+			return task;
+		}
+
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import util.Metrics;
+import util.ReaderExecutors;
+
+// reads a SeekableInput ahead into a second buffer while the current one is parsed, the buffer size follows how fast the input is consumed,
+// second buffers and growth are only granted while the buffers of all inputs together stay within a shared memory limit
+public class PrefetchingInput {
+
+	public static final int MIN_BUFFER_SIZE = 256 * 1024, MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_MEMORY_LIMIT = 256L * 1024 * 1024;
+	private static final long SLOW_CONSUMPTION_MS = 5000;
+
+	private static final LongAdder prefetchCounter = Metrics.counter("prefetch.reads");
+	private static final LongAdder stallCounter = Metrics.counter("prefetch.stalls");
+	private static final AtomicLong bufferedMemory = new AtomicLong();
+	private static volatile long memoryLimit = DEFAULT_MEMORY_LIMIT;
+	private static ExecutorService executor;
+
+	private SeekableInput in;
+	private byte[] current;
+	private int length;
+	private int bufferSize;
+	private long allocated;
+	private int swaps;
+	private Future<Object[]> pending;
+	private long lastSwap = System.currentTimeMillis();
+
+	public PrefetchingInput(SeekableInput in, int bufferSize) {
+		this.in = in;
+		this.bufferSize = bufferSize;
+	}
+
+	// returns the next filled buffer holding getLength() bytes, or -1 at the end of the input
+	public byte[] next() throws IOException {
+		boolean stalled = pending != null && !pending.isDone();
+		byte[] free = current;
+		if (pending != null) {
+			Object[] result;
+			try {
+				result = pending.get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+			pending = null;
+			current = (byte[]) result[0];
+			length = (int) result[1];
+		} else {
+			// reading directly into the consumed buffer as long as there is no second one
+			current = resize(free, bufferSize);
+			free = null;
+			length = in.read(current);
+		}
+
+		// growing buffers of inputs the parser waits for while memory is left, shrinking those rarely consumed
+		long now = System.currentTimeMillis();
+		if (stalled) {
+			stallCounter.increment();
+			if (bufferedMemory.get() + 2L * bufferSize <= memoryLimit)
+				bufferSize = Math.min(MAX_BUFFER_SIZE, 2 * bufferSize);
+		} else if (now - lastSwap > SLOW_CONSUMPTION_MS)
+			bufferSize = Math.max(MIN_BUFFER_SIZE, bufferSize / 2);
+		lastSwap = now;
+
+		// inputs are only read ahead once they are consumed beyond their first buffer
+		if (length >= 0 && swaps++ > 0) {
+			long extra = bufferSize - (free != null ? free.length : 0);
+			if (extra <= 0 || bufferedMemory.get() + extra <= memoryLimit) {
+				prefetch(resize(free, bufferSize));
+				free = null;
+			}
+		}
+		if (free != null)
+			release(free);
+		return current;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void close() throws IOException {
+		try {
+			if (pending != null)
+				pending.get();
+		} catch (Exception e) {
+			// closing anyway
+		}
+		pending = null;
+		current = null;
+		bufferedMemory.addAndGet(-allocated);
+		allocated = 0;
+		in.close();
+	}
+
+	// limits the memory taken by the buffers of all inputs, each input keeps at least one buffer
+	public static void setMemoryLimit(long limit) {
+		memoryLimit = limit;
+	}
+
+	// returns the memory currently taken by the buffers of all inputs
+	public static long getBufferedMemory() {
+		return bufferedMemory.get();
+	}
+
+	private byte[] resize(byte[] buffer, int size) {
+		if (buffer != null && buffer.length == size)
+			return buffer;
+		if (buffer != null)
+			release(buffer);
+		allocated += size;
+		bufferedMemory.addAndGet(size);
+		return new byte[size];
+	}
+
+	private void release(byte[] buffer) {
+		allocated -= buffer.length;
+		bufferedMemory.addAndGet(-buffer.length);
+	}
+
+	private void prefetch(final byte[] buffer) {
+		pending = getExecutor().submit(new Callable<Object[]>() {
+			@Override
+			public Object[] call() throws IOException {
+				int n = in.read(buffer);
+				prefetchCounter.increment();
+				Object[] result = { buffer, n };
+				return result;
+			}
+		});
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null)
+			executor = ReaderExecutors.newReaderExecutor(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+		return executor;
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// file pointers always refer to the uncompressed data, so BGZF files can be split like plain ones
+public abstract class SeekableInput {
+
+	public abstract void seek(long pos) throws IOException;
+
+	public abstract int read(byte[] b) throws IOException;
+
+	public abstract long getFilePointer() throws IOException;
+
+	public abstract long length() throws IOException;
+
+	public abstract void close() throws IOException;
+
+	public static SeekableInput open(File file) throws IOException {
+		if (BGZF_Input.isBGZF(file))
+			return new BGZF_Input(file);
+		return new FileInput(file);
+	}
+
+	public static boolean isSeekable(File file) {
+		return !isGzip(file) || BGZF_Input.isBGZF(file);
+	}
+
+	public static boolean isGzip(File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return raf.length() >= 2 && raf.read() == 31 && raf.read() == 139;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public static class FileInput extends SeekableInput {
+
+		private RandomAccessFile raf;
+
+		public FileInput(File file) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+		}
+
+		@Override
+		public void seek(long pos) throws IOException {
+			raf.seek(pos);
+		}
+
+		@Override
+		public int read(byte[] b) throws IOException {
+			return raf.read(b);
+		}
+
+		@Override
+		public long getFilePointer() throws IOException {
+			return raf.getFilePointer();
+		}
+
+		@Override
+		public long length() throws IOException {
+			return raf.length();
+		}
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package maf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hits.Hit;
+import hits.Hit.FrameDirection;
+import util.SparseString;
+
+// compact binary runs of parsed alignments sorted by read index, followed by the dictionary of the subject IDs used and a sparse index
+// mapping read indices onto record offsets
+public class AlignmentRun {
+
+	public static final int MAX_OPEN_RUNS = 64;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int RECORD_SIZE = 37;
+	private static final int INDEX_SPACING = 1024 * 1024;
+	private static final AtomicInteger runCounter = new AtomicInteger();
+
+	private File file;
+	private int[] subjectRemap;
+
+	public AlignmentRun(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	// maps the local subject IDs of this run onto global ones, null keeps them unchanged
+	public void setSubjectRemap(int[] subjectRemap) {
+		this.subjectRemap = subjectRemap;
+	}
+
+	public Reader openReader() throws IOException {
+		return new Reader(file, subjectRemap);
+	}
+
+	// opens a reader only returning alignments of reads within [fromRead, toRead)
+	public Reader openReader(int fromRead, int toRead) throws IOException {
+		return new Reader(file, subjectRemap, fromRead, toRead);
+	}
+
+	// returns {int[] read indices, long[] offsets} of the first records of indexed reads, the last entry marks the end of all records
+	public Object[] readIndex() throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			readFully(channel, buffer, channel.size() - 16);
+			long indexStart = buffer.getLong(0);
+			buffer = ByteBuffer.allocate((int) (channel.size() - 16 - indexStart));
+			readFully(channel, buffer, indexStart);
+			buffer.flip();
+			int size = buffer.getInt();
+			int[] readIndices = new int[size];
+			long[] offsets = new long[size];
+			for (int i = 0; i < size; i++) {
+				readIndices[i] = buffer.getInt();
+				offsets[i] = buffer.getLong();
+			}
+			Object[] index = { readIndices, offsets };
+			return index;
+		} finally {
+			fis.close();
+		}
+	}
+
+	// splits [0, numOfReads) into at most numOfShards consecutive read ranges holding roughly equal amounts of alignment data
+	public static int[] partitionReads(ArrayList<AlignmentRun> runs, int numOfReads, int numOfShards) throws IOException {
+		ArrayList<Object[]> indices = new ArrayList<Object[]>();
+		long total = 0;
+		for (AlignmentRun run : runs) {
+			Object[] index = run.readIndex();
+			long[] offsets = (long[]) index[1];
+			if (offsets.length > 0)
+				total += offsets[offsets.length - 1];
+			indices.add(index);
+		}
+		ArrayList<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		for (int s = 1; s < numOfShards; s++) {
+
+			// searching the first read preceded by the targeted amount of data
+			long target = total * s / numOfShards;
+			int lo = bounds.get(bounds.size() - 1), hi = numOfReads;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (getBytesBefore(indices, mid) < target)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			if (lo > bounds.get(bounds.size() - 1) && lo < numOfReads)
+				bounds.add(lo);
+
+		}
+		bounds.add(numOfReads);
+		int[] result = new int[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	// estimates the amount of data of all reads preceding readIndex by interpolating between index entries
+	private static long getBytesBefore(ArrayList<Object[]> indices, int readIndex) {
+		long bytes = 0;
+		for (Object[] index : indices) {
+			int[] readIndices = (int[]) index[0];
+			long[] offsets = (long[]) index[1];
+			if (readIndices.length == 0 || readIndex <= readIndices[0])
+				continue;
+			int i = Arrays.binarySearch(readIndices, readIndex);
+			if (i >= 0)
+				bytes += offsets[i];
+			else if (-i - 1 >= readIndices.length)
+				bytes += offsets[readIndices.length - 1];
+			else {
+				int j = -i - 1;
+				bytes += offsets[j - 1] + (offsets[j] - offsets[j - 1]) * (readIndex - readIndices[j - 1]) / (readIndices[j] - readIndices[j - 1]);
+			}
+		}
+		return bytes;
+	}
+
+	// returns the subject dictionary stored at the end of the run as {SparseString name, int length}
+	public ArrayList<Object[]> readSubjectInfos() throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			readFully(channel, buffer, channel.size() - 8);
+			long recordsEnd = buffer.getLong(0);
+			buffer = ByteBuffer.allocate((int) (channel.size() - 8 - recordsEnd));
+			readFully(channel, buffer, recordsEnd);
+			buffer.flip();
+			int numOfSubjects = buffer.getInt();
+			ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>(numOfSubjects);
+			for (int i = 0; i < numOfSubjects; i++) {
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				Object[] subject = { new SparseString(new String(name)), buffer.getInt() };
+				subjectInfos.add(subject);
+			}
+			return subjectInfos;
+		} finally {
+			fis.close();
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, pos);
+			if (n < 0)
+				throw new IOException("Unexpected end of alignment run");
+			pos += n;
+		}
+	}
+
+	public void delete() {
+		file.delete();
+	}
+
+	public static long getTotalSize(ArrayList<AlignmentRun> runs) {
+		long size = 0;
+		for (AlignmentRun run : runs)
+			size += run.getFile().length();
+		return size;
+	}
+
+	public static File createRunFile(File tmpFolder, String prefix) {
+		File f = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "z" + System.currentTimeMillis() + "-" + prefix + runCounter.getAndIncrement() + ".bin");
+		while (f.exists())
+			f = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "z" + System.currentTimeMillis() + "-" + prefix + runCounter.getAndIncrement() + ".bin");
+		return f;
+	}
+
+	// merges groups of at most MAX_OPEN_RUNS runs in parallel until all remaining runs can be opened at once
+	public static ArrayList<AlignmentRun> mergeDown(ArrayList<AlignmentRun> runs, File tmpFolder, ExecutorService executor, boolean verbose)
+			throws Exception {
+		return mergeDown(runs, tmpFolder, executor, verbose, false);
+	}
+
+	// if keepInputs is set, the given runs survive the merge and only intermediate runs are deleted
+	public static ArrayList<AlignmentRun> mergeDown(ArrayList<AlignmentRun> runs, File tmpFolder, ExecutorService executor, boolean verbose,
+			boolean keepInputs) throws Exception {
+		return mergeDown(runs, tmpFolder, executor, verbose, keepInputs, MAX_OPEN_RUNS);
+	}
+
+	// merges until at most maxOpenRuns runs remain, e.g. to bound the readers of several mergers running at once
+	public static ArrayList<AlignmentRun> mergeDown(ArrayList<AlignmentRun> runs, File tmpFolder, ExecutorService executor, boolean verbose,
+			boolean keepInputs, int maxOpenRuns) throws Exception {
+		boolean isInput = true;
+		while (runs.size() > maxOpenRuns) {
+			ArrayList<AlignmentRun> mergedRuns = new ArrayList<AlignmentRun>();
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < runs.size(); i += MAX_OPEN_RUNS) {
+				final ArrayList<AlignmentRun> group = new ArrayList<AlignmentRun>(runs.subList(i, Math.min(i + MAX_OPEN_RUNS, runs.size())));
+				final AlignmentRun mergedRun = new AlignmentRun(createRunFile(tmpFolder, "merge"));
+				futures.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws IOException {
+						new Merger(group).transferTo(mergedRun.getFile());
+						return null;
+					}
+				}));
+				mergedRuns.add(mergedRun);
+			}
+
+			// the merged runs replace their inputs only if every merge of this round succeeded
+			Exception error = null;
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (error == null)
+						error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+			if (error != null) {
+				for (AlignmentRun run : mergedRuns)
+					run.delete();
+				if (!isInput) {
+					for (AlignmentRun run : runs)
+						run.delete();
+				}
+				throw error;
+			}
+			if (!keepInputs || !isInput) {
+				for (AlignmentRun run : runs)
+					run.delete();
+			}
+			isInput = false;
+			if (verbose)
+				System.out.println(runs.size() + " runs merged into " + mergedRuns.size());
+			runs = mergedRuns;
+		}
+		return runs;
+	}
+
+	// writes records sequentially through a file channel, the subject dictionary is appended on close
+	public static class Writer {
+
+		private FileOutputStream fos;
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long written = 0, orderBase, numOfRecords = 0;
+		private int minReadIndex = Integer.MAX_VALUE, maxReadIndex = -1, lastReadIndex = -1;
+		private long lastIndexed = -INDEX_SPACING;
+		private int[] indexReads = new int[16];
+		private long[] indexOffsets = new long[16];
+		private int indexSize = 0;
+
+		public Writer(File file) throws IOException {
+			this(file, 0);
+		}
+
+		// records added via add(int, Hit) get consecutive orders starting at orderBase
+		public Writer(File file, long orderBase) throws IOException {
+			this.fos = new FileOutputStream(file);
+			this.channel = fos.getChannel();
+			this.orderBase = orderBase;
+		}
+
+		public void add(int readIndex, Hit h) throws IOException {
+			boolean negative = h.getFrame() == FrameDirection.NEGATIVE;
+			int queryStart = negative ? h.getTotalQueryLenth() - h.getQuery_start() - 1 : h.getQuery_start();
+			ArrayList<Byte> editOps = h.getEditOperations();
+			ensureCapacity(RECORD_SIZE + editOps.size());
+			putRecord(readIndex, orderBase + numOfRecords, h.getSubjectID(), h.getRawScore(), h.getRef_start(), queryStart, h.getQueryLength(),
+					(byte) (negative ? 1 : 0), editOps.size());
+			for (int i = 0; i < editOps.size(); i++)
+				buffer.put(editOps.get(i));
+		}
+
+		public void add(int readIndex, long order, int subjectID, int rawScore, int refStart, int queryStart, int queryLength, byte negative,
+				byte[] editOps, int offset, int numOfEditOps) throws IOException {
+			ensureCapacity(RECORD_SIZE + numOfEditOps);
+			putRecord(readIndex, order, subjectID, rawScore, refStart, queryStart, queryLength, negative, numOfEditOps);
+			buffer.put(editOps, offset, numOfEditOps);
+		}
+
+		private void putRecord(int readIndex, long order, int subjectID, int rawScore, int refStart, int queryStart, int queryLength, byte negative,
+				int numOfEditOps) {
+
+			// indexing the first record of a read every INDEX_SPACING bytes
+			if (readIndex > lastReadIndex && written - lastIndexed >= INDEX_SPACING) {
+				addIndexEntry(readIndex, written);
+				lastIndexed = written;
+			}
+			lastReadIndex = readIndex;
+
+			buffer.putInt(readIndex);
+			buffer.putLong(order);
+			buffer.putInt(subjectID);
+			buffer.putInt(rawScore);
+			buffer.putInt(refStart);
+			buffer.putInt(queryStart);
+			buffer.putInt(queryLength);
+			buffer.put(negative);
+			buffer.putInt(numOfEditOps);
+			written += RECORD_SIZE + numOfEditOps;
+			numOfRecords++;
+			minReadIndex = Math.min(minReadIndex, readIndex);
+			maxReadIndex = Math.max(maxReadIndex, readIndex);
+		}
+
+		private void addIndexEntry(int readIndex, long offset) {
+			if (indexSize == indexReads.length) {
+				indexReads = Arrays.copyOf(indexReads, 2 * indexSize);
+				indexOffsets = Arrays.copyOf(indexOffsets, 2 * indexSize);
+			}
+			indexReads[indexSize] = readIndex;
+			indexOffsets[indexSize] = offset;
+			indexSize++;
+		}
+
+		private void ensureCapacity(int n) throws IOException {
+			if (buffer.remaining() >= n)
+				return;
+			flush();
+			if (buffer.capacity() < n)
+				buffer = ByteBuffer.allocate(n);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		public long getNumOfRecords() {
+			return numOfRecords;
+		}
+
+		// returns {first, last} read index of all added records, or {-1, -1} if empty
+		public int[] getReadRange() {
+			int[] range = { numOfRecords > 0 ? minReadIndex : -1, maxReadIndex };
+			return range;
+		}
+
+		public void close(ArrayList<Object[]> subjectInfos) throws IOException {
+			try {
+				long recordsEnd = written, indexStart = written + 4;
+				ensureCapacity(4);
+				buffer.putInt(subjectInfos.size());
+				for (Object[] subject : subjectInfos) {
+					byte[] name = ((SparseString) subject[0]).getData();
+					indexStart += 8 + name.length;
+					ensureCapacity(8 + name.length);
+					buffer.putInt(name.length);
+					buffer.put(name);
+					buffer.putInt((int) subject[1]);
+				}
+
+				// writing the index closed by an entry behind the last read
+				if (numOfRecords > 0)
+					addIndexEntry(maxReadIndex + 1, recordsEnd);
+				ensureCapacity(4);
+				buffer.putInt(indexSize);
+				for (int i = 0; i < indexSize; i++) {
+					ensureCapacity(12);
+					buffer.putInt(indexReads[i]);
+					buffer.putLong(indexOffsets[i]);
+				}
+				ensureCapacity(16);
+				buffer.putLong(indexStart);
+				buffer.putLong(recordsEnd);
+				flush();
+				channel.force(false);
+			} finally {
+				channel.close();
+				fos.close();
+			}
+		}
+
+	}
+
+	// collects alignments column-wise and writes them as one sorted run
+	public static class Buffer {
+
+		private int size = 0;
+		private int[] readIndices = new int[1024], subjectIDs = new int[1024], rawScores = new int[1024], refStarts = new int[1024],
+				queryStarts = new int[1024], queryLengths = new int[1024], editOffsets = new int[1025];
+		private long[] orders = new long[1024];
+		private byte[] negatives = new byte[1024];
+		private byte[] editOperations = new byte[16 * 1024];
+
+		public void add(int readIndex, long order, int subjectID, int rawScore, int refStart, int queryStart, int queryLength, boolean negative,
+				ArrayList<Byte> editOps) {
+			if (size == readIndices.length)
+				grow();
+			readIndices[size] = readIndex;
+			orders[size] = order;
+			subjectIDs[size] = subjectID;
+			rawScores[size] = rawScore;
+			refStarts[size] = refStart;
+			queryStarts[size] = queryStart;
+			queryLengths[size] = queryLength;
+			negatives[size] = (byte) (negative ? 1 : 0);
+			int offset = editOffsets[size];
+			if (offset + editOps.size() > editOperations.length)
+				editOperations = Arrays.copyOf(editOperations, Math.max(2 * editOperations.length, offset + editOps.size()));
+			for (int i = 0; i < editOps.size(); i++)
+				editOperations[offset + i] = editOps.get(i);
+			editOffsets[size + 1] = offset + editOps.size();
+			size++;
+		}
+
+		private void grow() {
+			int n = 2 * size;
+			readIndices = Arrays.copyOf(readIndices, n);
+			orders = Arrays.copyOf(orders, n);
+			subjectIDs = Arrays.copyOf(subjectIDs, n);
+			rawScores = Arrays.copyOf(rawScores, n);
+			refStarts = Arrays.copyOf(refStarts, n);
+			queryStarts = Arrays.copyOf(queryStarts, n);
+			queryLengths = Arrays.copyOf(queryLengths, n);
+			negatives = Arrays.copyOf(negatives, n);
+			editOffsets = Arrays.copyOf(editOffsets, n + 1);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public long getSizeInBytes() {
+			return (long) RECORD_SIZE * size + editOffsets[size];
+		}
+
+		// sorts by read index keeping the insertion order of alignments belonging to the same read
+		public void sortAndWrite(File out) throws IOException {
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++)
+				keys[i] = ((long) readIndices[i] << 32) | i;
+			Arrays.sort(keys);
+			Writer writer = new Writer(out);
+			try {
+				for (long key : keys) {
+					int i = (int) key;
+					writer.add(readIndices[i], orders[i], subjectIDs[i], rawScores[i], refStarts[i], queryStarts[i], queryLengths[i], negatives[i],
+							editOperations, editOffsets[i], editOffsets[i + 1] - editOffsets[i]);
+				}
+			} finally {
+				writer.close(new ArrayList<Object[]>());
+			}
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+	}
+
+	public static class Reader {
+
+		private FileInputStream fis;
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long recordsEnd, consumed = 0;
+		private int[] subjectRemap;
+		private int fromRead = 0, toRead = Integer.MAX_VALUE;
+
+		private int readIndex, subjectID, rawScore, refStart, queryStart, queryLength, numOfEditOps;
+		private long order;
+		private byte negative;
+		private byte[] editOps = new byte[256];
+
+		public Reader(File file, int[] subjectRemap) throws IOException {
+			this.fis = new FileInputStream(file);
+			this.channel = fis.getChannel();
+			this.subjectRemap = subjectRemap;
+			ByteBuffer footer = ByteBuffer.allocate(8);
+			readFully(channel, footer, channel.size() - 8);
+			this.recordsEnd = footer.getLong(0);
+			buffer.flip();
+		}
+
+		// starts at the last indexed read not behind fromRead, preceding alignments are skipped by next
+		public Reader(File file, int[] subjectRemap, int fromRead, int toRead) throws IOException {
+			this(file, subjectRemap);
+			this.fromRead = fromRead;
+			this.toRead = toRead;
+			Object[] index = new AlignmentRun(file).readIndex();
+			int[] readIndices = (int[]) index[0];
+			long[] offsets = (long[]) index[1];
+			int i = Arrays.binarySearch(readIndices, fromRead);
+			i = i < 0 ? -i - 2 : i;
+			if (i >= 0) {
+				consumed = offsets[i];
+				channel.position(consumed);
+			}
+		}
+
+		public boolean next() throws IOException {
+			while (readNext()) {
+				if (readIndex >= toRead)
+					break;
+				if (readIndex >= fromRead)
+					return true;
+			}
+			close();
+			return false;
+		}
+
+		private boolean readNext() throws IOException {
+			if (consumed >= recordsEnd)
+				return false;
+			ensureAvailable(RECORD_SIZE);
+			readIndex = buffer.getInt();
+			order = buffer.getLong();
+			subjectID = buffer.getInt();
+			if (subjectRemap != null)
+				subjectID = subjectRemap[subjectID];
+			rawScore = buffer.getInt();
+			refStart = buffer.getInt();
+			queryStart = buffer.getInt();
+			queryLength = buffer.getInt();
+			negative = buffer.get();
+			numOfEditOps = buffer.getInt();
+			if (numOfEditOps > editOps.length)
+				editOps = new byte[Math.max(numOfEditOps, 2 * editOps.length)];
+			ensureAvailable(numOfEditOps);
+			buffer.get(editOps, 0, numOfEditOps);
+			consumed += RECORD_SIZE + numOfEditOps;
+			return true;
+		}
+
+		private void ensureAvailable(int n) throws IOException {
+			if (buffer.remaining() >= n)
+				return;
+			buffer.compact();
+			if (buffer.capacity() < n) {
+				buffer.flip();
+				buffer = ByteBuffer.allocate(n).put(buffer);
+			}
+			while (buffer.position() < n) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Unexpected end of alignment run");
+			}
+			buffer.flip();
+		}
+
+		public void writeTo(Writer writer) throws IOException {
+			writer.add(readIndex, order, subjectID, rawScore, refStart, queryStart, queryLength, negative, editOps, 0, numOfEditOps);
+		}
+
+		// queryStart refers to the forward strand afterwards, as in MAF_Hit.setReadInfo
+		public MAF_Hit toHit(Object[] readInfo) {
+			ArrayList<Byte> editOperations = new ArrayList<Byte>(numOfEditOps);
+			for (int i = 0; i < numOfEditOps; i++)
+				editOperations.add(editOps[i]);
+			FrameDirection frameDir = negative == 1 ? FrameDirection.NEGATIVE : FrameDirection.POSITIVE;
+			int start = negative == 1 ? (int) readInfo[2] - queryStart - 1 : queryStart;
+			return new MAF_Hit(rawScore, subjectID, refStart, start, queryLength, frameDir, editOperations, readInfo);
+		}
+
+		public int getReadIndex() {
+			return readIndex;
+		}
+
+		public void close() throws IOException {
+			channel.close();
+			fis.close();
+		}
+
+	}
+
+	// merges runs by read index and order, at most MAX_OPEN_RUNS runs should be merged at once
+	public static class Merger {
+
+		private PriorityQueue<Reader> queue;
+		private Reader last;
+
+		public Merger(ArrayList<AlignmentRun> runs) throws IOException {
+			this(runs, 0, Integer.MAX_VALUE);
+		}
+
+		// only merges alignments of reads within [fromRead, toRead)
+		public Merger(ArrayList<AlignmentRun> runs, int fromRead, int toRead) throws IOException {
+			queue = new PriorityQueue<Reader>(Math.max(1, runs.size()), new Comparator<Reader>() {
+				@Override
+				public int compare(Reader r1, Reader r2) {
+					int c = Integer.compare(r1.readIndex, r2.readIndex);
+					return c != 0 ? c : Long.compare(r1.order, r2.order);
+				}
+			});
+			for (AlignmentRun run : runs) {
+				Reader reader = fromRead == 0 && toRead == Integer.MAX_VALUE ? run.openReader() : run.openReader(fromRead, toRead);
+				if (reader.next())
+					queue.add(reader);
+			}
+		}
+
+		// returns the reader positioned at the next alignment, or null if all runs are exhausted
+		public Reader next() throws IOException {
+			if (last != null && last.next())
+				queue.add(last);
+			last = queue.poll();
+			return last;
+		}
+
+		// merged records keep their (already remapped) subject IDs, hence the dictionary is left empty
+		public void transferTo(File out) throws IOException {
+			Writer writer = new Writer(out);
+			try {
+				Reader reader;
+				while ((reader = next()) != null)
+					reader.writeTo(writer);
+			} finally {
+				writer.close(new ArrayList<Object[]>());
+			}
+		}
+
+	}
+
+}
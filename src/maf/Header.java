@@ -19,11 +19,12 @@ package maf;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.math.BigInteger;
 
 import daa.reader.DAA_Header;
 import daa.reader.DAA_Reader;
+import io.ParallelGZIPInputStream;
 
 public class Header {
 
@@ -47,25 +48,12 @@ public class Header {
 
 		try {
 
-			BufferedReader buf = new BufferedReader(new FileReader(maf_file));
+			BufferedReader buf = new BufferedReader(new InputStreamReader(ParallelGZIPInputStream.open(maf_file, 1)));
 			String l;
 			while ((l = buf.readLine()) != null) {
-				if (l.startsWith("#")) {
-					for (String s : l.split("\\s+")) {
-						if (s.startsWith("a="))
-							gapOpen = Integer.valueOf(s.substring(2));
-						if (s.startsWith("b="))
-							gapExtend = Integer.valueOf(s.substring(2));
-						if (s.startsWith("sequences="))
-							dbSeqs = Long.valueOf(s.substring(10));
-						if (s.startsWith("letters="))
-							dbLetters = BigInteger.valueOf(Long.valueOf(s.substring(8)));
-						if (s.startsWith("lambda="))
-							lambda = Double.valueOf(s.substring(7));
-						if (s.startsWith("K="))
-							K = Double.valueOf(s.substring(2));
-					}
-				} else
+				if (l.startsWith("#"))
+					parseLine(l);
+				else
 					break;
 
 			}
@@ -77,6 +65,23 @@ public class Header {
 
 	}
 
+	public void parseLine(String l) {
+		for (String s : l.split("\\s+")) {
+			if (s.startsWith("a="))
+				gapOpen = Integer.valueOf(s.substring(2));
+			if (s.startsWith("b="))
+				gapExtend = Integer.valueOf(s.substring(2));
+			if (s.startsWith("sequences="))
+				dbSeqs = Long.valueOf(s.substring(10));
+			if (s.startsWith("letters="))
+				dbLetters = BigInteger.valueOf(Long.valueOf(s.substring(8)));
+			if (s.startsWith("lambda="))
+				lambda = Double.valueOf(s.substring(7));
+			if (s.startsWith("K="))
+				K = Double.valueOf(s.substring(2));
+		}
+	}
+
 	public int getGapOpen() {
 		return gapOpen;
 	}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package maf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import hits.Hit;
+import hits.Hit.FrameDirection;
+import util.Hit_Filter;
+
+// keeps the hits of a single read in runs sorted by descending raw score on disk
+public class HitSpill {
+
+	private static final int MAX_RUNS = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private File tmpFolder;
+	private ArrayList<File> runs = new ArrayList<File>();
+	private int runCounter = 0;
+
+	public HitSpill(File tmpFolder) {
+		this.tmpFolder = tmpFolder;
+	}
+
+	public synchronized void add(ArrayList<MAF_Hit> hits) {
+		if (hits.isEmpty())
+			return;
+		ArrayList<MAF_Hit> sortedHits = new ArrayList<MAF_Hit>(hits);
+		Collections.sort(sortedHits, new ScoreComparator());
+		try {
+			File run = createRunFile();
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+			try {
+				for (MAF_Hit h : sortedHits)
+					write(os, h);
+			} finally {
+				os.close();
+			}
+			runs.add(run);
+
+			// merging all runs into one keeps the number of open files bounded
+			if (runs.size() >= MAX_RUNS)
+				compact();
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return runs.isEmpty();
+	}
+
+	// returns the hits of all runs in order of descending raw score
+	public Iterator<MAF_Hit> iterator(Object[] readInfo) throws IOException {
+		return new RunMerger(runs, readInfo);
+	}
+
+	// returns the hits of all runs in order of descending raw score which pass the given filter (if not null)
+	public Iterator<Hit> filteredIterator(Object[] readInfo, Hit_Filter.ScoreOrderedFilter filter) throws IOException {
+		final RunMerger merger = new RunMerger(runs, readInfo);
+		final Hit_Filter.ScoreOrderedFilter hitFilter = filter;
+		return new Iterator<Hit>() {
+
+			private Hit next = advance();
+
+			private Hit advance() {
+				while (merger.hasNext()) {
+					MAF_Hit h = merger.next();
+					if (hitFilter == null || hitFilter.passes(h))
+						return new Hit(h);
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Hit next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				Hit h = next;
+				next = advance();
+				return h;
+			}
+
+		};
+	}
+
+	public synchronized void clear() {
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+	}
+
+	private void compact() throws IOException {
+		File merged = createRunFile();
+		RunMerger merger = new RunMerger(runs, null);
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE));
+		try {
+			merger.transferTo(os);
+		} finally {
+			os.close();
+			merger.close();
+		}
+		clear();
+		runs.add(merged);
+	}
+
+	private File createRunFile() {
+		File f = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "z" + System.currentTimeMillis() + "-run" + (runCounter++) + ".bin");
+		while (f.exists())
+			f = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "z" + System.currentTimeMillis() + "-run" + (runCounter++) + ".bin");
+		return f;
+	}
+
+	private static void write(DataOutputStream os, MAF_Hit h) throws IOException {
+		os.writeInt(h.getRawScore());
+		os.writeInt(h.getSubjectID());
+		os.writeInt(h.getRefStart());
+		os.writeInt(h.getQueryStart());
+		os.writeInt(h.getQueryLength());
+		os.writeBoolean(h.getFrameDir() == FrameDirection.NEGATIVE);
+		ArrayList<Byte> editOperations = h.getEditOperations();
+		os.writeInt(editOperations.size());
+		for (byte b : editOperations)
+			os.writeByte(b);
+	}
+
+	private static class ScoreComparator implements Comparator<MAF_Hit> {
+		@Override
+		public int compare(MAF_Hit h1, MAF_Hit h2) {
+			return Integer.compare(h2.getRawScore(), h1.getRawScore());
+		}
+	}
+
+	private static class RunReader {
+
+		private DataInputStream is;
+		private int index;
+		private int rawScore, subjectID, refStart, queryStart, queryLength;
+		private boolean negative;
+		private ArrayList<Byte> editOperations;
+
+		public RunReader(File run, int index) throws IOException {
+			this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+			this.index = index;
+		}
+
+		public boolean next() throws IOException {
+			try {
+				rawScore = is.readInt();
+			} catch (EOFException e) {
+				is.close();
+				return false;
+			}
+			subjectID = is.readInt();
+			refStart = is.readInt();
+			queryStart = is.readInt();
+			queryLength = is.readInt();
+			negative = is.readBoolean();
+			int numOfEditOperations = is.readInt();
+			editOperations = new ArrayList<Byte>(numOfEditOperations);
+			for (int i = 0; i < numOfEditOperations; i++)
+				editOperations.add(is.readByte());
+			return true;
+		}
+
+		public void write(DataOutputStream os) throws IOException {
+			os.writeInt(rawScore);
+			os.writeInt(subjectID);
+			os.writeInt(refStart);
+			os.writeInt(queryStart);
+			os.writeInt(queryLength);
+			os.writeBoolean(negative);
+			os.writeInt(editOperations.size());
+			for (byte b : editOperations)
+				os.writeByte(b);
+		}
+
+		public MAF_Hit toHit(Object[] readInfo) {
+			FrameDirection frameDir = negative ? FrameDirection.NEGATIVE : FrameDirection.POSITIVE;
+			return new MAF_Hit(rawScore, subjectID, refStart, queryStart, queryLength, frameDir, editOperations, readInfo);
+		}
+
+	}
+
+	public static class RunMerger implements Iterator<MAF_Hit> {
+
+		private PriorityQueue<RunReader> queue;
+		private Object[] readInfo;
+
+		public RunMerger(ArrayList<File> runs, Object[] readInfo) throws IOException {
+			this.readInfo = readInfo;
+			this.queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+				@Override
+				public int compare(RunReader r1, RunReader r2) {
+					int c = Integer.compare(r2.rawScore, r1.rawScore);
+					return c != 0 ? c : Integer.compare(r1.index, r2.index);
+				}
+			});
+			for (int i = 0; i < runs.size(); i++) {
+				RunReader reader = new RunReader(runs.get(i), i);
+				if (reader.next())
+					queue.add(reader);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		@Override
+		public MAF_Hit next() {
+			if (queue.isEmpty())
+				throw new NoSuchElementException();
+			RunReader reader = queue.poll();
+			MAF_Hit h = reader.toHit(readInfo);
+			try {
+				if (reader.next())
+					queue.add(reader);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return h;
+		}
+
+		// copies the remaining hits in merged order without building hit objects
+		public void transferTo(DataOutputStream os) throws IOException {
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				reader.write(os);
+				if (reader.next())
+					queue.add(reader);
+			}
+		}
+
+		public void close() throws IOException {
+			for (RunReader reader : queue)
+				reader.is.close();
+			queue.clear();
+		}
+
+	}
+
+}
@@ -17,44 +17,91 @@
 
 package maf;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import daa.writer.DAA_Writer;
+import daa.writer.FlushPolicy;
 import hits.Hit;
-import io.FastAQ_Reader;
+import io.FastAQ_Reader_Parallel;
+import io.ParallelGZIPInputStream;
+import io.PrefetchingInput;
+import io.SeekableInput;
+import startUp.MainConverter;
 import util.Hit_Filter;
 import util.Hit_Filter_parallel;
 import util.LineCounter;
+import util.Metrics;
+import util.ReaderExecutors;
 import util.SparseString;
+import util.StatusReporter;
 
 public class MAF_Converter {
-	
-	private int maxProgress;
+
+	private static final LongAdder alignmentCounter = Metrics.counter("converter.alignments");
+	private static final LongAdder badEntryCounter = Metrics.counter("converter.bad_maf_entries");
+	private static final LongAdder spilledReadCounter = Metrics.counter("converter.spilled_reads");
+	private static final LongAdder writtenCounter = Metrics.counter("converter.written_alignments");
+	private static final Metrics.Timer step1Timer = Metrics.timer("converter.step1_reads");
+	private static final Metrics.Timer step2Timer = Metrics.timer("converter.step2_maf_scan");
+	private static final Metrics.Timer step3Timer = Metrics.timer("converter.step3_write");
+
+	private int maxProgress, cores;
 	private AtomicInteger progress = new AtomicInteger(), lastProgress = new AtomicInteger();
 
 	private CountDownLatch latch;
 	private ExecutorService executor;
 
+	private HitSpill hitSpill;
+	private long hitMemory;
+	private AtomicLong bufferedMemory = new AtomicLong();
+
+	private AlignmentRun.Writer batchWriter;
+	private boolean batchClosed = false, batchFailed = false, writeFailed = false;
+
 	public void run(File daaFile, File mafFile, File queryFile, int cores, boolean verbose, File headerFile, boolean doFiltering) {
+		run(daaFile, mafFile, queryFile, cores, verbose, headerFile, doFiltering, null, null);
+	}
+
+	// converts a batch of a streamed MAF file into an alignment run, its records are ordered after those of all previous batches
+	// returns {records, first read index, last read index} of the written run, or null if it could not be completed
+	public long[] runToBatch(File runFile, int batchIndex, File mafFile, File queryFile, int cores, boolean verbose, File headerFile,
+			boolean doFiltering, Long maxMemory, File tmpFolder) {
+		try {
+			batchWriter = new AlignmentRun.Writer(runFile, (long) batchIndex << 32);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		run(runFile, mafFile, queryFile, cores, verbose, headerFile, doFiltering, maxMemory, tmpFolder);
+		if (!batchClosed)
+			return null;
+		int[] readRange = batchWriter.getReadRange();
+		long[] stats = { batchWriter.getNumOfRecords(), readRange[0], readRange[1] };
+		return stats;
+	}
+
+	// if maxMemory is set, the hits of reads exceeding half of it are spilled into sorted runs within tmpFolder
+	public void run(File daaFile, File mafFile, File queryFile, int cores, boolean verbose, File headerFile, boolean doFiltering, Long maxMemory,
+			File tmpFolder) {
 
 		long time = System.currentTimeMillis();
 		System.out.println("\nConverting " + mafFile.getName() + " to " + daaFile.getName() + "...");
 
+		this.cores = cores;
 		this.executor = Executors.newFixedThreadPool(cores);
 		Header headerInfo = new Header();
 		if (headerFile == null)
@@ -68,13 +115,20 @@ public class MAF_Converter {
 
 		// parsing read information
 		System.out.println("STEP 1 - Processing read-file: " + queryFile.getAbsolutePath());
-		ArrayList<Object[]> readInfos = FastAQ_Reader.read(queryFile);
+		long stepStart = step1Timer.start();
+		ArrayList<Object[]> readInfos = FastAQ_Reader_Parallel.read(queryFile, cores);
+		step1Timer.stop(stepStart);
+		step1Timer.addBytes(queryFile.length());
 		if (verbose)
 			System.out.println(readInfos.size() + " reads processed!");
 
 		// processing maf file
 		System.out.println("STEP 2 - Processing maf-file: " + mafFile.getAbsolutePath());
+		stepStart = step2Timer.start();
 		maxProgress = (int) numOfLines;
+		// batches of a stream only advance counters, their stage and reads are reported by the streamer and the final merge
+		if (batchWriter == null)
+			StatusReporter.setStage("converter.step2_maf_scan", maxProgress);
 		ConcurrentSkipListSet<SubjectEntry> subjectInfoSet = new ConcurrentSkipListSet<SubjectEntry>();
 		ConcurrentSkipListSet<Long> batchSet = new ConcurrentSkipListSet<Long>();
 		ArrayList<Thread> processThreads = generateProcessThreads(mafFile, chunk, subjectInfoSet, batchSet, readInfos);
@@ -87,35 +141,111 @@ public class MAF_Converter {
 			subjectInfos.add(subject);
 		}
 		reportFinish();
+		step2Timer.stop(stepStart);
+		step2Timer.addBytes(mafFile.length());
 		if (verbose)
 			System.out.println(subjectInfos.size() + " references processed!");
 
 		// writing header of daa file
-		DAA_Writer daaWriter = new DAA_Writer(daaFile);
-		daaWriter.writeHeader(headerInfo.getDbSeqs(), headerInfo.getDbLetters(), headerInfo.getGapOpen(), headerInfo.getGapExtend(),
-				headerInfo.getK(), headerInfo.getLambda());
+		DAA_Writer daaWriter = null;
+		if (batchWriter == null) {
+			daaWriter = new DAA_Writer(daaFile);
+
+			// the alignment block usually takes less than half of the MAF input
+			if (MainConverter.PREALLOCATE)
+				daaWriter.preallocate(mafFile.length() / 2);
+			daaWriter.writeHeader(headerInfo.getDbSeqs(), headerInfo.getDbLetters(), headerInfo.getGapOpen(), headerInfo.getGapExtend(),
+					headerInfo.getK(), headerInfo.getLambda());
+		}
 
 		// writing hits into daa file
 		System.out.println("STEP 3 - Writing into daa-file: " + daaFile.getAbsolutePath());
+		stepStart = step3Timer.start();
 		maxProgress = (int) numOfLines - (int) numOfLines_header;
 		progress.set(0);
+		if (batchWriter == null)
+			StatusReporter.setStage("converter.step3_write", maxProgress);
+		if (maxMemory != null) {
+			hitSpill = new HitSpill(tmpFolder != null ? tmpFolder : daaFile.getAbsoluteFile().getParentFile());
+			hitMemory = maxMemory / 2;
+			PrefetchingInput.setMemoryLimit(maxMemory / 4);
+			StatusReporter.addGauge("converter.buffered_hit_bytes", new StatusReporter.Gauge() {
+				@Override
+				public long getValue() {
+					return bufferedMemory.get();
+				}
+			});
+			StatusReporter.addGauge("prefetch.buffered_bytes", new StatusReporter.Gauge() {
+				@Override
+				public long getValue() {
+					return PrefetchingInput.getBufferedMemory();
+				}
+			});
+		}
 		ArrayList<Thread> batchReaders = new ArrayList<Thread>();
 		for (long filePointer : batchSet)
 			batchReaders.add(new BatchReader(filePointer, mafFile, subjectInfos, verbose));
+
+		// batch readers mostly block on reads, so they may run on virtual threads instead of the processing pool
+		ExecutorService readerExecutor = executor;
+		if (MainConverter.VIRTUAL_READERS) {
+			readerExecutor = ReaderExecutors.newReaderExecutor(Math.max(1, Math.min(batchReaders.size(), 4 * cores)));
+			if (verbose)
+				System.out.println("Reading " + batchReaders.size() + " batches "
+						+ (readerExecutor instanceof ThreadPoolExecutor ? "on a pool of blocking reader threads" : "on virtual threads"));
+		}
 		ArrayList<Hit> hits = new ArrayList<Hit>();
+		FlushPolicy flushPolicy = new FlushPolicy();
 		long hitCounter = 0;
 		for (int i = 0; i < readInfos.size(); i++) {
 
 			Object[] readInfo = readInfos.get(i);
 			// reading-out hits in parallel
+			bufferedMemory.set(0);
 			for (Thread reader : batchReaders)
 				((BatchReader) reader).setReadName(readInfo);
-			runInParallel(batchReaders);
+			runInParallel(batchReaders, readerExecutor);
+
+			// streaming hits of reads exceeding the memory budget from their spilled runs
+			if (hitSpill != null && !hitSpill.isEmpty()) {
+				for (Thread reader : batchReaders)
+					hitSpill.add(((BatchReader) reader).getHits());
+				spilledReadCounter.increment();
+				if (verbose)
+					System.out.println("Spilled hits of read " + readInfo[0].toString() + " exceeding memory budget");
+				if (!hits.isEmpty()) {
+					hitCounter += hits.size();
+					daaWriter.writeHits(hits, cores);
+					hits.clear();
+					flushPolicy.flushed();
+				}
+				long spillStart = hitCounter;
+				try {
+					Hit_Filter.ScoreOrderedFilter filter = doFiltering ? new Hit_Filter.ScoreOrderedFilter(headerInfo.getLambda(), headerInfo.getK()) : null;
+					Iterator<Hit> spilledHits = hitSpill.filteredIterator(readInfo, filter);
+					if (batchWriter == null)
+						hitCounter += daaWriter.writeRecord(spilledHits);
+					else
+						while (spilledHits.hasNext()) {
+							batchWriter.add(i, spilledHits.next());
+							hitCounter++;
+						}
+				} catch (IOException e) {
+					e.printStackTrace();
+					batchFailed = true;
+				}
+				if (batchWriter == null)
+					StatusReporter.addProcessed(1, hitCounter - spillStart);
+				hitSpill.clear();
+				continue;
+			}
 
 			// storing hits
 			ArrayList<MAF_Hit> allHits = new ArrayList<MAF_Hit>();
 			for (Thread reader : batchReaders)
 				allHits.addAll(((BatchReader) reader).getHits());
+			if (!allHits.isEmpty() && batchWriter == null)
+				StatusReporter.addProcessed(1, allHits.size());
 
 			// filtering hits
 			if (doFiltering) {
@@ -126,28 +256,54 @@ public class MAF_Converter {
 					filteredHits = Hit_Filter_parallel.run(allHits, headerInfo.getLambda(), headerInfo.getK(), cores);
 					System.out.println("STEP 3 - Continuing writing into daa-file: " + daaFile.getAbsolutePath());
 				}
-				for (MAF_Hit mafHit : filteredHits)
-					hits.add(new Hit(mafHit));
-			} else
-				for (MAF_Hit mafHit : allHits)
-					hits.add(new Hit(mafHit));
+				allHits = filteredHits;
+			}
+			if (batchWriter != null) {
+				hitCounter += writeIntoBatch(i, allHits);
+				continue;
+			}
+			for (MAF_Hit mafHit : allHits)
+				hits.add(new Hit(mafHit));
 
 			// writing hits into daa file
-			if (hits.size() > 10000 || i == readInfos.size() - 1) {
+			if (flushPolicy.shouldFlush(hits) || i == readInfos.size() - 1) {
 				hitCounter += hits.size();
-				daaWriter.writeHits(hits);
+				daaWriter.writeHits(hits, cores);
 				hits.clear();
+				flushPolicy.flushed();
 			}
 
 		}
 
+		for (Thread reader : batchReaders)
+			((BatchReader) reader).close();
+
+		// writing remaining hits into daa file
+		if (!hits.isEmpty()) {
+			hitCounter += hits.size();
+			daaWriter.writeHits(hits, cores);
+			hits.clear();
+		}
+
 		// writing subject info into daa file
-		daaWriter.writeEnd(subjectInfos);
+		if (batchWriter == null) {
+			daaWriter.writeEnd(subjectInfos);
+			writeFailed = daaWriter.getWriteError() != null;
+		} else
+			closeBatch(subjectInfos);
 
 		reportFinish();
+		step3Timer.stop(stepStart);
+		if (hitSpill != null) {
+			StatusReporter.removeGauge("converter.buffered_hit_bytes");
+			StatusReporter.removeGauge("prefetch.buffered_bytes");
+		}
+		writtenCounter.add(hitCounter);
 		if (verbose)
 			System.out.println(hitCounter + " alignments written into DAA-File!");
 
+		if (readerExecutor != executor)
+			readerExecutor.shutdown();
 		executor.shutdown();
 
 		long runtime = (System.currentTimeMillis() - time) / 1000;
@@ -155,11 +311,37 @@ public class MAF_Converter {
 
 	}
 
+	// returns true if the DAA file could not be written completely
+	public boolean hasFailed() {
+		return writeFailed;
+	}
+
+	private int writeIntoBatch(int readIndex, ArrayList<MAF_Hit> mafHits) {
+		try {
+			for (MAF_Hit mafHit : mafHits)
+				batchWriter.add(readIndex, new Hit(mafHit));
+		} catch (IOException e) {
+			e.printStackTrace();
+			batchFailed = true;
+		}
+		return mafHits.size();
+	}
+
+	// a batch missing any of its alignments is not reported as closed
+	private void closeBatch(ArrayList<Object[]> subjectInfos) {
+		try {
+			batchWriter.close(subjectInfos);
+			batchClosed = !batchFailed;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	private int countHeaderLines(File mafFile) {
 		int counter = 0;
 		try {
 			String l;
-			BufferedReader buf = new BufferedReader(new FileReader(mafFile));
+			BufferedReader buf = new BufferedReader(new InputStreamReader(ParallelGZIPInputStream.open(mafFile, 1)));
 			while ((l = buf.readLine()) != null) {
 				if (!l.startsWith("# batch"))
 					counter++;
@@ -176,6 +358,8 @@ public class MAF_Converter {
 	}
 
 	private void reportProgress(int delta) {
+		if (batchWriter == null)
+			StatusReporter.advance(delta);
 		progress.getAndAdd(delta);
 		int p = ((int) ((((double) progress.get() / (double) maxProgress)) * 100) / 10) * 10;
 		if (p > lastProgress.get() && p < 100) {
@@ -193,23 +377,28 @@ public class MAF_Converter {
 	public class BatchReader extends Thread {
 
 		private ArrayList<Object[]> subjectInfo;
-		private RandomAccessFile raf;
+		private PrefetchingInput raf;
 		private Object[] readInfo;
 		private ArrayList<MAF_Hit> hits;
 
 		private boolean verbose = false;
+		private long hitsSize = 0;
 		private int parsedLines = 0;
 		private boolean endOfBatchReached = false;
 		private MAF_Hit lastParsedHit;
-		private byte[] buffer = new byte[1024 * 1024];
+		private byte[] buffer;
 		private int readChars;
 		private int next_i = 0;
 
 		public BatchReader(long filePointer, File mafFile, ArrayList<Object[]> subjectInfo, boolean verbose) {
 			try {
-				raf = new RandomAccessFile(mafFile, "r");
-				raf.seek(filePointer);
-				readChars = raf.read(buffer);
+				// reading ahead while the current buffer is parsed, the second buffer is only allocated once the batch is consumed further
+				SeekableInput in = SeekableInput.open(mafFile);
+				in.seek(filePointer);
+				raf = new PrefetchingInput(in, 512 * 1024);
+				buffer = raf.next();
+				readChars = raf.getLength();
+				step3Timer.addBytes(Math.max(0, readChars));
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -221,6 +410,7 @@ public class MAF_Converter {
 		public void run() {
 
 			hits = new ArrayList<MAF_Hit>();
+			hitsSize = 0;
 			if (lastParsedHit != null) {
 				if (!lastParsedHit.getReadName().equals(readInfo[0].toString())) {
 					latch.countDown();
@@ -229,6 +419,7 @@ public class MAF_Converter {
 
 				lastParsedHit.setReadInfo(readInfo);
 				hits.add(lastParsedHit);
+				alignmentCounter.increment();
 				lastParsedHit = null;
 
 			}
@@ -247,7 +438,9 @@ public class MAF_Converter {
 					char c = (char) buffer[i];
 					if (i == readChars - 1) {
 						i = -1;
-						readChars = raf.read(buffer);
+						buffer = raf.next();
+						readChars = raf.getLength();
+						step3Timer.addBytes(Math.max(0, readChars));
 					}
 
 					if (c != '\n')
@@ -275,10 +468,16 @@ public class MAF_Converter {
 							hit.setReadInfo(readInfo);
 							if (hit.makesSense()) {
 								hits.add(hit);
-							} else if (verbose) {
-								System.out.println("Bad MAF entry: ");
-								for (int k = 0; k < 3; k++)
-									System.out.println(lineTriple[k]);
+								alignmentCounter.increment();
+								if (hitSpill != null)
+									checkMemory(hit);
+							} else {
+								badEntryCounter.increment();
+								if (verbose) {
+									System.out.println("Bad MAF entry: ");
+									for (int k = 0; k < 3; k++)
+										System.out.println(lineTriple[k]);
+								}
 							}
 
 							lineTriple = new String[3];
@@ -312,10 +511,31 @@ public class MAF_Converter {
 
 		}
 
+		// spilling buffered hits once all readers together exceed the memory budget
+		private void checkMemory(MAF_Hit hit) {
+			long size = hit.estimateSize();
+			hitsSize += size;
+			if (bufferedMemory.addAndGet(size) > hitMemory) {
+				hitSpill.add(hits);
+				bufferedMemory.addAndGet(-hitsSize);
+				hits = new ArrayList<MAF_Hit>();
+				hitsSize = 0;
+			}
+		}
+
 		public void setReadName(Object[] readInfo) {
 			this.readInfo = readInfo;
 		}
 
+		public void close() {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		public ArrayList<MAF_Hit> getHits() {
 			return hits;
 		}
@@ -323,6 +543,10 @@ public class MAF_Converter {
 	}
 
 	public void runInParallel(ArrayList<Thread> threads) {
+		runInParallel(threads, executor);
+	}
+
+	private void runInParallel(ArrayList<Thread> threads, ExecutorService executor) {
 		latch = new CountDownLatch(threads.size());
 		for (Thread t : threads)
 			executor.execute(t);
@@ -360,7 +584,7 @@ public class MAF_Converter {
 
 			try {
 
-				RandomAccessFile raf = new RandomAccessFile(mafFile, "r");
+				SeekableInput raf = SeekableInput.open(mafFile);
 				raf.seek(startPos);
 
 				byte[] buffer = new byte[1024 * 1024];
@@ -484,16 +708,11 @@ public class MAF_Converter {
 		ArrayList<Thread> processThreads = new ArrayList<Thread>();
 		try {
 
-			InputStream is;
-			try {
-				is = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)));
-			} catch (ZipException e) {
-				is = new BufferedInputStream(new FileInputStream(file));
-			}
+			InputStream is = ParallelGZIPInputStream.open(file, cores);
 
 			try {
 				boolean initNewThread = false;
-				byte[] c = new byte[1024];
+				byte[] c = new byte[1024 * 1024];
 				long count = 0;
 				int readChars = 0;
 				long filePointer = 0;
@@ -30,6 +30,7 @@ public class MAF_Hit {
 	private String readName;
 	private int totalQueryLength;
 	private byte[] packedQuerySequence;
+	private boolean queryHasN;
 	private int rawScore;
 	private int subjectID;
 	private int queryStart, refStart, queryLength;
@@ -42,7 +43,7 @@ public class MAF_Hit {
 	}
 
 	public MAF_Hit(int rawScore, String subjectName, int refStart, int refEnd, String readName, int queryStart, int queryLength, int frame,
-			ArrayList<Byte> editOperations, ArrayList<Object[]> subjectInfo, byte[] packedQuerySequence, int totalQueryLength) {
+			ArrayList<Byte> editOperations, ArrayList<Object[]> subjectInfo, byte[] packedQuerySequence, boolean queryHasN, int totalQueryLength) {
 
 		this.rawScore = rawScore;
 		Object[] subject = { new SparseString(subjectName), null };
@@ -54,10 +55,26 @@ public class MAF_Hit {
 		this.frameDir = frame < 0 ? FrameDirection.NEGATIVE : FrameDirection.POSITIVE;
 		this.editOperations = editOperations;
 		this.packedQuerySequence = packedQuerySequence;
+		this.queryHasN = queryHasN;
 		this.totalQueryLength = totalQueryLength;
 
 	}
 
+	public MAF_Hit(int rawScore, int subjectID, int refStart, int queryStart, int queryLength, FrameDirection frameDir, ArrayList<Byte> editOperations,
+			Object[] readInfo) {
+		this.rawScore = rawScore;
+		this.subjectID = subjectID;
+		this.refStart = refStart;
+		this.queryStart = queryStart;
+		this.queryLength = queryLength;
+		this.frameDir = frameDir;
+		this.editOperations = editOperations;
+		this.readName = readInfo[0].toString();
+		this.packedQuerySequence = (byte[]) readInfo[1];
+		this.totalQueryLength = (int) readInfo[2];
+		this.queryHasN = (boolean) readInfo[3];
+	}
+
 	public void loadProperties(String[] lineTriple, Object[] readInfo, ArrayList<Object[]> subjectInfo) {
 
 		// parsing scoring parameters
@@ -96,6 +113,7 @@ public class MAF_Hit {
 	public void setReadInfo(Object[] readInfo) {
 		packedQuerySequence = (byte[]) readInfo[1];
 		totalQueryLength = (int) readInfo[2];
+		queryHasN = (boolean) readInfo[3];
 		if (frameDir == FrameDirection.NEGATIVE)
 			queryStart = totalQueryLength - queryStart - 1;
 	}
@@ -140,10 +158,24 @@ public class MAF_Hit {
 		return packedQuerySequence;
 	}
 
+	public boolean queryHasN() {
+		return queryHasN;
+	}
+
 	public int getTotalQueryLength() {
 		return totalQueryLength;
 	}
 
+	// rough number of heap bytes held by this hit including its alignment strings
+	public long estimateSize() {
+		long size = 160;
+		if (ali[0] != null)
+			size += ali[0].length() + ali[1].length();
+		if (editOperations != null)
+			size += 8 * editOperations.size();
+		return size;
+	}
+
 	public boolean makesSense() {
 		if (subjectID < 0 || editOperations == null)
 			return false;
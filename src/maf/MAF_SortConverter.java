@@ -0,0 +1,490 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package maf;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import daa.writer.DAA_Writer;
+import daa.writer.FlushPolicy;
+import hits.Hit;
+import io.FastAQ_Reader_Parallel;
+import startUp.MainConverter;
+import util.DAACompressAlignment;
+import util.Hit_Filter;
+import util.Hit_Filter_parallel;
+import util.Metrics;
+import util.StatusReporter;
+import util.SparseString;
+
+// converts MAF files in any read order by sorting the parsed alignments by read index with an external merge sort
+public class MAF_SortConverter {
+
+	private static final int BLOCK_SIZE = 8 * 1024 * 1024;
+	private static final long DEFAULT_RUN_SIZE = 64L * 1024 * 1024;
+
+	private static final Metrics.Timer sortTimer = Metrics.timer("sort_converter.sort");
+	private static final Metrics.Timer mergeDownTimer = Metrics.timer("sort_converter.merge_runs");
+	private static final Metrics.Timer writeTimer = Metrics.timer("sort_converter.write");
+	private static final LongAdder badEntryCounter = Metrics.counter("sort_converter.bad_maf_entries");
+
+	private int maxProgress, cores;
+	private AtomicInteger progress = new AtomicInteger(), lastProgress = new AtomicInteger();
+	private AtomicLong parsedAlignments = new AtomicLong();
+
+	private File tmpFolder;
+	private long runSize;
+	private boolean verbose;
+	private HashMap<SparseString, Integer> readIndices;
+
+	private CountDownLatch latch;
+	private ExecutorService executor;
+	private volatile Exception parseError;
+
+	// returns false if the conversion failed
+	public boolean run(File daaFile, InputStream in, File queryFile, int cores, boolean verbose, boolean doFiltering, Long maxMemory, File tmpFolder) {
+
+		long time = System.currentTimeMillis();
+		System.out.println("\nConverting MAF input to " + daaFile.getName() + " by external sorting...");
+
+		this.cores = cores;
+		this.verbose = verbose;
+		this.tmpFolder = tmpFolder;
+		this.runSize = maxMemory != null ? Math.max(1024 * 1024, maxMemory / (4 * cores)) : DEFAULT_RUN_SIZE;
+		this.executor = Executors.newFixedThreadPool(cores);
+
+		// parsing read information
+		System.out.println("STEP 1 - Processing read-file: " + queryFile.getAbsolutePath());
+		ArrayList<Object[]> readInfos = FastAQ_Reader_Parallel.read(queryFile, cores);
+		readIndices = new HashMap<SparseString, Integer>(2 * readInfos.size());
+		for (int i = 0; i < readInfos.size(); i++)
+			readIndices.put((SparseString) readInfos.get(i)[0], i);
+		if (verbose)
+			System.out.println(readInfos.size() + " reads processed!");
+
+		ArrayList<AlignmentRun> runs = new ArrayList<AlignmentRun>();
+		boolean success = false;
+		try {
+
+			// parsing alignments into sorted runs
+			System.out.println("STEP 2 - Sorting maf-input into runs: " + tmpFolder.getAbsolutePath());
+			long start = sortTimer.start();
+			StatusReporter.setStage("sort_converter.sort", 0);
+			Header headerInfo = new Header();
+			ArrayList<ParseThread> parseThreads = parseIntoRuns(in, headerInfo);
+			ArrayList<Object[]> subjectInfos = mergeSubjectInfos(parseThreads);
+			for (ParseThread t : parseThreads)
+				runs.addAll(t.getRuns());
+			sortTimer.stop(start);
+			Metrics.counter("sort_converter.alignments").add(parsedAlignments.get());
+			Metrics.counter("sort_converter.runs").add(runs.size());
+			if (verbose)
+				System.out.println(parsedAlignments.get() + " alignments sorted into " + runs.size() + " runs, " + subjectInfos.size()
+						+ " references processed!");
+
+			// merging runs until all of them can be opened at once
+			System.out.println("STEP 3 - Merging runs");
+			start = mergeDownTimer.start();
+			StatusReporter.setStage("sort_converter.merge_runs", 0);
+			runs = AlignmentRun.mergeDown(runs, tmpFolder, executor, verbose);
+			mergeDownTimer.stop(start);
+
+			// writing header of daa file
+			DAA_Writer daaWriter = new DAA_Writer(daaFile);
+			if (MainConverter.PREALLOCATE)
+				daaWriter.preallocate(AlignmentRun.getTotalSize(runs));
+			daaWriter.writeHeader(headerInfo.getDbSeqs(), headerInfo.getDbLetters(), headerInfo.getGapOpen(), headerInfo.getGapExtend(),
+					headerInfo.getK(), headerInfo.getLambda());
+
+			// writing hits into daa file
+			System.out.println("STEP 4 - Writing into daa-file: " + daaFile.getAbsolutePath());
+			start = writeTimer.start();
+			for (AlignmentRun run : runs)
+				writeTimer.addBytes(run.getFile().length());
+			maxProgress = readInfos.size();
+			StatusReporter.setStage("sort_converter.write", maxProgress);
+			ArrayList<Hit> hits = new ArrayList<Hit>();
+			FlushPolicy flushPolicy = new FlushPolicy();
+			ArrayList<MAF_Hit> readHits = new ArrayList<MAF_Hit>();
+			long hitCounter = 0;
+			int readIndex = -1;
+			AlignmentRun.Merger merger = new AlignmentRun.Merger(runs);
+			AlignmentRun.Reader reader;
+			while ((reader = merger.next()) != null) {
+
+				if (reader.getReadIndex() != readIndex) {
+					addHits(readHits, hits, headerInfo, doFiltering, daaFile);
+					readHits.clear();
+					reportProgress(reader.getReadIndex() - Math.max(readIndex, 0));
+					readIndex = reader.getReadIndex();
+				}
+				readHits.add(reader.toHit(readInfos.get(readIndex)));
+
+				// writing hits into daa file
+				if (flushPolicy.shouldFlush(hits)) {
+					hitCounter += hits.size();
+					daaWriter.writeHits(hits, cores);
+					hits.clear();
+					flushPolicy.flushed();
+				}
+
+			}
+			addHits(readHits, hits, headerInfo, doFiltering, daaFile);
+			hitCounter += hits.size();
+			daaWriter.writeHits(hits, cores);
+
+			// writing subject info into daa file
+			daaWriter.writeEnd(subjectInfos);
+			writeTimer.stop(start);
+			Metrics.counter("sort_converter.written_alignments").add(hitCounter);
+
+			reportFinish();
+			if (verbose)
+				System.out.println(hitCounter + " alignments written into DAA-File!");
+			if (verbose && badEntryCounter.sum() > 0)
+				System.out.println(badEntryCounter.sum() + " bad MAF entries skipped!");
+			success = daaWriter.getWriteError() == null;
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			for (AlignmentRun run : runs)
+				run.delete();
+		}
+
+		executor.shutdown();
+
+		long runtime = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("Runtime: " + (runtime / 60) + "min " + (runtime % 60) + "s");
+
+		return success;
+
+	}
+
+	private void addHits(ArrayList<MAF_Hit> readHits, ArrayList<Hit> hits, Header headerInfo, boolean doFiltering, File daaFile) {
+		if (readHits.isEmpty())
+			return;
+		StatusReporter.addProcessed(1, readHits.size());
+		if (doFiltering) {
+			ArrayList<MAF_Hit> filteredHits;
+			if (readHits.size() < Hit_Filter_parallel.TRESHOLD)
+				filteredHits = Hit_Filter.run(readHits, headerInfo.getLambda(), headerInfo.getK());
+			else {
+				filteredHits = Hit_Filter_parallel.run(readHits, headerInfo.getLambda(), headerInfo.getK(), cores);
+				System.out.println("STEP 4 - Continuing writing into daa-file: " + daaFile.getAbsolutePath());
+			}
+			for (MAF_Hit mafHit : filteredHits)
+				hits.add(new Hit(mafHit));
+		} else
+			for (MAF_Hit mafHit : readHits)
+				hits.add(new Hit(mafHit));
+	}
+
+	// cuts the input into blocks of whole alignments which are parsed and sorted into runs in parallel
+	private ArrayList<ParseThread> parseIntoRuns(InputStream in, Header headerInfo) throws Exception {
+
+		ArrayBlockingQueue<Object[]> blockQueue = new ArrayBlockingQueue<Object[]>(cores);
+		ArrayList<ParseThread> parseThreads = new ArrayList<ParseThread>();
+		latch = new CountDownLatch(cores);
+		for (int i = 0; i < cores; i++) {
+			ParseThread t = new ParseThread(blockQueue);
+			parseThreads.add(t);
+			executor.execute(t);
+		}
+
+		boolean parsed = false;
+		try {
+			byte[] block = new byte[BLOCK_SIZE];
+			int len = 0, blockIndex = 0, readChars;
+			while ((readChars = in.read(block, len, block.length - len)) != -1) {
+				len += readChars;
+				sortTimer.addBytes(readChars);
+				if (len < block.length)
+					continue;
+				int cut = findLastAlignmentStart(block, len);
+				if (cut <= 0) {
+					block = Arrays.copyOf(block, 2 * block.length);
+					continue;
+				}
+				if (blockIndex == 0)
+					parseHeader(block, cut, headerInfo);
+				byte[] next = new byte[Math.max(BLOCK_SIZE, 2 * (len - cut))];
+				System.arraycopy(block, cut, next, 0, len - cut);
+				Object[] job = { block, cut, blockIndex++ };
+				putBlock(blockQueue, job);
+				block = next;
+				len -= cut;
+			}
+			if (len > 0) {
+				if (blockIndex == 0)
+					parseHeader(block, len, headerInfo);
+				Object[] job = { block, len, blockIndex++ };
+				putBlock(blockQueue, job);
+			}
+			parsed = true;
+		} finally {
+			in.close();
+
+			// remaining parse threads stop by themselves once one of them failed
+			for (int i = 0; i < cores && parseError == null; i++) {
+				Object[] poison = { null, 0, -1 };
+				while (!blockQueue.offer(poison, 1, TimeUnit.SECONDS) && parseError == null)
+					;
+			}
+			latch.await();
+			if (!parsed || parseError != null) {
+				for (ParseThread t : parseThreads) {
+					for (AlignmentRun run : t.getRuns())
+						run.delete();
+				}
+			}
+		}
+		if (parseError != null)
+			throw new Exception("cannot parse MAF input (" + parseError.getMessage() + ")", parseError);
+
+		return parseThreads;
+
+	}
+
+	// hands over a block to the parse threads, fails as soon as one of them failed instead of waiting for a free slot
+	private void putBlock(ArrayBlockingQueue<Object[]> blockQueue, Object[] job) throws Exception {
+		while (!blockQueue.offer(job, 1, TimeUnit.SECONDS)) {
+			if (parseError != null)
+				throw new Exception("cannot parse MAF input (" + parseError.getMessage() + ")", parseError);
+		}
+	}
+
+	private int findLastAlignmentStart(byte[] block, int len) {
+		for (int i = len - 1; i > 0; i--) {
+			if (block[i] == 'a' && block[i - 1] == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	private void parseHeader(byte[] block, int len, Header headerInfo) {
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			if (block[i] == '\n') {
+				String l = new String(block, start, i - start, StandardCharsets.ISO_8859_1);
+				if (l.startsWith("#"))
+					headerInfo.parseLine(l);
+				else if (!l.isEmpty())
+					return;
+				start = i + 1;
+			}
+		}
+	}
+
+	// builds the sorted reference table and maps the local subject IDs of each parse thread onto it
+	private ArrayList<Object[]> mergeSubjectInfos(ArrayList<ParseThread> parseThreads) {
+		TreeMap<SparseString, Integer> subjectMap = new TreeMap<SparseString, Integer>();
+		for (ParseThread t : parseThreads) {
+			for (Object[] subject : t.getSubjectInfos())
+				subjectMap.put((SparseString) subject[0], (int) subject[1]);
+		}
+		ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>();
+		HashMap<SparseString, Integer> subjectIDs = new HashMap<SparseString, Integer>(2 * subjectMap.size());
+		for (Map.Entry<SparseString, Integer> e : subjectMap.entrySet()) {
+			subjectIDs.put(e.getKey(), subjectInfos.size());
+			Object[] subject = { e.getKey(), e.getValue() };
+			subjectInfos.add(subject);
+		}
+		for (ParseThread t : parseThreads) {
+			ArrayList<Object[]> localInfos = t.getSubjectInfos();
+			int[] remap = new int[localInfos.size()];
+			for (int i = 0; i < remap.length; i++)
+				remap[i] = subjectIDs.get((SparseString) localInfos.get(i)[0]);
+			for (AlignmentRun run : t.getRuns())
+				run.setSubjectRemap(remap);
+		}
+		return subjectInfos;
+	}
+
+	private void reportProgress(int delta) {
+		StatusReporter.advance(delta);
+		progress.getAndAdd(delta);
+		int p = ((int) ((((double) progress.get() / (double) maxProgress)) * 100) / 10) * 10;
+		if (p > lastProgress.get() && p < 100) {
+			lastProgress.set(p);
+			System.out.print(p + "% ");
+		}
+	}
+
+	private void reportFinish() {
+		progress.set(0);
+		lastProgress.set(0);
+		System.out.print(100 + "%\n");
+	}
+
+	public void runInParallel(ArrayList<Thread> threads) {
+		latch = new CountDownLatch(threads.size());
+		for (Thread t : threads)
+			executor.execute(t);
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public class ParseThread extends Thread {
+
+		private ArrayBlockingQueue<Object[]> blockQueue;
+		private AlignmentRun.Buffer buffer = new AlignmentRun.Buffer();
+		private ArrayList<AlignmentRun> runs = new ArrayList<AlignmentRun>();
+		private HashMap<String, Integer> subjectIDs = new HashMap<String, Integer>();
+		private ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>();
+
+		public ParseThread(ArrayBlockingQueue<Object[]> blockQueue) {
+			this.blockQueue = blockQueue;
+		}
+
+		public void run() {
+			try {
+				while (parseError == null) {
+					Object[] job = blockQueue.poll(1, TimeUnit.SECONDS);
+					if (job == null)
+						continue;
+					if (job[0] == null)
+						break;
+					parseBlock((byte[]) job[0], (int) job[1], (int) job[2]);
+				}
+				if (parseError == null && buffer.size() > 0)
+					writeRun();
+			} catch (Exception e) {
+				e.printStackTrace();
+				parseError = e;
+			}
+			latch.countDown();
+		}
+
+		private void parseBlock(byte[] block, int len, int blockIndex) throws Exception {
+			String[] lineTriple = new String[3];
+			int start = 0, numOfAlignments = 0;
+			for (int i = 0; i <= len; i++) {
+				if (i < len && block[i] != '\n')
+					continue;
+				int end = i > start && block[i - 1] == '\r' ? i - 1 : i;
+				if (end > start) {
+					char c = (char) block[start];
+					String l = new String(block, start, end - start, StandardCharsets.ISO_8859_1);
+					if (c == 'a')
+						lineTriple[0] = l;
+					else if (c == 's' && lineTriple[1] == null)
+						lineTriple[1] = l;
+					else if (c == 's') {
+						lineTriple[2] = l;
+						long order = ((long) blockIndex << 32) | numOfAlignments++;
+						addAlignment(lineTriple, order);
+						lineTriple = new String[3];
+					}
+				}
+				start = i + 1;
+			}
+			parsedAlignments.getAndAdd(numOfAlignments);
+		}
+
+		private void addAlignment(String[] lineTriple, long order) throws Exception {
+
+			int rawScore = 0, refStart = 0, refLength = 0, queryStart = 0, queryLength = 0;
+			String subjectName = null, refAli = null, queryAli = null;
+			Integer readIndex = null;
+			boolean negative = false;
+			try {
+
+				// parsing scoring parameters
+				String[] split = lineTriple[0].split("\\s+");
+				rawScore = Integer.parseInt(split[1].substring(6));
+
+				// parsing subject info
+				split = lineTriple[1].split("\\s+");
+				subjectName = split[1];
+				refStart = Integer.parseInt(split[2]);
+				refLength = Integer.parseInt(split[5]);
+				refAli = split[6].toUpperCase();
+
+				// parsing query info
+				split = lineTriple[2].split("\\s+");
+				readIndex = readIndices.get(new SparseString(split[1]));
+				queryStart = Integer.parseInt(split[2]);
+				queryLength = Integer.parseInt(split[3]);
+				negative = !split[4].equals("+");
+				queryAli = split[6].toUpperCase();
+
+			} catch (RuntimeException e) {
+				readIndex = null;
+			}
+
+			if (readIndex == null || queryAli.length() != refAli.length()) {
+				badEntryCounter.increment();
+				if (verbose) {
+					System.out.println("Bad MAF entry: ");
+					for (int k = 0; k < 3; k++)
+						System.out.println(lineTriple[k]);
+				}
+				return;
+			}
+
+			Integer subjectID = subjectIDs.get(subjectName);
+			if (subjectID == null) {
+				subjectID = subjectInfos.size();
+				subjectIDs.put(subjectName, subjectID);
+				Object[] subject = { new SparseString(subjectName), refLength };
+				subjectInfos.add(subject);
+			}
+
+			String[] ali = { queryAli, refAli };
+			buffer.add(readIndex, order, subjectID, rawScore, refStart, queryStart, queryLength, negative, DAACompressAlignment.run(ali));
+			if (buffer.getSizeInBytes() > runSize)
+				writeRun();
+
+		}
+
+		private void writeRun() throws Exception {
+			AlignmentRun run = new AlignmentRun(AlignmentRun.createRunFile(tmpFolder, "sort"));
+			buffer.sortAndWrite(run.getFile());
+			buffer.clear();
+			runs.add(run);
+		}
+
+		public ArrayList<AlignmentRun> getRuns() {
+			return runs;
+		}
+
+		public ArrayList<Object[]> getSubjectInfos() {
+			return subjectInfos;
+		}
+
+	}
+
+}
@@ -17,34 +17,67 @@
 
 package maf;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.CountDownLatch;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import daa.reader.DAA_Header;
 import daa.reader.DAA_Hit;
-import daa.reader.DAA_Reader;
 import daa.writer.DAA_Writer;
+import daa.writer.FlushPolicy;
+import daa.writer.RecordCopier;
 import hits.Hit;
-import io.FastAQ_Reader;
+import io.FastAQ_Reader_Parallel;
+import startUp.MainConverter;
 import util.Hit_Filter;
 import util.Hit_Filter_parallel;
+import util.Metrics;
+import util.StatusReporter;
 import util.SparseString;
 
 public class MAF_StreamConverter {
 
+	private static final LongAdder runCounter = Metrics.counter("stream_converter.runs");
+	private static final LongAdder mergedCounter = Metrics.counter("stream_converter.merged_alignments");
+	private static final LongAdder duplicateCounter = Metrics.counter("stream_converter.duplicate_alignments");
+	private static final LongAdder writtenCounter = Metrics.counter("stream_converter.written_alignments");
+	private static final LongAdder shardCounter = Metrics.counter("stream_converter.merged_shards");
+	private static final LongAdder passthroughCounter = Metrics.counter("stream_converter.passthrough_records");
+	private static final Metrics.Timer scanTimer = Metrics.timer("stream_converter.scan_daa");
+	private static final Metrics.Timer convertTimer = Metrics.timer("stream_converter.convert_daa");
+	private static final Metrics.Timer subjectTimer = Metrics.timer("stream_converter.merge_subjects");
+	private static final Metrics.Timer mergeDownTimer = Metrics.timer("stream_converter.merge_runs");
+	private static final Metrics.Timer writeTimer = Metrics.timer("stream_converter.write");
+
 	private int maxProgress, lastProgress = 0;
 	private AtomicInteger progress = new AtomicInteger();
 
-	private CountDownLatch latch;
 	private ExecutorService executor;
+	private StreamJournal journal;
+
+	// if set, the batch runs are kept for a restart until the merge succeeded and the merged subject table is journaled
+	public void setJournal(StreamJournal journal) {
+		this.journal = journal;
+	}
 
-	public void run(File daaFile, ArrayList<File> daaFiles, File queryFile, int cores, boolean verbose, File headerFile, boolean doFiltering) {
+	public boolean run(File daaFile, ArrayList<File> runFiles, File queryFile, int cores, boolean verbose, File headerFile, boolean doFiltering) {
 
 		long time = System.currentTimeMillis();
 		System.out.println("\nConverting batch files to " + daaFile.getAbsolutePath() + "...");
@@ -56,98 +89,364 @@ public class MAF_StreamConverter {
 		if (headerFile.getName().endsWith("daa"))
 			headerInfo.loadFromDAA(headerFile);
 
-		ArrayList<DAA_Reader> daaReader = new ArrayList<DAA_Reader>();
-		for (File f : daaFiles)
-			daaReader.add(new DAA_Reader(f, false));
-
-		// processing maf file
-		System.out.println("STEP 1 - Processing daaFiles ");
-		maxProgress = getTotalSeqUsed(daaReader);
-		ConcurrentSkipListSet<SubjectEntry> subjectInfoSet = new ConcurrentSkipListSet<SubjectEntry>();
-		ArrayList<Thread> processThreads = generateProcessThreads(daaReader, subjectInfoSet);
-		runInParallel(processThreads);
-		ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>();
-		Iterator<SubjectEntry> it = subjectInfoSet.iterator();
-		while (it.hasNext()) {
-			SubjectEntry e = it.next();
-			Object[] subject = { e.getName(), e.getLength() };
-			subjectInfos.add(subject);
-		}
+		// parsing read information
+		System.out.println("STEP 1 - Processing read-file: " + queryFile.getAbsolutePath());
+		ArrayList<Object[]> readInfos = FastAQ_Reader_Parallel.read(queryFile, cores);
 		if (verbose)
-			System.out.println(subjectInfos.size() + " references processed!");
-		reportFinish();
+			System.out.println(readInfos.size() + " reads processed!");
+
+		ArrayList<AlignmentRun> runs = new ArrayList<AlignmentRun>();
+		for (File f : runFiles)
+			runs.add(new AlignmentRun(f));
+		boolean success = merge(daaFile, runs, readInfos, headerInfo, cores, verbose, doFiltering);
+
+		executor.shutdown();
+
+		long runtime = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("Runtime: " + (runtime / 60) + "min " + (runtime % 60) + "s");
+
+		return success;
+
+	}
+
+	// merges DAA files by converting each of them into an alignment run first, returns false if the merge failed
+	public boolean runOnDAAFiles(File daaFile, ArrayList<File> daaFiles, File queryFile, int cores, boolean verbose, boolean doFiltering) {
+
+		long time = System.currentTimeMillis();
+		System.out.println("\nMerging DAA files into " + daaFile.getAbsolutePath() + "...");
+
+		this.executor = Executors.newFixedThreadPool(cores);
+		Header headerInfo = new Header();
+		headerInfo.loadFromDAA(daaFiles.get(0));
 
 		// parsing read information
-		System.out.println("STEP 2 - Processing read-file: " + queryFile.getAbsolutePath());
-		ArrayList<Object[]> readInfos = FastAQ_Reader.read(queryFile);
+		System.out.println("STEP 1 - Processing read-file: " + queryFile.getAbsolutePath());
+		ArrayList<Object[]> readInfos = FastAQ_Reader_Parallel.read(queryFile, cores);
+		HashMap<String, Integer> readIndices = new HashMap<String, Integer>(2 * readInfos.size());
+		for (int i = 0; i < readInfos.size(); i++)
+			readIndices.put(readInfos.get(i)[0].toString(), i);
 		if (verbose)
 			System.out.println(readInfos.size() + " reads processed!");
 
-		// writing header of daa file
-		DAA_Writer daaWriter = new DAA_Writer(daaFile);
-		daaWriter.writeHeader(headerInfo.getDbSeqs(), headerInfo.getDbLetters(), headerInfo.getGapOpen(), headerInfo.getGapExtend(),
-				headerInfo.getK(), headerInfo.getLambda());
-
-		// writing hits into daa file
-		System.out.println("STEP 3 - Writing into daa-file: " + daaFile.getAbsolutePath());
-		maxProgress = (int) getTotalQueryRecords(daaReader);
-		ArrayList<Thread> batchReaders = new ArrayList<Thread>();
-		for (DAA_Reader reader : daaReader)
-			batchReaders.add(new BatchReader(reader, subjectInfos));
-		ArrayList<Hit> hits = new ArrayList<Hit>();
-		long hitCounter = 0;
-		for (int i = 0; i < readInfos.size(); i++) {
+		// scanning daa files for reads whose records can be copied without decoding
+		PassthroughRecords passthrough = null;
+		boolean[] decodedReads = null;
+		if (!doFiltering) {
+			System.out.println("STEP 1.1 - Scanning daa-files");
+			long start = scanTimer.start();
+			StatusReporter.setStage("stream_converter.scan_daa", daaFiles.size());
+			try {
+				passthrough = new PassthroughRecords(daaFiles, readIndices, readInfos.size());
+				decodedReads = passthrough.getDecodedReads();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			scanTimer.stop(start);
+			if (verbose && passthrough != null)
+				System.out.println(passthrough.size() + " query records are copied, " + passthrough.getNumOfDecodedReads() + " reads are decoded");
+		}
+
+		// converting daa files
+		System.out.println("STEP 1.2 - Converting daa-files into batch runs");
+		File tmpFolder = daaFile.getAbsoluteFile().getParentFile();
+		ArrayList<AlignmentRun> runs = new ArrayList<AlignmentRun>();
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = convertTimer.start();
+		StatusReporter.setStage("stream_converter.convert_daa", daaFiles.size());
+		for (int k = 0; k < daaFiles.size(); k++) {
+			convertTimer.addBytes(daaFiles.get(k).length());
+			AlignmentRun run = new AlignmentRun(AlignmentRun.createRunFile(tmpFolder, "daa"));
+			futures.add(executor.submit(new DAAConverter(daaFiles.get(k), k, run.getFile(), readInfos, readIndices, decodedReads)));
+			runs.add(run);
+		}
+		boolean converted = true;
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+				StatusReporter.advance(1);
+			} catch (Exception e) {
+				e.printStackTrace();
+				converted = false;
+			}
+		}
+		convertTimer.stop(start);
+
+		// runs of a failed conversion lack alignments, hence nothing is merged
+		boolean success = false;
+		if (converted)
+			success = merge(daaFile, runs, readInfos, headerInfo, cores, verbose, doFiltering, passthrough);
+		else {
+			System.err.println("ERROR: not all DAA files could be converted, nothing is merged into " + daaFile.getName());
+			for (AlignmentRun run : runs)
+				run.delete();
+		}
 
-			Object[] readInfo = readInfos.get(i);
+		executor.shutdown();
 
-			// reading-out hits in parallel
-			for (Thread reader : batchReaders)
-				((BatchReader) reader).setReadName(readInfo);
-			runInParallel(batchReaders);
+		long runtime = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("Runtime: " + (runtime / 60) + "min " + (runtime % 60) + "s");
 
-			// storing hits
-			ArrayList<MAF_Hit> allHits = new ArrayList<MAF_Hit>();
-			for (Thread reader : batchReaders)
-				allHits.addAll(((BatchReader) reader).getHits());
+		return success;
 
-			// filtering hits
-			ArrayList<Hit> batchHits = new ArrayList<Hit>();
-			if (doFiltering) {
-				if (allHits.size() < Hit_Filter_parallel.TRESHOLD)
-					for (MAF_Hit mafHit : Hit_Filter.run(allHits, headerInfo.getLambda(), headerInfo.getK()))
-						batchHits.add(new Hit(mafHit));
-				else {
-					for (MAF_Hit mafHit : Hit_Filter_parallel.run(allHits, headerInfo.getLambda(), headerInfo.getK(), cores))
-						batchHits.add(new Hit(mafHit));
-					System.out.println("STEP 3 - Continuing writing into daa-file: " + daaFile.getAbsolutePath());
-				}
+	}
+
+	private boolean merge(File daaFile, ArrayList<AlignmentRun> runs, ArrayList<Object[]> readInfos, Header headerInfo, int cores, boolean verbose,
+			boolean doFiltering) {
+		return merge(daaFile, runs, readInfos, headerInfo, cores, verbose, doFiltering, null);
+	}
+
+	// records given by passthrough are copied in between the decoded reads following read order
+	private boolean merge(File daaFile, ArrayList<AlignmentRun> runs, ArrayList<Object[]> readInfos, Header headerInfo, int cores, boolean verbose,
+			boolean doFiltering, PassthroughRecords passthrough) {
+
+		ArrayList<AlignmentRun> inputRuns = new ArrayList<AlignmentRun>(runs);
+		ArrayList<RecordCopier> copiers = new ArrayList<RecordCopier>();
+		boolean keepInputs = journal != null;
+		try {
+
+			// merging subject dictionaries of all batches
+			System.out.println("STEP 2 - Processing batch files ");
+			runCounter.add(runs.size());
+			long start = subjectTimer.start();
+			StatusReporter.setStage("stream_converter.merge_subjects", runs.size());
+			ArrayList<Object[]> subjectInfos = mergeSubjectInfos(runs);
+			subjectTimer.stop(start);
+			if (verbose)
+				System.out.println(subjectInfos.size() + " references processed!");
+			reportFinish();
+
+			// writing header of daa file, a preallocated file is reserved for as much alignment data as the inputs hold
+			DAA_Writer daaWriter = new DAA_Writer(daaFile);
+			if (MainConverter.PREALLOCATE)
+				daaWriter.preallocate(AlignmentRun.getTotalSize(runs) + (passthrough != null ? passthrough.getNumOfBytes() : 0));
+			daaWriter.writeHeader(headerInfo.getDbSeqs(), headerInfo.getDbLetters(), headerInfo.getGapOpen(), headerInfo.getGapExtend(),
+					headerInfo.getK(), headerInfo.getLambda());
+
+			// writing hits into daa file
+			System.out.println("STEP 3 - Writing into daa-file: " + daaFile.getAbsolutePath());
+			start = mergeDownTimer.start();
+			StatusReporter.setStage("stream_converter.merge_runs", 0);
+			int numOfShards = passthrough == null ? MainConverter.MERGE_SHARDS : 1;
+			int maxOpenRuns = Math.max(8, AlignmentRun.MAX_OPEN_RUNS / Math.min(numOfShards, cores));
+			runs = AlignmentRun.mergeDown(runs, runs.get(0).getFile().getAbsoluteFile().getParentFile(), executor, verbose, keepInputs, maxOpenRuns);
+			mergeDownTimer.stop(start);
+			start = writeTimer.start();
+			for (AlignmentRun run : runs)
+				writeTimer.addBytes(run.getFile().length());
+			maxProgress = readInfos.size();
+			StatusReporter.setStage("stream_converter.write", maxProgress);
+			long hitCounter;
+			int[] shards = numOfShards > 1 ? AlignmentRun.partitionReads(runs, readInfos.size(), numOfShards) : null;
+			if (shards != null && shards.length > 2) {
+				if (verbose)
+					System.out.println("Merging " + (shards.length - 1) + " read ranges in parallel");
+				hitCounter = writeShards(daaWriter, runs, shards, readInfos, headerInfo, doFiltering, daaFile);
 			} else {
-				for (MAF_Hit mafHit : allHits)
-					batchHits.add(new Hit(mafHit));
+				if (passthrough != null)
+					copiers = passthrough.openCopiers(daaWriter, subjectInfos);
+				hitCounter = writeReads(daaWriter, new AlignmentRun.Merger(runs), 0, passthrough, copiers, readInfos, headerInfo, doFiltering, cores,
+						daaFile);
+			}
+
+			// writing subject info into daa file
+			daaWriter.writeEnd(subjectInfos);
+			writeTimer.stop(start);
+			writtenCounter.add(hitCounter);
+
+			reportFinish();
+			if (verbose)
+				System.out.println(hitCounter + " alignments written into DAA-File!");
+
+			// a DAA file missing any of its output must not be taken as merged, e.g. before journaled runs are removed
+			return daaWriter.getWriteError() == null;
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			for (AlignmentRun run : runs) {
+				if (!keepInputs || !inputRuns.contains(run))
+					run.delete();
+			}
+			for (RecordCopier copier : copiers) {
+				try {
+					copier.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	// writes the hits of all merged reads, records given by passthrough are copied in between following read order
+	private long writeReads(DAA_Writer writer, AlignmentRun.Merger merger, int firstRead, PassthroughRecords passthrough,
+			ArrayList<RecordCopier> copiers, ArrayList<Object[]> readInfos, Header headerInfo, boolean doFiltering, int cores, File daaFile)
+			throws Exception {
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		FlushPolicy flushPolicy = new FlushPolicy();
+		ArrayList<MAF_Hit> readHits = new ArrayList<MAF_Hit>();
+		long hitCounter = 0;
+		int readIndex = firstRead - 1;
+		int p = 0, numOfRecords = passthrough != null ? passthrough.size() : 0;
+		AlignmentRun.Reader reader = merger.next();
+		while (reader != null || p < numOfRecords) {
+
+			// copying records of reads preceding the next decoded read
+			if (p < numOfRecords && (reader == null || passthrough.getReadIndex(p) < reader.getReadIndex())) {
+				addHits(readHits, hits, headerInfo, doFiltering, cores, daaFile);
+				readHits.clear();
+				if (!hits.isEmpty()) {
+					hitCounter += hits.size();
+					writer.writeHits(hits, cores);
+					hits.clear();
+					flushPolicy.flushed();
+				}
+				int q = passthrough.copy(p, reader != null ? reader.getReadIndex() : Integer.MAX_VALUE, copiers);
+				long copiedHits = passthrough.getNumOfHits(p, q);
+				hitCounter += copiedHits;
+				passthroughCounter.add(q - p);
+				StatusReporter.addProcessed(q - p, copiedHits);
+				reportProgress(passthrough.getReadIndex(q - 1) - Math.max(readIndex, 0));
+				readIndex = passthrough.getReadIndex(q - 1);
+				p = q;
+				continue;
+			}
+
+			if (reader.getReadIndex() != readIndex) {
+				addHits(readHits, hits, headerInfo, doFiltering, cores, daaFile);
+				readHits.clear();
+				reportProgress(reader.getReadIndex() - Math.max(readIndex, 0));
+				readIndex = reader.getReadIndex();
 			}
-			hits.addAll(filterForUniqueHits(batchHits));
+			readHits.add(reader.toHit(readInfos.get(readIndex)));
+			mergedCounter.increment();
 
 			// writing hits into daa file
-			if (hits.size() > 10000 || i == readInfos.size() - 1) {
+			if (flushPolicy.shouldFlush(hits)) {
 				hitCounter += hits.size();
-				daaWriter.writeHits(hits);
+				writer.writeHits(hits, cores);
 				hits.clear();
+				flushPolicy.flushed();
 			}
+			reader = merger.next();
 
 		}
+		addHits(readHits, hits, headerInfo, doFiltering, cores, daaFile);
+		hitCounter += hits.size();
+		writer.writeHits(hits, cores);
+		return hitCounter;
+	}
 
-		// writing subject info into daa file
-		daaWriter.writeEnd(subjectInfos);
+	// merges each read range on its own thread into a segment file of query records, segments are appended in read order
+	private long writeShards(DAA_Writer daaWriter, final ArrayList<AlignmentRun> runs, int[] shards, final ArrayList<Object[]> readInfos,
+			final Header headerInfo, final boolean doFiltering, final File daaFile) throws Exception {
+		File tmpFolder = runs.get(0).getFile().getAbsoluteFile().getParentFile();
+		ArrayList<File> segmentFiles = new ArrayList<File>();
+		ArrayList<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+		for (int s = 0; s + 1 < shards.length; s++) {
+			final int fromRead = shards[s], toRead = shards[s + 1];
+			final File segmentFile = AlignmentRun.createRunFile(tmpFolder, "segment");
+			segmentFiles.add(segmentFile);
+			futures.add(executor.submit(new Callable<Object[]>() {
+				@Override
+				public Object[] call() throws Exception {
+					DAA_Writer segmentWriter = new DAA_Writer(segmentFile);
+					long hitCounter = writeReads(segmentWriter, new AlignmentRun.Merger(runs, fromRead, toRead), fromRead, null, null, readInfos,
+							headerInfo, doFiltering, 1, daaFile);
+
+					// a segment written only in part must not be appended with the records it claims
+					if (segmentWriter.getWriteError() != null)
+						throw new IOException("cannot write segment " + segmentFile.getName(), segmentWriter.getWriteError());
+					Object[] result = { hitCounter, segmentWriter.getNumOfQueryRecords() };
+					return result;
+				}
+			}));
+		}
+		long hitCounter = 0;
+		try {
+			for (int s = 0; s < futures.size(); s++) {
+				Object[] result = futures.get(s).get();
+				daaWriter.appendSegment(segmentFiles.get(s), (long) result[1]);
+				if (daaWriter.getWriteError() != null)
+					throw new IOException("cannot append segment " + segmentFiles.get(s).getName(), daaWriter.getWriteError());
+				segmentFiles.get(s).delete();
+				hitCounter += (long) result[0];
+				shardCounter.increment();
+			}
+		} finally {
+			for (Future<Object[]> f : futures)
+				f.cancel(true);
+			for (File segmentFile : segmentFiles)
+				segmentFile.delete();
+		}
+		return hitCounter;
+	}
 
-		reportFinish();
-		if (verbose)
-			System.out.println(hitCounter + " alignments written into DAA-File!");
+	private void addHits(ArrayList<MAF_Hit> readHits, ArrayList<Hit> hits, Header headerInfo, boolean doFiltering, int cores, File daaFile) {
+		if (readHits.isEmpty())
+			return;
+		StatusReporter.addProcessed(1, readHits.size());
+		ArrayList<Hit> batchHits = new ArrayList<Hit>();
+		if (doFiltering) {
+			if (readHits.size() < Hit_Filter_parallel.TRESHOLD)
+				for (MAF_Hit mafHit : Hit_Filter.run(readHits, headerInfo.getLambda(), headerInfo.getK()))
+					batchHits.add(new Hit(mafHit));
+			else {
 
-		executor.shutdown();
+				// the parallel filter keeps its state statically, hence shards filter their largest reads one after another
+				synchronized (Hit_Filter_parallel.class) {
+					for (MAF_Hit mafHit : Hit_Filter_parallel.run(readHits, headerInfo.getLambda(), headerInfo.getK(), cores))
+						batchHits.add(new Hit(mafHit));
+					System.out.println("STEP 3 - Continuing writing into daa-file: " + daaFile.getAbsolutePath());
+				}
+			}
+		} else {
+			for (MAF_Hit mafHit : readHits)
+				batchHits.add(new Hit(mafHit));
+		}
+		ArrayList<Hit> uniqueHits = filterForUniqueHits(batchHits);
+		duplicateCounter.add(batchHits.size() - uniqueHits.size());
+		hits.addAll(uniqueHits);
+	}
 
-		long runtime = (System.currentTimeMillis() - time) / 1000;
-		System.out.println("Runtime: " + (runtime / 60) + "min " + (runtime % 60) + "s");
+	// builds the sorted reference table and maps the subject IDs of each batch onto it
+	private ArrayList<Object[]> mergeSubjectInfos(ArrayList<AlignmentRun> runs) throws Exception {
+		ArrayList<ArrayList<Object[]>> localInfos = new ArrayList<ArrayList<Object[]>>();
+		ArrayList<Object[]> subjectInfos = journal != null ? journal.loadSubjectInfos() : null;
+		TreeMap<SparseString, Integer> subjectMap = new TreeMap<SparseString, Integer>();
+		maxProgress = runs.size();
+		for (AlignmentRun run : runs) {
+			ArrayList<Object[]> infos = run.readSubjectInfos();
+			if (subjectInfos == null) {
+				for (Object[] subject : infos)
+					subjectMap.put((SparseString) subject[0], (int) subject[1]);
+			}
+			localInfos.add(infos);
+			reportProgress(1);
+		}
 
+		// reusing the table journaled by a previous attempt
+		if (subjectInfos == null) {
+			subjectInfos = new ArrayList<Object[]>();
+			for (Map.Entry<SparseString, Integer> e : subjectMap.entrySet()) {
+				Object[] subject = { e.getKey(), e.getValue() };
+				subjectInfos.add(subject);
+			}
+			if (journal != null)
+				journal.saveSubjectInfos(subjectInfos);
+		}
+		HashMap<SparseString, Integer> subjectIDs = new HashMap<SparseString, Integer>(2 * subjectInfos.size());
+		for (Object[] subject : subjectInfos)
+			subjectIDs.put((SparseString) subject[0], subjectIDs.size());
+		for (int k = 0; k < runs.size(); k++) {
+			ArrayList<Object[]> infos = localInfos.get(k);
+			int[] remap = new int[infos.size()];
+			for (int i = 0; i < remap.length; i++)
+				remap[i] = subjectIDs.get((SparseString) infos.get(i)[0]);
+			runs.get(k).setSubjectRemap(remap);
+		}
+		return subjectInfos;
 	}
 
 	private ArrayList<Hit> filterForUniqueHits(ArrayList<Hit> batchHits) {
@@ -166,21 +465,8 @@ public class MAF_StreamConverter {
 		return uniqueHits;
 	}
 
-	private int getTotalSeqUsed(ArrayList<DAA_Reader> daaReader) {
-		int sum = 0;
-		for (DAA_Reader reader : daaReader)
-			sum += reader.getDAAHeader().getDbSeqsUsed();
-		return sum;
-	}
-
-	private int getTotalQueryRecords(ArrayList<DAA_Reader> daaReader) {
-		int sum = 0;
-		for (DAA_Reader reader : daaReader)
-			sum += reader.getDAAHeader().getNumberOfQueryRecords();
-		return sum;
-	}
-
-	private void reportProgress(int delta) {
+	private synchronized void reportProgress(int delta) {
+		StatusReporter.advance(delta);
 		progress.getAndAdd(delta);
 		int p = ((int) ((((double) progress.get() / (double) maxProgress)) * 100) / 10) * 10;
 		if (p > lastProgress && p < 100) {
@@ -195,143 +481,224 @@ public class MAF_StreamConverter {
 		System.out.print(100 + "%\n");
 	}
 
-	public class BatchReader extends Thread {
-
-		private ArrayList<Object[]> subjectInfo;
-		private DAA_Reader daaReader;
-		private Object[] readInfo;
-		private ArrayList<MAF_Hit> hits;
-		private int lastIndex = 0;
-		private Long filePointer = null;
-
-		private int index = 0;
-
-		public BatchReader(DAA_Reader daaReader, ArrayList<Object[]> subjectInfo) {
-			this.daaReader = daaReader;
-			this.subjectInfo = subjectInfo;
-		}
-
-		public void run() {
-
-			hits = new ArrayList<MAF_Hit>();
-			Object[] result = daaReader.parseDAAHitByIndex(index, lastIndex, filePointer);
-			ArrayList<DAA_Hit> daaHits = (ArrayList<DAA_Hit>) result[0];
-			lastIndex = (int) result[1];
-			filePointer = (long) result[2];
-			if (index < daaReader.getDAAHeader().getNumberOfQueryRecords() && daaHits.get(0).getQueryName().equals(readInfo[0].toString())) {
-
-				for (DAA_Hit daaHit : daaHits) {
-
-					int rawScore = daaHit.getRawScore();
-					String subjectName = daaHit.getReferenceName();
-					int refStart = daaHit.getRefStart();
-					int refEnd = refStart + daaHit.getRefLength();
-					String queryName = daaHit.getQueryName();
-					int queryStart = daaHit.getQueryStart();
-					int queryLength = daaHit.getQueryLength();
-					int frame = daaHit.getFrame();
-					ArrayList<Byte> editOperations = daaHit.getEditByteOperations();
-					byte[] dnaSequence = daaHit.getPackedQuerySequence();
-					MAF_Hit mafHit = new MAF_Hit(rawScore, subjectName, refStart, refEnd, queryName, queryStart, queryLength, frame, editOperations,
-							subjectInfo, dnaSequence, (int) readInfo[2]);
-					hits.add(mafHit);
+	// records of reads stored in a single record of a single DAA file without duplicate hits, sorted by read index
+	public class PassthroughRecords {
+
+		private ArrayList<File> daaFiles;
+		private int[] readIndices, fileIndices, hits;
+		private long[] filePointers, lengths;
+		private boolean[] decodedReads;
+		private int size = 0, numOfDecodedReads = 0;
+
+		public PassthroughRecords(ArrayList<File> daaFiles, HashMap<String, Integer> readIndexMap, int numOfReads) throws Exception {
+			this.daaFiles = daaFiles;
+
+			// scanning daa files
+			ArrayList<Future<ArrayList<Object[]>>> futures = new ArrayList<Future<ArrayList<Object[]>>>();
+			for (final File daaFile : daaFiles) {
+				futures.add(executor.submit(new Callable<ArrayList<Object[]>>() {
+					@Override
+					public ArrayList<Object[]> call() throws Exception {
+						return RecordCopier.scanRecords(daaFile);
+					}
+				}));
+			}
+			ArrayList<ArrayList<Object[]>> records = new ArrayList<ArrayList<Object[]>>();
+			for (Future<ArrayList<Object[]>> f : futures) {
+				records.add(f.get());
+				StatusReporter.advance(1);
+			}
 
+			// counting records per read, records possibly holding duplicate hits need to be decoded
+			int[] counts = new int[numOfReads];
+			for (ArrayList<Object[]> fileRecords : records) {
+				for (Object[] record : fileRecords) {
+					Integer readIndex = readIndexMap.get((String) record[0]);
+					if (readIndex != null && (int) record[3] > 0)
+						counts[readIndex] += (boolean) record[4] ? 2 : 1;
 				}
-				index++;
-
-				if (index % 100 == 0)
-					reportProgress(100);
-
+			}
+			decodedReads = new boolean[numOfReads];
+			for (int i = 0; i < numOfReads; i++) {
+				decodedReads[i] = counts[i] > 1;
+				if (decodedReads[i])
+					numOfDecodedReads++;
+				else if (counts[i] == 1)
+					size++;
 			}
 
-			latch.countDown();
-
+			// collecting remaining records in read order
+			long[] keys = new long[size];
+			int[] unsortedFileIndices = new int[size], unsortedHits = new int[size];
+			long[] unsortedFilePointers = new long[size], unsortedLengths = new long[size];
+			int n = 0;
+			for (int k = 0; k < records.size(); k++) {
+				for (Object[] record : records.get(k)) {
+					Integer readIndex = readIndexMap.get((String) record[0]);
+					if (readIndex == null || counts[readIndex] != 1 || (int) record[3] == 0)
+						continue;
+					keys[n] = (long) readIndex << 32 | n;
+					unsortedFileIndices[n] = k;
+					unsortedFilePointers[n] = (long) record[1];
+					unsortedLengths[n] = 4 + (int) record[2];
+					unsortedHits[n] = (int) record[3];
+					n++;
+				}
+				records.set(k, null);
+			}
+			Arrays.sort(keys);
+			readIndices = new int[size];
+			fileIndices = new int[size];
+			hits = new int[size];
+			filePointers = new long[size];
+			lengths = new long[size];
+			for (int i = 0; i < size; i++) {
+				int j = (int) keys[i];
+				readIndices[i] = (int) (keys[i] >>> 32);
+				fileIndices[i] = unsortedFileIndices[j];
+				hits[i] = unsortedHits[j];
+				filePointers[i] = unsortedFilePointers[j];
+				lengths[i] = unsortedLengths[j];
+			}
 		}
 
-		public void setReadName(Object[] readInfo) {
-			this.readInfo = readInfo;
+		// maps the reference indices of each daa file onto the merged reference table
+		public ArrayList<RecordCopier> openCopiers(DAA_Writer writer, ArrayList<Object[]> subjectInfos) throws Exception {
+			HashMap<SparseString, Integer> subjectIDs = new HashMap<SparseString, Integer>(2 * subjectInfos.size());
+			for (Object[] subject : subjectInfos)
+				subjectIDs.put((SparseString) subject[0], subjectIDs.size());
+			ArrayList<RecordCopier> copiers = new ArrayList<RecordCopier>();
+			for (File daaFile : daaFiles) {
+				DAA_Header header = new DAA_Header(daaFile);
+				header.loadAllReferences();
+				int[] remap = new int[(int) header.getDbSeqsUsed()];
+				for (int i = 0; i < remap.length; i++)
+					remap[i] = subjectIDs.get(new SparseString(new String(header.getReferenceName(i))));
+				copiers.add(new RecordCopier(writer, daaFile, remap));
+			}
+			return copiers;
 		}
 
-		public ArrayList<MAF_Hit> getHits() {
-			return hits;
+		// copies records starting at index from of reads preceding untilRead, adjacent records of a file are copied at once
+		public int copy(int from, int untilRead, ArrayList<RecordCopier> copiers) throws Exception {
+			int to = from + 1;
+			long end = filePointers[from] + lengths[from];
+			while (to < size && readIndices[to] < untilRead && fileIndices[to] == fileIndices[from] && filePointers[to] == end) {
+				end += lengths[to];
+				to++;
+			}
+			copiers.get(fileIndices[from]).copy(filePointers[from], end - filePointers[from], to - from);
+			return to;
 		}
 
-	}
-
-	public void runInParallel(ArrayList<Thread> threads) {
-		latch = new CountDownLatch(threads.size());
-		for (Thread t : threads)
-			executor.execute(t);
-		try {
-			latch.await();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		public long getNumOfBytes() {
+			long sum = 0;
+			for (int i = 0; i < size; i++)
+				sum += lengths[i];
+			return sum;
 		}
-	}
-
-	public class ProcessThread extends Thread {
-
-		private DAA_Reader reader;
-		private ConcurrentSkipListSet<SubjectEntry> subjectInfo_Set;
 
-		public ProcessThread(DAA_Reader reader, ConcurrentSkipListSet<SubjectEntry> subjectInfo_Set) {
-			this.reader = reader;
-			this.subjectInfo_Set = subjectInfo_Set;
+		public long getNumOfHits(int from, int to) {
+			long sum = 0;
+			for (int i = from; i < to; i++)
+				sum += hits[i];
+			return sum;
 		}
 
-		public void run() {
-
-			DAA_Header daaHeader = reader.getDAAHeader();
-			try {
-				for (int i = 0; i < (int) daaHeader.getDbSeqsUsed(); i++) {
-					SparseString refName = new SparseString(new String(daaHeader.getReferenceName(i)));
-					int refLength = daaHeader.getRefLength(i);
-					subjectInfo_Set.add(new SubjectEntry(refName, refLength));
-
-					if (i % 100 == 0)
-						reportProgress(100);
-
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-			latch.countDown();
-
+		public int getReadIndex(int i) {
+			return readIndices[i];
 		}
 
-	}
+		public boolean[] getDecodedReads() {
+			return decodedReads;
+		}
 
-	public ArrayList<Thread> generateProcessThreads(ArrayList<DAA_Reader> daaReader, ConcurrentSkipListSet<SubjectEntry> subjectInfo_Set) {
+		public int getNumOfDecodedReads() {
+			return numOfDecodedReads;
+		}
 
-		ArrayList<Thread> processThreads = new ArrayList<Thread>();
-		for (DAA_Reader reader : daaReader)
-			processThreads.add(new ProcessThread(reader, subjectInfo_Set));
-		return processThreads;
+		public int size() {
+			return size;
+		}
 
 	}
 
-	public class SubjectEntry implements Comparable<SubjectEntry> {
-
-		private SparseString name;
-		private int length;
-
-		public SubjectEntry(SparseString name, int length) {
-			this.name = name;
-			this.length = length;
+	// decodes the query records of a DAA file into an alignment run keeping the DAA reference indices as subject IDs
+	public class DAAConverter implements Callable<Object> {
+
+		private File daaFile, runFile;
+		private int batchIndex;
+		private ArrayList<Object[]> readInfos;
+		private HashMap<String, Integer> readIndices;
+		private boolean[] selectedReads;
+
+		// only records of reads marked in selectedReads are converted, all if it is null
+		public DAAConverter(File daaFile, int batchIndex, File runFile, ArrayList<Object[]> readInfos, HashMap<String, Integer> readIndices,
+				boolean[] selectedReads) {
+			this.daaFile = daaFile;
+			this.batchIndex = batchIndex;
+			this.runFile = runFile;
+			this.readInfos = readInfos;
+			this.readIndices = readIndices;
+			this.selectedReads = selectedReads;
 		}
 
 		@Override
-		public int compareTo(SubjectEntry o) {
-			return name.compareTo(o.getName());
-		}
+		public Object call() throws Exception {
+			DAA_Header header = new DAA_Header(daaFile);
+			if (header.getLocationOfBlockInFile(header.getRefLengthsBlockIndex() + 1) != daaFile.length())
+				throw new IOException("incomplete DAA file " + daaFile.getAbsolutePath());
+			header.loadAllReferences();
+			ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>();
+			for (int i = 0; i < header.getDbSeqsUsed(); i++) {
+				Object[] subject = { new SparseString(new String(header.getReferenceName(i))), header.getRefLength(i) };
+				subjectInfos.add(subject);
+			}
+			Collections.sort(subjectInfos, new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] o1, Object[] o2) {
+					return o1[0].toString().compareTo(o2[0].toString());
+				}
+			});
 
-		public SparseString getName() {
-			return name;
-		}
+			AlignmentRun.Writer writer = new AlignmentRun.Writer(runFile, (long) batchIndex << 32);
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(daaFile), 1024 * 1024));
+			try {
+				long toSkip = header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex());
+				while (toSkip > 0)
+					toSkip -= is.skip(toSkip);
+				byte[] allocBytes = new byte[4];
+				for (long r = 0; r < header.getNumberOfQueryRecords(); r++) {
+
+					is.readFully(allocBytes);
+					int alloc = ByteBuffer.wrap(allocBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+					ByteBuffer record = ByteBuffer.allocate(alloc).order(ByteOrder.LITTLE_ENDIAN);
+					is.readFully(record.array());
+
+					DAA_Hit query = new DAA_Hit();
+					query.parseQueryProperties(0, record, false, true);
+					Integer readIndex = readIndices.get(query.getQueryName());
+					if (readIndex == null || (selectedReads != null && !selectedReads[readIndex]))
+						continue;
+					Object[] readInfo = readInfos.get(readIndex);
+					while (record.position() < record.capacity()) {
+						DAA_Hit daaHit = new DAA_Hit();
+						daaHit.copyQueryProperties(query);
+						daaHit.parseHitProperties(header, record, false);
+						int refEnd = daaHit.getRefStart() + daaHit.getRefLength();
+						MAF_Hit mafHit = new MAF_Hit(daaHit.getRawScore(), daaHit.getReferenceName(), daaHit.getRefStart(), refEnd,
+								daaHit.getQueryName(), daaHit.getQueryStart(), daaHit.getQueryLength(), daaHit.getFrame(),
+								daaHit.getEditByteOperations(), subjectInfos, daaHit.getPackedQuerySequence(), daaHit.queryHasN(),
+								(int) readInfo[2]);
+						writer.add(readIndex, new Hit(mafHit));
+					}
 
-		public int getLength() {
-			return length;
+				}
+			} finally {
+				is.close();
+				writer.close(subjectInfos);
+			}
+			return null;
 		}
 
 	}
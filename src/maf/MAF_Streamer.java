@@ -20,6 +20,8 @@ package maf;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.security.CodeSource;
@@ -27,8 +29,10 @@ import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import startUp.MainConverter;
+import util.StatusReporter;
 
 public class MAF_Streamer {
 
@@ -36,11 +40,22 @@ public class MAF_Streamer {
 	private int cores;
 	private boolean verbose, doFiltering;
 	private int chunkSize = 500000000;
+	private Long maxMemory;
+
+	private StreamJournal journal;
+	private int batchOffset = 0;
+	private long totalLines = 0;
 
 	private CountDownLatch countDownLatch = new CountDownLatch(0);
+	private AtomicInteger doneBatches = new AtomicInteger();
+	private boolean failed = false;
 	private ExecutorService executor;
 
 	public MAF_Streamer(File queryFile, File tmpFolder, Integer chunkSize, int cores, boolean doFiltering, boolean verbose) {
+		this(queryFile, tmpFolder, chunkSize, cores, doFiltering, verbose, null);
+	}
+
+	public MAF_Streamer(File queryFile, File tmpFolder, Integer chunkSize, int cores, boolean doFiltering, boolean verbose, Long maxMemory) {
 		this.queryFile = queryFile;
 		this.tmpFolder = tmpFolder;
 		this.cores = cores;
@@ -48,28 +63,87 @@ public class MAF_Streamer {
 		this.doFiltering = doFiltering;
 		this.executor = Executors.newFixedThreadPool(1);
 		this.chunkSize = chunkSize != null ? chunkSize : this.chunkSize;
+		this.maxMemory = maxMemory;
+	}
+
+	// if set, finished batches are recorded in the journal and the batches of a previous attempt are skipped
+	public void setJournal(StreamJournal journal) {
+		this.journal = journal;
+	}
+
+	// returns true if the input could not be read or cut into batches completely
+	public boolean hasFailed() {
+		return failed;
 	}
 
-	public Object[] processInputStream() {
+	public Object[] processInputStream(InputStream in) {
 
-		ArrayList<Thread> converterThreads = new ArrayList<Thread>();
+		final ArrayList<Thread> converterThreads = new ArrayList<Thread>();
 		File headerFile = null;
 
+		// continuing behind the batches of a previous attempt
+		ArrayList<File> previousRuns = new ArrayList<File>();
+		long resumeLine = 0;
+		if (journal != null && journal.getNumOfBatches() > 0) {
+			previousRuns = journal.getRunFiles();
+			resumeLine = journal.getResumeLine();
+			headerFile = journal.getHeaderFile();
+			batchOffset = previousRuns.size();
+			System.out.println("Resuming behind " + batchOffset + " journaled batches at input line " + resumeLine);
+		}
+
+		// the stage follows the input lines read, batches waiting for or being in conversion and those done are reported as gauges
+		StatusReporter.setStage("streamer.read_input", 0);
+		StatusReporter.addGauge("streamer.pending_batches", new StatusReporter.Gauge() {
+			@Override
+			public long getValue() {
+				return converterThreads.size() - doneBatches.get();
+			}
+		});
+		StatusReporter.addGauge("streamer.done_batches", new StatusReporter.Gauge() {
+			@Override
+			public long getValue() {
+				return doneBatches.get();
+			}
+		});
+		StatusReporter.addGauge("streamer.submitted_batches", new StatusReporter.Gauge() {
+			@Override
+			public long getValue() {
+				return converterThreads.size();
+			}
+		});
+
 		try {
 
 			tmpFolder.mkdir();
 			StringBuilder headerBuilder = new StringBuilder();
 			StringBuilder batchBuilder = new StringBuilder();
-			BufferedReader buf = new BufferedReader(new InputStreamReader(System.in));
+			BufferedReader buf = new BufferedReader(new InputStreamReader(in));
 			boolean firstWrite = true;
 
 			File batchFile = null;
 
 			try {
 				int lineCounter = 0;
-				int batchCounter = 0;
+				int batchCounter = batchOffset;
+				long inputLines = 0, batchStart = resumeLine, reportedLines = 0;
 				String l;
+
+				// skipping lines of journaled batches
+				if (resumeLine > 0) {
+					while (inputLines < resumeLine && buf.readLine() != null)
+						inputLines++;
+					headerBuilder = null;
+					batchFile = createTmpFile(batchCounter++);
+					batchBuilder.append("# batch " + batchCounter + "\n");
+				}
+
 				while ((l = buf.readLine()) != null) {
+					inputLines++;
+					if (inputLines - reportedLines >= 1000) {
+						StatusReporter.advance(inputLines - reportedLines);
+						reportedLines = inputLines;
+					}
 					if (headerBuilder != null && l.startsWith("#") && !l.startsWith("# batch")) {
 						headerBuilder.append(l + "\n");
 					} else if (!l.isEmpty()) {
@@ -80,6 +154,8 @@ public class MAF_Streamer {
 								headerFile = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "header.maf");
 								writeFile(headerBuilder.toString(), headerFile, false);
 								headerBuilder = null;
+								if (journal != null)
+									journal.setHeader(headerFile);
 							}
 							batchBuilder.append(l + "\n");
 
@@ -102,12 +178,16 @@ public class MAF_Streamer {
 							}
 						}
 					} else if (batchFile != null && batchFile.length() > chunkSize) {
-						if (batchFile != null) {
-							Thread daaThread = writeDAAFile(batchFile, queryFile, headerFile, cores, verbose);
-							converterThreads.add(daaThread);
-							executor.submit(daaThread);
-							countDownLatch = new CountDownLatch((int) countDownLatch.getCount() + 1);
-						}
+
+						// writing lines not flushed so far
+						writeFile(batchBuilder.toString(), batchFile, !firstWrite);
+
+						Thread converterThread = writeBatchRun(batchFile, batchOffset + converterThreads.size(), queryFile, headerFile, batchStart,
+								inputLines, verbose);
+						converterThreads.add(converterThread);
+						executor.submit(converterThread);
+						countDownLatch = new CountDownLatch((int) countDownLatch.getCount() + 1);
+						batchStart = inputLines;
 
 						firstWrite = true;
 						batchFile = createTmpFile(batchCounter++);
@@ -121,18 +201,21 @@ public class MAF_Streamer {
 
 					writeFile(batchBuilder.toString(), batchFile, !firstWrite);
 
-					Thread daaThread = writeDAAFile(batchFile, queryFile, headerFile, cores, verbose);
-					converterThreads.add(daaThread);
-					executor.submit(daaThread);
+					Thread converterThread = writeBatchRun(batchFile, batchOffset + converterThreads.size(), queryFile, headerFile, batchStart,
+							inputLines, verbose);
+					converterThreads.add(converterThread);
+					executor.submit(converterThread);
 					countDownLatch = new CountDownLatch((int) countDownLatch.getCount() + 1);
 				}
+				StatusReporter.advance(inputLines - reportedLines);
+				totalLines = inputLines;
 
 			} finally {
 				buf.close();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
-			return null;
+			failed = true;
 		}
 
 		// waiting for termination
@@ -143,16 +226,30 @@ public class MAF_Streamer {
 			e.printStackTrace();
 		}
 		executor.shutdown();
+		StatusReporter.removeGauge("streamer.pending_batches");
+		StatusReporter.removeGauge("streamer.done_batches");
+		StatusReporter.removeGauge("streamer.submitted_batches");
+
+		// marking the input as complete only if every batch has been journaled
+		if (failed) {
+			for (Thread converterThread : converterThreads) {
+				if (journal == null)
+					((ConverterThread) converterThread).getRunFile().delete();
+			}
+			return null;
+		}
+		if (journal != null && journal.getNumOfBatches() == batchOffset + converterThreads.size())
+			journal.setInputComplete(totalLines);
 
-		// collecting daa files
-		ArrayList<File> daaFiles = new ArrayList<File>();
-		for (Thread daaThreads : converterThreads)
-			daaFiles.add(((ConverterThread) daaThreads).getDaaFile());
+		// collecting batch runs
+		ArrayList<File> runFiles = new ArrayList<File>(previousRuns);
+		for (Thread converterThread : converterThreads)
+			runFiles.add(((ConverterThread) converterThread).getRunFile());
 
-		if (daaFiles.isEmpty())
+		if (runFiles.isEmpty())
 			return null;
 
-		Object[] result = { headerFile, daaFiles };
+		Object[] result = { headerFile, runFiles };
 		return result;
 
 	}
@@ -161,49 +258,63 @@ public class MAF_Streamer {
 		File f = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "z" + System.currentTimeMillis() + "-" + batchCounter + ".maf");
 		while (f.exists())
 			f = new File(tmpFolder.getAbsolutePath() + File.separatorChar + "z" + System.currentTimeMillis() + "-" + batchCounter + ".maf");
+		if (journal != null)
+			journal.addChunk(batchCounter, f, getRunFile(f));
 		return f;
 	}
 
-	private Thread writeDAAFile(File batchFile, File queryFile, File headerFile, int cores, boolean verbose) {
-		File daaFile = new File(batchFile.getAbsolutePath().replace(".maf", ".daa"));
-		return new ConverterThread(daaFile, batchFile, queryFile, headerFile, 1, verbose);
+	private static File getRunFile(File batchFile) {
+		return new File(batchFile.getAbsolutePath().replace(".maf", ".bin"));
+	}
+
+	// the batch covers the input lines (startLine, endLine]
+	private Thread writeBatchRun(File batchFile, int batchIndex, File queryFile, File headerFile, long startLine, long endLine, boolean verbose) {
+		return new ConverterThread(getRunFile(batchFile), batchIndex, batchFile, queryFile, headerFile, startLine, endLine, 1, verbose);
 	}
 
 	public class ConverterThread extends Thread {
 
-		private File batchFile, daaFile, queryFile, headerFile;
-		private int cores;
+		private File batchFile, runFile, queryFile, headerFile;
+		private int batchIndex, cores;
+		private long startLine, endLine;
 		private boolean verbose;
 
-		public ConverterThread(File daaFile, File batchFile, File queryFile, File headerFile, int cores, boolean verbose) {
+		public ConverterThread(File runFile, int batchIndex, File batchFile, File queryFile, File headerFile, long startLine, long endLine, int cores,
+				boolean verbose) {
 			this.batchFile = batchFile;
-			this.daaFile = daaFile;
+			this.runFile = runFile;
+			this.batchIndex = batchIndex;
 			this.queryFile = queryFile;
 			this.headerFile = headerFile;
+			this.startLine = startLine;
+			this.endLine = endLine;
 			this.cores = cores;
 			this.verbose = verbose;
 		}
 
 		@Override
 		public void run() {
-			new MAF_Converter().run(daaFile, batchFile, queryFile, cores, verbose, headerFile, doFiltering);
+			long[] stats = new MAF_Converter().runToBatch(runFile, batchIndex, batchFile, queryFile, cores, verbose, headerFile, doFiltering, maxMemory,
+					tmpFolder);
 			batchFile.delete();
+			if (journal != null && stats != null)
+				journal.addBatch(batchIndex, runFile, startLine, endLine, (int) stats[1], (int) stats[2], stats[0]);
+			doneBatches.incrementAndGet();
 			countDownLatch.countDown();
 		}
 
-		public File getDaaFile() {
-			return daaFile;
+		public File getRunFile() {
+			return runFile;
 		}
 
 	}
 
-	private static void writeFile(String output, File file, boolean append) {
+	private static void writeFile(String output, File file, boolean append) throws IOException {
+		FileWriter writer = new FileWriter(file, append);
 		try {
-			FileWriter writer = new FileWriter(file, append);
 			writer.write(output);
+		} finally {
 			writer.close();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package maf;
+
+import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import util.SparseString;
+
+// manifest of a journaled streaming conversion, it records finished batch runs so that a restarted run can skip completed work
+public class StreamJournal {
+
+	private static final int VERSION = 2;
+
+	private File manifestFile, subjectFile;
+	private String fingerprint;
+	private File headerFile;
+	private TreeMap<Integer, Object[]> batches = new TreeMap<Integer, Object[]>();
+	private TreeMap<Integer, File[]> chunks = new TreeMap<Integer, File[]>();
+	private long inputLines = -1;
+	private boolean hasSubjects = false;
+
+	private StreamJournal(File manifestFile, String fingerprint) {
+		this.manifestFile = manifestFile;
+		this.subjectFile = new File(manifestFile.getAbsolutePath() + ".subjects");
+		this.fingerprint = fingerprint;
+	}
+
+	// loads the manifest of the given conversion from tmpFolder, a manifest of another query file or setting is discarded
+	public static StreamJournal open(File tmpFolder, File daaFile, File queryFile, boolean doFiltering) throws IOException {
+
+		File manifestFile = new File(tmpFolder, daaFile.getName() + ".manifest");
+		String fingerprint = queryFile.getAbsolutePath() + "\t" + queryFile.length() + "\t" + queryFile.lastModified() + "\t" + doFiltering;
+		StreamJournal journal = new StreamJournal(manifestFile, fingerprint);
+		if (manifestFile.exists()) {
+			if (!journal.load()) {
+				System.out.println("Discarding journal " + manifestFile.getAbsolutePath() + " of a different conversion");
+				journal.discard();
+			} else
+				journal.dropIncompleteBatches();
+		}
+		journal.rewrite();
+		return journal;
+
+	}
+
+	private boolean load() throws IOException {
+		BufferedReader buf = new BufferedReader(new FileReader(manifestFile));
+		try {
+			String l = buf.readLine();
+			if (l == null || !l.equals("version\t" + VERSION))
+				return false;
+			boolean matches = false;
+			while ((l = buf.readLine()) != null) {
+				String[] split = l.split("\t");
+				try {
+					switch (split[0]) {
+					case "query":
+						matches = l.substring(6).equals(fingerprint);
+						break;
+					case "header":
+						headerFile = new File(split[1]);
+						break;
+					case "chunk":
+						File[] files = { new File(split[2]), new File(split[3]) };
+						chunks.put(Integer.parseInt(split[1]), files);
+						break;
+					case "batch":
+						Object[] batch = { new File(split[2]), Long.parseLong(split[3]), Long.parseLong(split[4]), Integer.parseInt(split[5]),
+								Integer.parseInt(split[6]), Long.parseLong(split[7]) };
+						batches.put(Integer.parseInt(split[1]), batch);
+						break;
+					case "complete":
+						inputLines = Long.parseLong(split[1]);
+						break;
+					case "subjects":
+						hasSubjects = subjectFile.exists();
+						break;
+					}
+				} catch (RuntimeException e) {
+					// ignoring a partially written last entry
+				}
+			}
+			if (!matches)
+				return false;
+		} finally {
+			buf.close();
+		}
+		return true;
+	}
+
+	// keeps the longest prefix of batches whose runs exist, the files of all other batches and chunks are deleted
+	private void dropIncompleteBatches() {
+		int next = 0;
+		while (headerFile != null && headerFile.exists() && batches.containsKey(next) && ((File) batches.get(next)[0]).exists())
+			next++;
+		for (Integer index : new ArrayList<Integer>(batches.keySet())) {
+			if (index >= next) {
+				((File) batches.remove(index)[0]).delete();
+				inputLines = -1;
+			}
+		}
+		for (Integer index : chunks.keySet()) {
+			if (!batches.containsKey(index)) {
+				for (File f : chunks.get(index))
+					f.delete();
+			}
+		}
+		chunks.clear();
+		if (inputLines < 0)
+			hasSubjects = false;
+		if (batches.isEmpty())
+			headerFile = null;
+	}
+
+	private void discard() {
+		for (Object[] batch : batches.values())
+			((File) batch[0]).delete();
+		for (File[] files : chunks.values()) {
+			for (File f : files)
+				f.delete();
+		}
+		batches.clear();
+		chunks.clear();
+		headerFile = null;
+		inputLines = -1;
+		hasSubjects = false;
+	}
+
+	// writes the current state into a new manifest which then replaces the old one
+	private synchronized void rewrite() throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append("version\t" + VERSION + "\n");
+		buf.append("query\t" + fingerprint + "\n");
+		if (headerFile != null)
+			buf.append("header\t" + headerFile.getAbsolutePath() + "\n");
+		for (Integer index : batches.keySet())
+			buf.append(toBatchEntry(index, batches.get(index)));
+		if (inputLines >= 0)
+			buf.append("complete\t" + inputLines + "\n");
+		if (hasSubjects)
+			buf.append("subjects\t" + subjectFile.getAbsolutePath() + "\n");
+		File tmpFile = new File(manifestFile.getAbsolutePath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			fos.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmpFile.renameTo(manifestFile)) {
+			manifestFile.delete();
+			if (!tmpFile.renameTo(manifestFile))
+				throw new IOException("cannot replace manifest " + manifestFile.getAbsolutePath());
+		}
+	}
+
+	private String toBatchEntry(int index, Object[] batch) {
+		return "batch\t" + index + "\t" + ((File) batch[0]).getAbsolutePath() + "\t" + batch[1] + "\t" + batch[2] + "\t" + batch[3] + "\t" + batch[4]
+				+ "\t" + batch[5] + "\n";
+	}
+
+	// appends an entry and forces it onto disk
+	private synchronized void append(String entry) {
+		try {
+			FileOutputStream fos = new FileOutputStream(manifestFile, true);
+			try {
+				fos.write(entry.getBytes(StandardCharsets.UTF_8));
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void setHeader(File headerFile) {
+		this.headerFile = headerFile;
+		append("header\t" + headerFile.getAbsolutePath() + "\n");
+	}
+
+	// records the temporary MAF chunk and the run of a batch in conversion, both are removed on resume if the batch did not finish
+	public synchronized void addChunk(int index, File mafFile, File runFile) {
+		append("chunk\t" + index + "\t" + mafFile.getAbsolutePath() + "\t" + runFile.getAbsolutePath() + "\n");
+	}
+
+	// records a finished batch covering the input lines (startLine, endLine] and the reads firstRead to lastRead
+	public synchronized void addBatch(int index, File runFile, long startLine, long endLine, int firstRead, int lastRead, long records) {
+		Object[] batch = { runFile, startLine, endLine, firstRead, lastRead, records };
+		batches.put(index, batch);
+		append(toBatchEntry(index, batch));
+	}
+
+	public synchronized void setInputComplete(long inputLines) {
+		this.inputLines = inputLines;
+		append("complete\t" + inputLines + "\n");
+	}
+
+	public synchronized void saveSubjectInfos(ArrayList<Object[]> subjectInfos) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(subjectFile), 1024 * 1024));
+		try {
+			out.writeInt(subjectInfos.size());
+			for (Object[] subject : subjectInfos) {
+				byte[] name = ((SparseString) subject[0]).getData();
+				out.writeInt(name.length);
+				out.write(name);
+				out.writeInt((int) subject[1]);
+			}
+		} finally {
+			out.close();
+		}
+		hasSubjects = true;
+		append("subjects\t" + subjectFile.getAbsolutePath() + "\n");
+	}
+
+	// returns the merged subject table of a previous attempt, or null if there is none
+	public synchronized ArrayList<Object[]> loadSubjectInfos() throws IOException {
+		if (!hasSubjects)
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(subjectFile), 1024 * 1024));
+		try {
+			int n = in.readInt();
+			ArrayList<Object[]> subjectInfos = new ArrayList<Object[]>(n);
+			for (int i = 0; i < n; i++) {
+				byte[] name = new byte[in.readInt()];
+				in.readFully(name);
+				Object[] subject = { new SparseString(new String(name)), in.readInt() };
+				subjectInfos.add(subject);
+			}
+			return subjectInfos;
+		} finally {
+			in.close();
+		}
+	}
+
+	public synchronized boolean isInputComplete() {
+		return inputLines >= 0;
+	}
+
+	public synchronized int getNumOfBatches() {
+		return batches.size();
+	}
+
+	// number of input lines covered by finished batches, which a restarted run skips
+	public synchronized long getResumeLine() {
+		return batches.isEmpty() ? 0 : (long) batches.lastEntry().getValue()[2];
+	}
+
+	public synchronized File getHeaderFile() {
+		return headerFile;
+	}
+
+	public synchronized ArrayList<File> getRunFiles() {
+		ArrayList<File> runFiles = new ArrayList<File>();
+		for (Object[] batch : batches.values())
+			runFiles.add((File) batch[0]);
+		return runFiles;
+	}
+
+	// removes the manifest together with the header and subject files, the runs are left to the caller
+	public synchronized void delete() {
+		manifestFile.delete();
+		subjectFile.delete();
+		if (headerFile != null)
+			headerFile.delete();
+	}
+
+	public File getManifestFile() {
+		return manifestFile;
+	}
+
+}
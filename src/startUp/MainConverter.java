@@ -19,31 +19,50 @@ package startUp;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 
+import daa.writer.DAA_Appender;
+import daa.writer.FlushPolicy;
+import io.ParallelGZIPInputStream;
+import io.SeekableInput;
 import maf.MAF_Converter;
+import maf.MAF_SortConverter;
 import maf.MAF_StreamConverter;
 import maf.MAF_Streamer;
+import maf.StreamJournal;
 import util.Finalizer;
+import util.Metrics;
+import util.StatusReporter;
 
 public class MainConverter {
 
 	public final static String version = "v0.9.0";
 	public static double MIN_PROPORTION_COVERAGE = 0.9;
 	public static double MIN_PROPORTION_SCORE = 0.9;
+	public static boolean VIRTUAL_READERS = false;
+	public static int MERGE_SHARDS = 1;
+	public static boolean PREALLOCATE = false;
 
 	public static void main(String[] args) {
 
 		System.out.println("MAF2DAA Converter "+version);
 		System.out.println("Copyright (C) 2017 Benjamin Albrecht. This program comes with ABSOLUTELY NO WARRANTY.");
 		Integer chunkSize = null;
+		Long maxMemory = null;
+		Long flushBytes = null, flushLatency = null;
 		File mafFile = null;
 		File queryFile = null;
 		File daaFile = null;
 		File tmpFolder = null;
+		File metricsFile = null;
+		Integer statusPort = null, statusInterval = null;
 		Integer cores = Runtime.getRuntime().availableProcessors(), cores_streaming = 1;
 		double topPercent = 10.;
 		boolean doFiltering = true;
+		boolean externalSort = false;
+		boolean useJournal = false;
+		boolean append = false;
 		boolean verbose = false;
 
 		boolean wrongSetting = false;
@@ -101,6 +120,30 @@ public class MainConverter {
 				}
 				i++;
 				break;
+			case "-mm":
+			case "--max-memory":
+				maxMemory = parseSize(args[i + 1]);
+				if (maxMemory == null)
+					wrongSetting = true;
+				i++;
+				break;
+			case "-fb":
+			case "--flushBytes":
+				flushBytes = parseSize(args[i + 1]);
+				if (flushBytes == null)
+					wrongSetting = true;
+				i++;
+				break;
+			case "-fl":
+			case "--flushLatency":
+				try {
+					flushLatency = Long.parseLong(args[i + 1]);
+				} catch (Exception e) {
+					System.err.println("ERROR: not an integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
 			case "-top":
 			case "—-topPercent":
 				try {
@@ -133,20 +176,12 @@ public class MainConverter {
 			case "-o":
 			case "--out":
 				daaFile = new File(args[i + 1]);
-				try {
-					if (daaFile.exists())
-						daaFile.delete();
-					daaFile.createNewFile();
-					if (!daaFile.isFile()) {
-						wrongSetting = true;
-						System.err.println("ERROR: not a proper file path " + daaFile.getAbsolutePath());
-					}
-				} catch (IOException e) {
-					System.err.println("ERROR: cannot create DAA-file " + daaFile.getAbsolutePath());
-					wrongSetting = true;
-				}
 				i++;
 				break;
+			case "-a":
+			case "--append":
+				append = true;
+				break;
 			case "-t":
 			case "-tmp":
 				tmpFolder = new File(args[i + 1]);
@@ -156,6 +191,59 @@ public class MainConverter {
 				}
 				i++;
 				break;
+			case "-es":
+			case "--externalSort":
+				externalSort = true;
+				break;
+			case "-vt":
+			case "--virtualThreads":
+				VIRTUAL_READERS = true;
+				break;
+			case "-ms":
+			case "--mergeShards":
+				try {
+					MERGE_SHARDS = Integer.parseInt(args[i + 1]);
+					if (MERGE_SHARDS < 1)
+						throw new IllegalArgumentException();
+				} catch (Exception e) {
+					System.err.println("ERROR: not a positive integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-pa":
+			case "--preallocate":
+				PREALLOCATE = true;
+				break;
+			case "-j":
+			case "--journal":
+				useJournal = true;
+				break;
+			case "-mf":
+			case "--metrics":
+				metricsFile = new File(args[i + 1]);
+				i++;
+				break;
+			case "-sp":
+			case "--statusPort":
+				try {
+					statusPort = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					System.err.println("ERROR: not an integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-si":
+			case "--statusInterval":
+				try {
+					statusInterval = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					System.err.println("ERROR: not an integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
 			case "-v":
 			case "--verbose":
 				verbose = true;
@@ -171,39 +259,213 @@ public class MainConverter {
 
 		}
 
+		// an existing DAA-File is only kept in append mode
+		if (daaFile != null && append && !daaFile.isFile()) {
+			System.err.println("ERROR: invalid DAA-file " + daaFile.getAbsolutePath() + " to append to (file does not exist)");
+			wrongSetting = true;
+		} else if (daaFile != null && !append) {
+			try {
+				if (daaFile.exists())
+					daaFile.delete();
+				daaFile.createNewFile();
+				if (!daaFile.isFile()) {
+					wrongSetting = true;
+					System.err.println("ERROR: not a proper file path " + daaFile.getAbsolutePath());
+				}
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot create DAA-file " + daaFile.getAbsolutePath());
+				wrongSetting = true;
+			}
+		}
+
 		if (daaFile == null || queryFile == null || wrongSetting)
 			printOptionsAndQuit();
 
 		MIN_PROPORTION_COVERAGE = (100. - new Double(topPercent)) / 100.;
 		MIN_PROPORTION_SCORE = (100. - new Double(topPercent)) / 100.;
+		FlushPolicy.setDefaults(flushBytes, flushLatency);
+
+		// gzip files without BGZF blocks cannot be split and are therefore streamed like piped input
+		boolean streamInput = !externalSort && (mafFile == null || !SeekableInput.isSeekable(mafFile));
+
+		tmpFolder = (tmpFolder == null) ? daaFile.getAbsoluteFile().getParentFile() : tmpFolder;
+		startStatusReporter(tmpFolder, statusPort, statusInterval);
 
+		// in append mode the new alignments are converted into a temporary DAA-File first
+		File outFile = daaFile;
+		if (append) {
+			tmpFolder.mkdirs();
+			outFile = new File(tmpFolder, "append_" + daaFile.getName());
+		}
 		Object[] streamResults = null;
-		if (mafFile == null) {
-			tmpFolder = (tmpFolder == null) ? daaFile.getAbsoluteFile().getParentFile() : tmpFolder;
-			streamResults = new MAF_Streamer(queryFile, tmpFolder, chunkSize, cores_streaming, doFiltering, verbose).processInputStream();
-			Runtime.getRuntime().addShutdownHook(new Thread(new Finalizer((ArrayList<File>) streamResults[1])));
+		StreamJournal journal = null;
+		if (streamInput && useJournal) {
+			try {
+				journal = StreamJournal.open(tmpFolder, outFile, queryFile, doFiltering);
+				System.out.println("Journaling batches into " + journal.getManifestFile().getAbsolutePath());
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot open journal (" + e.getMessage() + ")");
+				System.exit(1);
+			}
+		}
+		if (streamInput && journal != null && journal.isInputComplete()) {
+			// all batches of a previous attempt are finished, only the merge is left
+			System.out.println("Input already journaled, merging " + journal.getNumOfBatches() + " batches");
+			Object[] journalResults = { journal.getHeaderFile(), journal.getRunFiles() };
+			streamResults = journalResults;
+		} else if (streamInput) {
+			InputStream in = null;
+			try {
+				in = mafFile == null ? ParallelGZIPInputStream.open(System.in, cores) : ParallelGZIPInputStream.open(mafFile, cores);
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot read MAF input (" + e.getMessage() + ")");
+				System.exit(1);
+			}
+			MAF_Streamer streamer = new MAF_Streamer(queryFile, tmpFolder, chunkSize, cores_streaming, doFiltering, verbose, maxMemory);
+			streamer.setJournal(journal);
+			streamResults = streamer.processInputStream(in);
+			if (streamer.hasFailed()) {
+				System.err.println("ERROR: cannot cut MAF input into batches" + (journal != null ? ", rerun with the same input to resume" : ""));
+				System.exit(1);
+			}
+			if (streamResults != null && journal == null)
+				Runtime.getRuntime().addShutdownHook(new Thread(new Finalizer((ArrayList<File>) streamResults[1])));
 		}
 
-		if (mafFile == null && streamResults == null)
+		if (streamInput && streamResults == null)
 			printOptionsAndQuit();
 
+		if (journal != null && !journal.isInputComplete()) {
+			System.err.println("ERROR: not all batches could be converted, rerun with the same input to resume");
+			System.exit(1);
+		}
+
 		if (streamResults != null) {
-			new MAF_StreamConverter().run(daaFile, (ArrayList<File>) streamResults[1], queryFile, cores, verbose, (File) streamResults[0],
+			MAF_StreamConverter streamConverter = new MAF_StreamConverter();
+			streamConverter.setJournal(journal);
+			boolean success = streamConverter.run(outFile, (ArrayList<File>) streamResults[1], queryFile, cores, verbose, (File) streamResults[0],
 					doFiltering);
+
+			// the journaled batches are only removed once the merge succeeded
+			if (journal != null && success) {
+				for (File f : (ArrayList<File>) streamResults[1])
+					f.delete();
+				journal.delete();
+			}
+			if (!success) {
+				System.err.println("ERROR: merging the batches into " + outFile.getAbsolutePath() + " failed"
+						+ (journal != null ? ", rerun with the same input to resume" : ""));
+				System.exit(1);
+			}
+		}
+		else if (externalSort) {
+			try {
+				InputStream in = mafFile == null ? ParallelGZIPInputStream.open(System.in, cores) : ParallelGZIPInputStream.open(mafFile, cores);
+				if (!new MAF_SortConverter().run(outFile, in, queryFile, cores, verbose, doFiltering, maxMemory, tmpFolder)) {
+					System.err.println("ERROR: conversion of MAF input into " + outFile.getAbsolutePath() + " failed");
+					System.exit(1);
+				}
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot read MAF input (" + e.getMessage() + ")");
+				System.exit(1);
+			}
+		} else if (mafFile != null) {
+			MAF_Converter converter = new MAF_Converter();
+			converter.run(outFile, mafFile, queryFile, cores, verbose, null, doFiltering, maxMemory, tmpFolder);
+			if (converter.hasFailed()) {
+				System.err.println("ERROR: cannot write DAA-file " + outFile.getAbsolutePath());
+				if (append)
+					outFile.delete();
+				System.exit(1);
+			}
+		}
+
+		boolean appendFailed = false;
+		if (append && (!outFile.isFile() || outFile.length() < 2448))
+			System.err.println("ERROR: no alignments converted, " + daaFile.getAbsolutePath() + " is left unchanged");
+		else if (append) {
+			try {
+				DAA_Appender.append(daaFile, outFile, verbose);
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot append to DAA-file " + daaFile.getAbsolutePath() + " (" + e.getMessage() + ")");
+				e.printStackTrace();
+				appendFailed = true;
+			}
 		}
-		if (mafFile != null)
-			new MAF_Converter().run(daaFile, mafFile, queryFile, cores, verbose, null, doFiltering);
+		if (append)
+			outFile.delete();
 
+		if (metricsFile != null) {
+			Metrics.writeJson(metricsFile);
+			System.out.println("Metrics written into " + metricsFile.getAbsolutePath());
+		}
+		StatusReporter.shutdown();
+		if (appendFailed)
+			System.exit(1);
+
+	}
+
+	// the status file is only written if an interval is given, the endpoint is served on the loopback interface
+	static void startStatusReporter(File tmpFolder, Integer statusPort, Integer statusInterval) {
+		if (statusPort == null && statusInterval == null)
+			return;
+		try {
+			File statusFile = statusInterval != null ? StatusReporter.getStatusFile(tmpFolder) : null;
+			StatusReporter.start(statusFile, statusPort, statusInterval != null ? statusInterval : 5);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					StatusReporter.shutdown();
+				}
+			});
+			if (statusFile != null)
+				System.out.println("Reporting status into " + statusFile.getAbsolutePath());
+			if (statusPort != null)
+				System.out.println("Serving status on http://localhost:" + statusPort + "/");
+		} catch (IOException e) {
+			System.err.println("ERROR: cannot start status endpoint (" + e.getMessage() + ")");
+		}
+	}
+
+	static Long parseSize(String s) {
+		String num = s.substring(0, s.length() - 1);
+		long factor;
+		switch (s.charAt(s.length() - 1)) {
+		case 'k':
+		case 'K':
+			factor = 1000L;
+			break;
+		case 'm':
+		case 'M':
+			factor = 1000000L;
+			break;
+		case 'g':
+		case 'G':
+			factor = 1000000000L;
+			break;
+		default:
+			System.err.println("Error: not a legal memory-size identifier " + s.charAt(s.length() - 1)
+					+ " - legal identifiers are: k (for KB), m (for MB), and g (for GB)");
+			return null;
+		}
+		try {
+			return Long.parseLong(num) * factor;
+		} catch (NumberFormatException e) {
+			System.err.println("Error: not an integer " + num + ".");
+			return null;
+		}
 	}
 
 	private static void printOptionsAndQuit() {
 		int space = 25;
 		System.out.println("Input");
-		System.out.println(String.format("%-" + space + "s %s", "\t-i, --in", "sets path to MAF-File (can also be piped in, no gzip allowed here)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-i, --in", "sets path to MAF-File (can also be piped in, gzip and BGZF allowed)"));
 		System.out.println(
 				String.format("%-" + space + "s %s", "\t-r, -- reads", "sets path to query-file in FASTA or FASTQ format (can also be gzipped)"));
 		System.out.println("Output");
 		System.out.println(String.format("%-" + space + "s %s", "\t-o, --out", "sets path of the reported DAA-File"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-a, --append",
+				"appends the converted reads to the existing DAA-File given by -o instead of replacing it"));
 		System.out.println("Parameter");
 		System.out.println(
 				String.format("%-" + space + "s %s", "\t-top, --topPercent", "sets top percent of reads kept during filtering (default: 10.0)"));
@@ -211,9 +473,31 @@ public class MainConverter {
 		System.out.println(String.format("%-" + space + "s %s", "\t-ps, --streamingProcs",
 				"sets number of used processors while input is piped-in (default: 1)"));
 		System.out.println(String.format("%-" + space + "s %s", "\t-cs, --chunkSize", "sets chunk-size of temporary MAF files (default: 500mb)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-mm, --max-memory",
+				"sets memory budget for buffered alignments and read-ahead buffers, hits of larger reads are spilled into the tmp folder (e.g. 4g)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-fb, --flushBytes",
+				"sets encoded size of buffered alignments written into the DAA-File at once (default: 4m)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-fl, --flushLatency",
+				"sets milliseconds after which buffered alignments are written regardless of their size, -1 to disable (default: 1000)"));
 		System.out.println(String.format("%-" + space + "s %s", "\t-t, --tmp",
 				"sets folder for temporary files (default: parent folder of the resulting DAA-File)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-es, --externalSort",
+				"sorts alignments by read on disk, use for MAF input not grouped by read (e.g. merged shards)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-vt, --virtualThreads",
+				"reads MAF batches on virtual threads (Java 21+), otherwise on a pool of up to 4x procs blocking reader threads"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-ms, --mergeShards",
+				"merges piped-in batches in the given number of read ranges in parallel (default: 1)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-pa, --preallocate",
+				"reserves the DAA-File for the estimated alignment data up front and writes it through a memory-mapped window (not on Windows)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-j, --journal",
+				"journals finished batches of piped-in input in the tmp folder, a rerun with the same input resumes behind them"));
 		System.out.println("Other");
+		System.out.println(String.format("%-" + space + "s %s", "\t-mf, --metrics",
+				"writes counters and per-stage timings of the run as JSON into the given file"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-si, --statusInterval",
+				"writes live status (rates, queue depths, heap, ETA) every given seconds into a file in the tmp folder"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-sp, --statusPort",
+				"serves live status on http://localhost:<port>/ and metrics on /metrics"));
 		System.out.println(String.format("%-" + space + "s %s", "\t-v, --verbose",
 				"sets verbose mode reporting numbers of reads/references/alignments being analyzed)"));
 		System.out.println(String.format("%-" + space + "s %s", "\t-h, --help", "shows program usage and quits"));
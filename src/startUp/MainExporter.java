@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package startUp;
+
+import java.io.File;
+import java.io.IOException;
+
+import daa.reader.DAA_Exporter;
+import daa.reader.DAA_Exporter.Format;
+
+public class MainExporter {
+
+	public static void main(String[] args) {
+
+		System.out.println("DAA Exporter " + MainConverter.version);
+		System.out.println("Copyright (C) 2017 Benjamin Albrecht. This program comes with ABSOLUTELY NO WARRANTY.");
+
+		File daaFile = null;
+		File outFile = null;
+		Format format = Format.MAF;
+		Integer cores = Runtime.getRuntime().availableProcessors();
+		boolean verbose = false;
+
+		boolean wrongSetting = false;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			switch (option) {
+			case "-i":
+			case "--in":
+				daaFile = new File(args[i + 1]);
+				if (!daaFile.isFile()) {
+					System.err.println("ERROR: invalid DAA-file " + (args[i + 1]) + " (file does not exist)");
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-o":
+			case "--out":
+				outFile = new File(args[i + 1]);
+				try {
+					if (outFile.exists())
+						outFile.delete();
+					outFile.createNewFile();
+				} catch (IOException e) {
+					System.err.println("ERROR: cannot create output file " + outFile.getAbsolutePath());
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-f":
+			case "--format":
+				switch (args[i + 1].toLowerCase()) {
+				case "maf":
+					format = Format.MAF;
+					break;
+				case "tab":
+				case "blast-tab":
+					format = Format.TAB;
+					break;
+				default:
+					System.err.println("ERROR: unknown output format " + args[i + 1] + " - legal formats are: maf and tab");
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-p":
+			case "--procs":
+				try {
+					cores = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					System.err.println("ERROR: not an integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-v":
+			case "--verbose":
+				verbose = true;
+				break;
+			case "-h":
+			case "--help":
+				wrongSetting = true;
+				break;
+			default:
+				System.err.println("ERROR: unknown paramter " + option);
+				wrongSetting = true;
+			}
+
+		}
+
+		if (daaFile == null || outFile == null || wrongSetting)
+			printOptionsAndQuit();
+
+		long hitCounter = new DAA_Exporter(daaFile, format).run(daaFile, outFile, cores);
+		if (hitCounter < 0) {
+			System.err.println("ERROR: cannot export DAA-file " + daaFile.getAbsolutePath() + ", " + outFile.getName() + " is incomplete");
+			System.exit(1);
+		}
+		if (verbose)
+			System.out.println(hitCounter + " alignments written into " + outFile.getName() + "!");
+
+	}
+
+	private static void printOptionsAndQuit() {
+		int space = 25;
+		System.out.println("Input");
+		System.out.println(String.format("%-" + space + "s %s", "\t-i, --in", "sets path to DAA-File"));
+		System.out.println("Output");
+		System.out.println(String.format("%-" + space + "s %s", "\t-o, --out", "sets path of the reported MAF or BLAST-tab file"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-f, --format", "sets output format, either maf or tab (default: maf)"));
+		System.out.println("Parameter");
+		System.out.println(String.format("%-" + space + "s %s", "\t-p, --procs", "sets number of used processors (default: maximal number)"));
+		System.out.println("Other");
+		System.out.println(String.format("%-" + space + "s %s", "\t-v, --verbose", "sets verbose mode reporting the number of exported alignments"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-h, --help", "shows program usage and quits"));
+		System.out.println("AUTHOR");
+		System.out.println("\tBenjamin Albrecht");
+		System.out.println("VERSION");
+		System.out.println("\t" + MainConverter.version);
+		System.exit(0);
+	}
+
+}
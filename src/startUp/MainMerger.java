@@ -21,7 +21,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import daa.writer.FlushPolicy;
 import maf.MAF_StreamConverter;
+import util.Metrics;
+import util.StatusReporter;
 
 public class MainMerger {
 
@@ -33,6 +36,9 @@ public class MainMerger {
 		File daaFolder = null;
 		File queryFile = null;
 		File daaFile = null;
+		File metricsFile = null;
+		Integer statusPort = null, statusInterval = null;
+		Long flushBytes = null, flushLatency = null;
 		Integer cores = Runtime.getRuntime().availableProcessors();
 		boolean verbose = false;
 
@@ -81,6 +87,41 @@ public class MainMerger {
 				}
 				i++;
 				break;
+			case "-m":
+				metricsFile = new File(args[i + 1]);
+				i++;
+				break;
+			case "-sp":
+			case "-si":
+				try {
+					if (option.equals("-sp"))
+						statusPort = Integer.parseInt(args[i + 1]);
+					else
+						statusInterval = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					System.err.print("ERROR: not an integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-fb":
+				flushBytes = MainConverter.parseSize(args[i + 1]);
+				if (flushBytes == null)
+					wrongSetting = true;
+				i++;
+				break;
+			case "-fl":
+				try {
+					flushLatency = Long.parseLong(args[i + 1]);
+				} catch (Exception e) {
+					System.err.print("ERROR: not an integer " + (args[i + 1]));
+					wrongSetting = true;
+				}
+				i++;
+				break;
+			case "-pa":
+				MainConverter.PREALLOCATE = true;
+				break;
 			case "-v":
 				verbose = true;
 				break;
@@ -94,9 +135,19 @@ public class MainMerger {
 		if (daaFile == null || queryFile == null || wrongSetting)
 			printOptionsAndQuit();
 
+		FlushPolicy.setDefaults(flushBytes, flushLatency);
+		MainConverter.startStatusReporter(daaFile.getAbsoluteFile().getParentFile(), statusPort, statusInterval);
 		ArrayList<File> daaFiles = findFiles(daaFolder, ".daa");
+		boolean success = true;
 		if (!daaFiles.isEmpty())
-			new MAF_StreamConverter().run(daaFile, daaFiles, queryFile, cores, verbose, daaFiles.get(0), false);
+			success = new MAF_StreamConverter().runOnDAAFiles(daaFile, daaFiles, queryFile, cores, verbose, false);
+		if (metricsFile != null)
+			Metrics.writeJson(metricsFile);
+		StatusReporter.shutdown();
+		if (!success) {
+			System.err.println("ERROR: merging into DAA-file " + daaFile.getAbsolutePath() + " failed");
+			System.exit(1);
+		}
 
 	}
 
@@ -118,6 +169,12 @@ public class MainMerger {
 		System.out.println("-d\t" + "name of the resulting merged DAA File");
 		System.out.println("Optional: ");
 		System.out.println("-p\t" + "number of available processors (default: maximal number)");
+		System.out.println("-fb\t" + "encoded size of buffered alignments written at once (default: 4m)");
+		System.out.println("-fl\t" + "milliseconds after which buffered alignments are written regardless of their size (default: 1000)");
+		System.out.println("-pa\t" + "reserves the merged DAA File up front and writes it through a memory-mapped window (not on Windows)");
+		System.out.println("-m\t" + "writes counters and per-stage timings as JSON into the given file");
+		System.out.println("-si\t" + "writes live status every given seconds into a file next to the resulting DAA File");
+		System.out.println("-sp\t" + "serves live status on http://localhost:<port>/");
 		System.out.println("-v\t" + "sets verbose mode reporting numbers of reads/references/alignments being analyzed)");
 		System.exit(0);
 	}
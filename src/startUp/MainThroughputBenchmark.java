@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package startUp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import benchmark.DataGenerator;
+import benchmark.ThroughputBenchmark;
+
+public class MainThroughputBenchmark {
+
+	public static void main(String[] args) {
+
+		System.out.println("DAA Converter Throughput Benchmark " + MainConverter.version);
+		System.out.println("Copyright (C) 2017 Benjamin Albrecht. This program comes with ABSOLUTELY NO WARRANTY.");
+
+		int numOfReads = 10000, hitsPerRead = 20, numOfReferences = 1000, minAliLength = 20, maxAliLength = 150;
+		int numOfBatches = 3, repetitions = 1;
+		Integer cores = Runtime.getRuntime().availableProcessors();
+		long seed = 42;
+		boolean shuffle = false, keepFiles = false;
+		ArrayList<String> modes = new ArrayList<String>(Arrays.asList(ThroughputBenchmark.MODES));
+		ArrayList<String> jvmArgs = new ArrayList<String>(), converterArgs = new ArrayList<String>();
+		File workFolder = null;
+		File jsonFile = null;
+
+		boolean wrongSetting = false;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			try {
+				switch (option) {
+				case "-n":
+				case "--reads":
+					numOfReads = Integer.parseInt(args[i + 1]);
+					i++;
+					break;
+				case "-a":
+				case "--hitsPerRead":
+					hitsPerRead = Integer.parseInt(args[i + 1]);
+					i++;
+					break;
+				case "-rc":
+				case "--references":
+					numOfReferences = Integer.parseInt(args[i + 1]);
+					i++;
+					break;
+				case "-al":
+				case "--aliLength":
+					String[] range = args[i + 1].split("-");
+					minAliLength = Integer.parseInt(range[0]);
+					maxAliLength = Integer.parseInt(range[range.length - 1]);
+					i++;
+					break;
+				case "-sh":
+				case "--shuffle":
+					shuffle = true;
+					break;
+				case "-s":
+				case "--seed":
+					seed = Long.parseLong(args[i + 1]);
+					i++;
+					break;
+				case "-p":
+				case "--procs":
+					cores = Integer.parseInt(args[i + 1]);
+					i++;
+					break;
+				case "-m":
+				case "--modes":
+					modes = new ArrayList<String>(Arrays.asList(args[i + 1].split(",")));
+					for (String m : modes) {
+						if (!Arrays.asList(ThroughputBenchmark.MODES).contains(m)) {
+							System.err.println("ERROR: unknown mode " + m + " - legal modes are: file, stdin and merge");
+							wrongSetting = true;
+						}
+					}
+					i++;
+					break;
+				case "-b":
+				case "--batches":
+					numOfBatches = Integer.parseInt(args[i + 1]);
+					i++;
+					break;
+				case "-r":
+				case "--repetitions":
+					repetitions = Integer.parseInt(args[i + 1]);
+					i++;
+					break;
+				case "-j":
+				case "--jvmArg":
+					jvmArgs.add(args[i + 1]);
+					i++;
+					break;
+				case "-c":
+				case "--converterArg":
+					converterArgs.add(args[i + 1]);
+					i++;
+					break;
+				case "-t":
+				case "--tmp":
+					workFolder = new File(args[i + 1]);
+					if (!workFolder.exists())
+						workFolder.mkdirs();
+					if (!workFolder.isDirectory()) {
+						System.err.println("ERROR: invalid tmp directory " + (args[i + 1]) + " (directory could not be created)");
+						wrongSetting = true;
+					}
+					i++;
+					break;
+				case "-k":
+				case "--keep":
+					keepFiles = true;
+					break;
+				case "-o":
+				case "--out":
+					jsonFile = new File(args[i + 1]);
+					i++;
+					break;
+				case "-h":
+				case "--help":
+					wrongSetting = true;
+					break;
+				default:
+					System.err.println("ERROR: unknown paramter " + option);
+					wrongSetting = true;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("ERROR: not a number " + (args[i + 1]));
+				wrongSetting = true;
+				i++;
+			}
+		}
+
+		if (wrongSetting || numOfReads < 1 || hitsPerRead < 1 || numOfReferences < 1 || minAliLength < 1 || maxAliLength < minAliLength)
+			printOptionsAndQuit();
+
+		try {
+
+			boolean deleteWorkFolder = workFolder == null;
+			if (workFolder == null)
+				workFolder = Files.createTempDirectory("daa_throughput").toFile();
+
+			DataGenerator generator = new DataGenerator(seed, numOfReads, hitsPerRead, numOfReferences, minAliLength, maxAliLength, shuffle);
+			ThroughputBenchmark benchmark = new ThroughputBenchmark(generator, shuffle, workFolder, cores, numOfBatches, jvmArgs, converterArgs);
+			benchmark.generateInput(modes.contains("merge"));
+
+			ArrayList<String> results = new ArrayList<String>();
+			boolean failed = false;
+			for (int r = 0; r < repetitions; r++) {
+				for (String mode : modes) {
+					String result = benchmark.run(mode, r);
+					failed |= result.contains("\"error\"");
+					results.add(result);
+				}
+			}
+
+			StringBuilder json = new StringBuilder();
+			json.append("{\n  \"config\": ");
+			json.append(String.format(Locale.US,
+					"{\"reads\": %d, \"hitsPerRead\": %d, \"alignments\": %d, \"references\": %d, \"minAliLength\": %d, \"maxAliLength\": %d, "
+							+ "\"shuffled\": %b, \"seed\": %d, \"procs\": %d, \"batches\": %d, \"jvmArgs\": \"%s\", \"converterArgs\": \"%s\"},\n",
+					numOfReads, hitsPerRead, generator.getNumOfAlignments(), numOfReferences, minAliLength, maxAliLength, shuffle, seed, cores,
+					numOfBatches, String.join(" ", jvmArgs), String.join(" ", converterArgs)));
+			json.append("  \"results\": [\n");
+			for (int i = 0; i < results.size(); i++)
+				json.append("    " + results.get(i) + (i < results.size() - 1 ? ",\n" : "\n"));
+			json.append("  ]\n}\n");
+
+			if (jsonFile != null) {
+				FileWriter writer = new FileWriter(jsonFile);
+				try {
+					writer.write(json.toString());
+				} finally {
+					writer.close();
+				}
+				System.out.println("Results written into " + jsonFile.getAbsolutePath());
+			} else
+				System.out.print(json);
+
+			if (!keepFiles) {
+				benchmark.deleteFiles(!failed);
+				if (deleteWorkFolder && !failed)
+					workFolder.delete();
+			}
+			if (failed)
+				System.err.println("ERROR: some runs failed, see logs in " + workFolder.getAbsolutePath());
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+	}
+
+	private static void printOptionsAndQuit() {
+		int space = 25;
+		System.out.println("Workload");
+		System.out.println(String.format("%-" + space + "s %s", "\t-n, --reads", "sets number of generated reads (default: 10000)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-a, --hitsPerRead", "sets number of alignments per read (default: 20)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-rc, --references", "sets number of reference sequences (default: 1000)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-al, --aliLength", "sets range of alignment lengths in amino acids (default: 20-150)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-sh, --shuffle", "shuffles alignments instead of grouping them by read"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-s, --seed", "sets seed of the generated input data (default: 42)"));
+		System.out.println("Runs");
+		System.out.println(String.format("%-" + space + "s %s", "\t-m, --modes", "sets comma separated modes out of file, stdin and merge (default: all)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-b, --batches", "sets number of batch DAA files merged in merge mode (default: 3)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-r, --repetitions", "sets number of runs per mode (default: 1)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-p, --procs", "sets number of used processors (default: maximal number)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-j, --jvmArg", "adds an argument of the benchmarked JVMs, e.g. -j -Xmx4g"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-c, --converterArg", "adds an argument of the converter runs, e.g. -c -mm -c 1g"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-t, --tmp", "sets folder for generated files (default: new system tmp folder)"));
+		System.out.println(String.format("%-" + space + "s %s", "\t-k, --keep", "keeps generated input files and logs"));
+		System.out.println("Output");
+		System.out.println(String.format("%-" + space + "s %s", "\t-o, --out", "writes results as JSON into the given file (default: stdout)"));
+		System.out.println("Other");
+		System.out.println(String.format("%-" + space + "s %s", "\t-h, --help", "shows program usage and quits"));
+		System.out.println("AUTHOR");
+		System.out.println("\tBenjamin Albrecht");
+		System.out.println("VERSION");
+		System.out.println("\t" + MainConverter.version);
+		System.exit(0);
+	}
+
+}
@@ -17,14 +17,17 @@
 
 package util;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
 
 public class CodonTranslator {
 
-	private ConcurrentHashMap<String, Character> codonMap;
+	private static final HashMap<String, Character> codonMap;
 
-	public CodonTranslator() {
-		codonMap = new ConcurrentHashMap<String, Character>();
+	// amino acid of each codon indexed by the 2-bit codes of its bases (first base in the highest bits)
+	private static final char[] codonTable = new char[64];
+
+	static {
+		codonMap = new HashMap<String, Character>();
 
 		codonMap.put("GGU", 'G');
 		codonMap.put("GGC", 'G');
@@ -106,28 +109,38 @@ public class CodonTranslator {
 		codonMap.put("CCC", 'P');
 		codonMap.put("CCA", 'P');
 		codonMap.put("CCG", 'P');
+
+		codonMap.put("UAA", '*');
+		codonMap.put("UAG", '*');
+		codonMap.put("UGA", '*');
+
+		for (String codon : codonMap.keySet()) {
+			int code = SequencePacker.getCode(codon.charAt(0)) << 4 | SequencePacker.getCode(codon.charAt(1)) << 2
+					| SequencePacker.getCode(codon.charAt(2));
+			codonTable[code] = codonMap.get(codon);
+		}
+	}
+
+	// translates a codon given by the 2-bit codes of its bases, ambiguous bases (codes > 3) result in 'X'
+	public static char translateCodon(int b1, int b2, int b3) {
+		if ((b1 | b2 | b3) > 3)
+			return 'X';
+		return codonTable[b1 << 4 | b2 << 2 | b3];
 	}
 
 	public String translate(String dna) {
-		String rna = dna.replaceAll("T", "U");
-		StringBuffer prot = new StringBuffer("");
-		String codon = "";
-		for (int i = 0; i < rna.length(); i++) {
-			codon = codon.concat("" + rna.charAt(i));
-			if (codon.length() == 3) {
-				char p = translateCodon(codon);
-				prot.append(p);
-				codon = "";
-			}
-		}
+		StringBuilder prot = new StringBuilder(dna.length() / 3);
+		for (int i = 0; i + 2 < dna.length(); i += 3)
+			prot.append(translateCodon(SequencePacker.getCode(dna.charAt(i)), SequencePacker.getCode(dna.charAt(i + 1)),
+					SequencePacker.getCode(dna.charAt(i + 2))));
 		return prot.toString();
 	}
 
 	public char translateCodon(String codon) {
-		codon = codon.replaceAll("T", "U");
-		if (codonMap.containsKey(codon))
-			return codonMap.get(codon);
-		return 'X';
+		if (codon.length() != 3)
+			return 'X';
+		return translateCodon(SequencePacker.getCode(codon.charAt(0)), SequencePacker.getCode(codon.charAt(1)),
+				SequencePacker.getCode(codon.charAt(2)));
 	}
 
 }
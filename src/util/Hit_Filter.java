@@ -18,6 +18,8 @@
 package util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 import hits.Hit.FrameDirection;
 import maf.MAF_Hit;
@@ -25,8 +27,13 @@ import startUp.MainConverter;
 
 public class Hit_Filter {
 
+	static final LongAdder inputCounter = Metrics.counter("filter.input_hits");
+	static final LongAdder passedCounter = Metrics.counter("filter.passed_hits");
+	private static final Metrics.Timer filterTimer = Metrics.timer("filter.sequential");
+
 	public static ArrayList<MAF_Hit> run(ArrayList<MAF_Hit> hits, double lambda, double K) {
 
+		long start = filterTimer.start();
 		ArrayList<MAF_Hit> passedHits = new ArrayList<MAF_Hit>();
 		for (MAF_Hit h1 : hits) {
 			
@@ -50,31 +57,84 @@ public class Hit_Filter {
 				passedHits.add(h1);
 
 		}
+		inputCounter.add(hits.size());
+		passedCounter.add(passedHits.size());
+		filterTimer.stop(start);
 
 		return passedHits;
 
 	}
 
+	// filters hits offered in order of descending raw score while only keeping their query coordinates and bit scores
+	public static class ScoreOrderedFilter {
+
+		private double lambda, K;
+		private int[] starts = new int[1024], ends = new int[1024];
+		private double[] bitScores = new double[1024];
+		private int size = 0;
+
+		public ScoreOrderedFilter(double lambda, double K) {
+			this.lambda = lambda;
+			this.K = K;
+		}
+
+		public boolean passes(MAF_Hit h) {
+
+			// only hits with a higher score, which have all been offered before, can dominate h
+			int[] coord = getQueryCoordinates(h);
+			double bitScore = cmpBitScore(h.getRawScore(), lambda, K);
+			boolean isDominated = false;
+			for (int i = 0; i < size; i++) {
+				double coverage = cmpCoverage(coord[0], coord[1], starts[i], ends[i]);
+				if (coverage > MainConverter.MIN_PROPORTION_COVERAGE && MainConverter.MIN_PROPORTION_SCORE * bitScores[i] > bitScore) {
+					isDominated = true;
+					break;
+				}
+			}
+
+			// dominated hits can still dominate others
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * size);
+				ends = Arrays.copyOf(ends, 2 * size);
+				bitScores = Arrays.copyOf(bitScores, 2 * size);
+			}
+			starts[size] = coord[0];
+			ends[size] = coord[1];
+			bitScores[size] = bitScore;
+			size++;
+
+			inputCounter.increment();
+			if (!isDominated)
+				passedCounter.increment();
+			return !isDominated;
+
+		}
+
+	}
+
 	private static double cmpBitScore(int rawScore, double lambda, double K) {
 		return (new Double(rawScore) * lambda - Math.log(K)) / Math.log(2);
 	}
 
 	private static double cmpHitCoverage(MAF_Hit h1, MAF_Hit h2) {
-
 		int[] h1Coord = getQueryCoordinates(h1);
 		int[] h2Coord = getQueryCoordinates(h2);
+		return cmpCoverage(h1Coord[0], h1Coord[1], h2Coord[0], h2Coord[1]);
+	}
+
+	private static double cmpCoverage(int start1, int end1, int start2, int end2) {
 
 		// checking if overlap exists
-		if (h1Coord[0] > h2Coord[1])
+		if (start1 > end2)
 			return 0;
-		if (h2Coord[0] > h1Coord[1])
+		if (start2 > end1)
 			return 0;
 
 		// computing coverage of h1 by h2
-		double l = Math.max(h1Coord[0], h2Coord[0]);
-		double r = Math.min(h1Coord[1], h2Coord[1]);
+		double l = Math.max(start1, start2);
+		double r = Math.min(end1, end2);
 		double overlap = r - l + 1.;
-		double length1 = h1Coord[1] - h1Coord[0] + 1;
+		double length1 = end1 - start1 + 1;
 		double coverage = overlap / length1;
 
 		return coverage;
@@ -35,6 +35,7 @@ public class Hit_Filter_parallel {
 	private static List<MAF_Hit> passedHits;
 
 	public static final int TRESHOLD = 100000;
+	private static final Metrics.Timer filterTimer = Metrics.timer("filter.parallel");
 	private static int maxProgress, lastProgress = 0;
 	private static AtomicInteger progress = new AtomicInteger();
 
@@ -43,6 +44,7 @@ public class Hit_Filter_parallel {
 
 	public static ArrayList<MAF_Hit> run(ArrayList<MAF_Hit> hits, double lambda, double K, int cores) {
 
+		long start = filterTimer.start();
 		System.out.println("\nSTEP 3.1 - Filtering " + hits.size() + " hits...");
 		passedHits = Collections.synchronizedList(new ArrayList<MAF_Hit>());
 		executor = Executors.newFixedThreadPool(cores);
@@ -58,6 +60,9 @@ public class Hit_Filter_parallel {
 		executor.shutdown();
 
 		reportFinish();
+		Hit_Filter.inputCounter.add(hits.size());
+		Hit_Filter.passedCounter.add(passedHits.size());
+		filterTimer.stop(start);
 
 		return new ArrayList<MAF_Hit>(passedHits);
 
@@ -17,27 +17,20 @@
 
 package util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipException;
+
+import io.ParallelGZIPInputStream;
 
 public class LineCounter {
 
 	public static int run(File file) {
 		try {
 			
-			InputStream is;
-			try {
-				is = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)));
-			} catch (ZipException e) {
-				is = new BufferedInputStream(new FileInputStream(file));
-			}
-			
+			InputStream is = ParallelGZIPInputStream.open(file, Runtime.getRuntime().availableProcessors());
+
 			try {
-				byte[] c = new byte[1024];
+				byte[] c = new byte[1024 * 1024];
 				int count = 0;
 				int readChars = 0;
 				boolean empty = true;
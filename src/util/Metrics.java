@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// process wide registry of counters and stage timers, hot paths should keep the returned instances in static fields
+public class Metrics {
+
+	private static final long startTime = System.nanoTime();
+	private static final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+	private static final ConcurrentSkipListMap<String, Timer> timers = new ConcurrentSkipListMap<String, Timer>();
+
+	public static LongAdder counter(String name) {
+		LongAdder c = counters.get(name);
+		if (c == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			c = counters.get(name);
+		}
+		return c;
+	}
+
+	public static Timer timer(String name) {
+		Timer t = timers.get(name);
+		if (t == null) {
+			timers.putIfAbsent(name, new Timer());
+			t = timers.get(name);
+		}
+		return t;
+	}
+
+	public static void reset() {
+		for (LongAdder c : counters.values())
+			c.reset();
+		for (Timer t : timers.values())
+			t.reset();
+	}
+
+	public static String toJson() {
+		StringBuilder buf = new StringBuilder();
+		Runtime rt = Runtime.getRuntime();
+		buf.append("{\n");
+		buf.append(String.format(Locale.US, "  \"uptimeMs\": %d,\n", (System.nanoTime() - startTime) / 1000000));
+		buf.append(String.format(Locale.US, "  \"heapUsedMB\": %.1f,\n", (rt.totalMemory() - rt.freeMemory()) / (1024. * 1024.)));
+		buf.append(String.format(Locale.US, "  \"heapMaxMB\": %.1f,\n", rt.maxMemory() / (1024. * 1024.)));
+		buf.append("  \"counters\": {");
+		String sep = "\n";
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			buf.append(sep).append("    \"").append(e.getKey()).append("\": ").append(e.getValue().sum());
+			sep = ",\n";
+		}
+		buf.append(sep.equals("\n") ? "},\n" : "\n  },\n");
+		buf.append("  \"timers\": {");
+		sep = "\n";
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			if (e.getValue().getCalls() == 0)
+				continue;
+			buf.append(sep).append("    \"").append(e.getKey()).append("\": ").append(e.getValue().toJson());
+			sep = ",\n";
+		}
+		buf.append(sep.equals("\n") ? "}\n" : "\n  }\n");
+		buf.append("}\n");
+		return buf.toString();
+	}
+
+	public static void writeJson(File file) {
+		try {
+			FileWriter writer = new FileWriter(file);
+			try {
+				writer.write(toJson());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// accumulates the time spent in a stage over all calls, optionally together with the number of bytes processed
+	public static class Timer {
+
+		private LongAdder nanos = new LongAdder(), calls = new LongAdder(), bytes = new LongAdder();
+
+		public long start() {
+			return System.nanoTime();
+		}
+
+		public void stop(long start) {
+			nanos.add(System.nanoTime() - start);
+			calls.increment();
+		}
+
+		public void addBytes(long n) {
+			bytes.add(n);
+		}
+
+		public long getNanos() {
+			return nanos.sum();
+		}
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		private void reset() {
+			nanos.reset();
+			calls.reset();
+			bytes.reset();
+		}
+
+		private String toJson() {
+			long n = getNanos(), b = getBytes();
+			String json = String.format(Locale.US, "{\"ms\": %.3f, \"calls\": %d", n / 1e6, getCalls());
+			if (b > 0)
+				json += String.format(Locale.US, ", \"bytes\": %d, \"mbPerSecond\": %.2f", b, n > 0 ? b / (1024. * 1024.) / (n / 1e9) : 0);
+			return json + "}";
+		}
+
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package util;
+
+import java.util.Arrays;
+
+public class SequencePacker {
+
+	public static final byte N_CODE = 4;
+
+	// maps each character onto its 2-bit nucleotide code, any other character onto N_CODE
+	private static final byte[] nucToCode = new byte[256];
+	static {
+		Arrays.fill(nucToCode, N_CODE);
+		nucToCode['A'] = nucToCode['a'] = 0;
+		nucToCode['C'] = nucToCode['c'] = 1;
+		nucToCode['G'] = nucToCode['g'] = 2;
+		nucToCode['T'] = nucToCode['t'] = 3;
+		nucToCode['U'] = nucToCode['u'] = 3;
+	}
+
+	public static int getCode(char c) {
+		return nucToCode[c & 0xFF];
+	}
+
+	// packs 2 bits per base, ambiguous bases are stored as A and their positions added to nPositions (if not null)
+	public static byte[] pack(CharSequence seq, PositionList nPositions) {
+
+		int len = seq.length();
+		byte[] packed = new byte[(len * 2 + 7) / 8];
+
+		// packing 32 bases into one word at a time
+		int words = len >>> 5;
+		for (int w = 0; w < words; w++) {
+			int offset = w << 5;
+			long x = 0;
+			int ambiguous = 0;
+			for (int j = 0; j < 32; j++) {
+				int code = nucToCode[seq.charAt(offset + j) & 0xFF];
+				ambiguous |= code;
+				x |= (long) (code & 3) << (j << 1);
+			}
+			int p = w << 3;
+			for (int j = 0; j < 8; j++) {
+				packed[p + j] = (byte) x;
+				x >>>= 8;
+			}
+			if ((ambiguous & N_CODE) != 0 && nPositions != null)
+				addAmbiguousPositions(seq, offset, offset + 32, nPositions);
+		}
+
+		// packing remaining bases
+		for (int i = words << 5; i < len; i++) {
+			int code = nucToCode[seq.charAt(i) & 0xFF];
+			if (code == N_CODE && nPositions != null)
+				nPositions.add(i);
+			packed[i >>> 2] |= (code & 3) << ((i & 3) << 1);
+		}
+
+		return packed;
+
+	}
+
+	// packs 3 bits per base, which is how DAA stores sequences containing ambiguous bases
+	public static byte[] pack3Bit(CharSequence seq) {
+		int len = seq.length();
+		byte[] packed = new byte[(len * 3 + 7) / 8];
+		long x = 0;
+		int n = 0, p = 0;
+		for (int i = 0; i < len; i++) {
+			x |= (long) nucToCode[seq.charAt(i) & 0xFF] << n;
+			n += 3;
+			if (n >= 56) {
+				while (n >= 8) {
+					packed[p++] = (byte) x;
+					x >>>= 8;
+					n -= 8;
+				}
+			}
+		}
+		while (n > 0) {
+			packed[p++] = (byte) x;
+			x >>>= 8;
+			n -= 8;
+		}
+		return packed;
+	}
+
+	// packs 2 bits per base unless the read contains ambiguous bases (nPositions not empty afterwards), then 3 bits
+	public static byte[] packRead(CharSequence seq, PositionList nPositions) {
+		nPositions.clear();
+		byte[] packed = pack(seq, nPositions);
+		if (nPositions.isEmpty())
+			return packed;
+		return pack3Bit(seq);
+	}
+
+	private static void addAmbiguousPositions(CharSequence seq, int from, int to, PositionList nPositions) {
+		for (int i = from; i < to; i++) {
+			if (nucToCode[seq.charAt(i) & 0xFF] == N_CODE)
+				nPositions.add(i);
+		}
+	}
+
+	public static class PositionList {
+
+		private int[] positions = new int[16];
+		private int size = 0;
+
+		public void add(int pos) {
+			if (size == positions.length)
+				positions = Arrays.copyOf(positions, size * 2);
+			positions[size++] = pos;
+		}
+
+		public int get(int i) {
+			return positions[i];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 Benjamin Albrecht
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// periodically publishes the live state of a conversion into a status file and/or via a local HTTP endpoint
+public class StatusReporter extends Thread {
+
+	public interface Gauge {
+		long getValue();
+	}
+
+	private static final LongAdder processedReads = new LongAdder(), processedAlignments = new LongAdder();
+	private static final AtomicLong stageDone = new AtomicLong(), stageTotal = new AtomicLong();
+	private static final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+	private static volatile String stage = "starting";
+	private static volatile long stageStart = System.nanoTime();
+	private static StatusReporter reporter;
+
+	private File statusFile;
+	private HttpServer server;
+	private long interval;
+	private volatile boolean finished = false;
+	private volatile String status = "{}";
+
+	private long startTime = System.nanoTime(), lastTick = startTime, lastProgressTime = startTime;
+	private long lastReads, lastAlignments, lastStageDone;
+
+	private StatusReporter(File statusFile, HttpServer server, long interval) {
+		super("StatusReporter");
+		setDaemon(true);
+		this.statusFile = statusFile;
+		this.server = server;
+		this.interval = interval;
+	}
+
+	// starts reporting every intervalSeconds into statusFile (if not null) and serving the status on the loopback port (if not null)
+	public static synchronized void start(File statusFile, Integer port, int intervalSeconds) throws IOException {
+		if (reporter != null || (statusFile == null && port == null))
+			return;
+		HttpServer server = null;
+		if (port != null) {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext("/", new JsonHandler(false));
+			server.createContext("/metrics", new JsonHandler(true));
+			server.start();
+		}
+		reporter = new StatusReporter(statusFile, server, Math.max(1, intervalSeconds) * 1000L);
+		reporter.tick();
+		reporter.start();
+	}
+
+	public static synchronized void shutdown() {
+		if (reporter == null)
+			return;
+		reporter.finished = true;
+		reporter.interrupt();
+		if (reporter.server != null)
+			reporter.server.stop(0);
+		if (reporter.statusFile != null)
+			reporter.statusFile.delete();
+		reporter = null;
+	}
+
+	public static File getStatusFile(File tmpFolder) {
+		String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		return new File(tmpFolder, "daa_converter_status_" + pid + ".json");
+	}
+
+	public static void setStage(String name, long total) {
+		stage = name;
+		stageTotal.set(total);
+		stageDone.set(0);
+		stageStart = System.nanoTime();
+	}
+
+	public static void advance(long delta) {
+		stageDone.addAndGet(delta);
+	}
+
+	public static void addProcessed(long reads, long alignments) {
+		processedReads.add(reads);
+		processedAlignments.add(alignments);
+	}
+
+	public static void addGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public static void removeGauge(String name) {
+		gauges.remove(name);
+	}
+
+	@Override
+	public void run() {
+		while (!finished) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			tick();
+		}
+	}
+
+	private void tick() {
+
+		long now = System.nanoTime();
+		long reads = processedReads.sum(), alignments = processedAlignments.sum(), done = stageDone.get(), total = stageTotal.get();
+		double seconds = Math.max(1e-9, (now - lastTick) / 1e9);
+		if (reads != lastReads || alignments != lastAlignments || done != lastStageDone)
+			lastProgressTime = now;
+
+		// estimating the remaining time of the current stage from its average progress rate
+		double stageSeconds = (now - stageStart) / 1e9;
+		double eta = total > 0 && done > 0 ? (total - done) * stageSeconds / done : -1;
+
+		Runtime rt = Runtime.getRuntime();
+		StringBuilder buf = new StringBuilder();
+		buf.append("{\n");
+		buf.append(String.format(Locale.US, "  \"timestamp\": %d,\n", System.currentTimeMillis()));
+		buf.append(String.format(Locale.US, "  \"uptimeSeconds\": %.1f,\n", (now - startTime) / 1e9));
+		buf.append("  \"stage\": \"" + stage + "\",\n");
+		buf.append(String.format(Locale.US, "  \"stageProgress\": {\"done\": %d, \"total\": %d, \"percent\": %.1f},\n", done, total,
+				total > 0 ? Math.min(100., 100. * done / total) : 0.));
+		buf.append(String.format(Locale.US, "  \"etaSeconds\": %.0f,\n", eta));
+		buf.append(String.format(Locale.US, "  \"readsPerSecond\": %.1f,\n", (reads - lastReads) / seconds));
+		buf.append(String.format(Locale.US, "  \"alignmentsPerSecond\": %.1f,\n", (alignments - lastAlignments) / seconds));
+		buf.append(String.format(Locale.US, "  \"processedReads\": %d,\n", reads));
+		buf.append(String.format(Locale.US, "  \"processedAlignments\": %d,\n", alignments));
+		buf.append(String.format(Locale.US, "  \"secondsSinceProgress\": %.1f,\n", (now - lastProgressTime) / 1e9));
+		buf.append(String.format(Locale.US, "  \"heapUsedMB\": %.1f,\n", (rt.totalMemory() - rt.freeMemory()) / (1024. * 1024.)));
+		buf.append(String.format(Locale.US, "  \"heapMaxMB\": %.1f,\n", rt.maxMemory() / (1024. * 1024.)));
+		buf.append("  \"queues\": {");
+		String sep = "";
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			buf.append(sep).append("\"").append(e.getKey()).append("\": ").append(e.getValue().getValue());
+			sep = ", ";
+		}
+		buf.append("}\n}\n");
+		status = buf.toString();
+
+		lastTick = now;
+		lastReads = reads;
+		lastAlignments = alignments;
+		lastStageDone = done;
+
+		if (statusFile != null)
+			writeStatusFile();
+
+	}
+
+	// replacing the status file at once so that readers never see a partial file
+	private void writeStatusFile() {
+		File tmpFile = new File(statusFile.getAbsolutePath() + ".tmp");
+		try {
+			FileWriter writer = new FileWriter(tmpFile);
+			try {
+				writer.write(status);
+			} finally {
+				writer.close();
+			}
+			if (!tmpFile.renameTo(statusFile)) {
+				statusFile.delete();
+				tmpFile.renameTo(statusFile);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static class JsonHandler implements HttpHandler {
+
+		private boolean metrics;
+
+		public JsonHandler(boolean metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			StatusReporter r = reporter;
+			String json = metrics ? Metrics.toJson() : (r != null ? r.status : "{}");
+			byte[] body = json.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream os = exchange.getResponseBody();
+			try {
+				os.write(body);
+			} finally {
+				os.close();
+			}
+		}
+
+	}
+
+}